@@ -0,0 +1,146 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.ext.influxdb;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.geoxp.GeoXPLib;
+
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.script.MemoryWarpScriptStack;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Data sets and helpers shared by the benchmarks
+ */
+class BenchmarkData {
+
+  /**
+   * Types of the generated values
+   */
+  enum ValueType {
+    LONG, DOUBLE, BOOLEAN, STRING
+  }
+
+  /**
+   * Timestamp of the first generated datapoint, in platform time units
+   */
+  static final long START;
+
+  /**
+   * Interval between two generated datapoints, in platform time units
+   */
+  static final long STEP;
+
+  static {
+    // Also configures Warp 10, the benchmarks run outside of it
+    START = InfluxDBEmulator.START;
+    STEP = InfluxDBEmulator.STEP;
+  }
+
+  private BenchmarkData() {}
+
+  static Object value(ValueType type, int i) {
+    switch (type) {
+      case LONG:
+        return (long) i;
+      case DOUBLE:
+        return i * 0.5D + 0.25D;
+      case BOOLEAN:
+        return 0 == i % 2;
+      default:
+        return "v" + i;
+    }
+  }
+
+  /**
+   * Build Geo Time Series named 'value', labeled with their index, optionally with locations and elevations
+   */
+  static GeoTimeSerie[] series(int count, int points, ValueType type, boolean geo) {
+    GeoTimeSerie[] series = new GeoTimeSerie[count];
+
+    for (int s = 0; s < count; s++) {
+      GeoTimeSerie gts = new GeoTimeSerie(points);
+      gts.setName("value");
+      Map<String,String> labels = new HashMap<String,String>();
+      labels.put("host", "host" + s);
+      labels.put("dc", "dc" + (s % 4));
+      gts.setLabels(labels);
+
+      for (int i = 0; i < points; i++) {
+        long location = geo ? GeoXPLib.toGeoXPPoint(48.0D + i * 1e-4D, -4.5D + s * 1e-3D) : GeoTimeSerie.NO_LOCATION;
+        long elevation = geo ? (long) (i % 1000) : GeoTimeSerie.NO_ELEVATION;
+        GTSHelper.setValue(gts, START + i * STEP, location, elevation, value(type, i), false);
+      }
+
+      series[s] = gts;
+    }
+
+    return series;
+  }
+
+  /**
+   * Build a client answering every request with the same body, without any network I/O
+   */
+  static OkHttpClient client(byte[] body, String contentType) {
+    MediaType mediaType = MediaType.parse(contentType);
+    return new OkHttpClient.Builder()
+        .addInterceptor(chain -> new Response.Builder()
+            .request(chain.request())
+            .protocol(Protocol.HTTP_1_1)
+            .code(200)
+            .message("OK")
+            .header("Content-Type", contentType)
+            .body(ResponseBody.create(body, mediaType))
+            .build())
+        .build();
+  }
+
+  static Request request(String path) {
+    return new Request.Builder().url("http://localhost:8086/" + path).build();
+  }
+
+  /**
+   * Stack without fetch nor GTS limits, so budgets only measure their own cost
+   */
+  static WarpScriptStack stack() {
+    WarpScriptStack stack = new MemoryWarpScriptStack(null, null, new Properties());
+    stack.setAttribute(WarpScriptStack.ATTRIBUTE_FETCH_LIMIT, Long.MAX_VALUE);
+    stack.setAttribute(WarpScriptStack.ATTRIBUTE_GTS_LIMIT, Long.MAX_VALUE);
+    return stack;
+  }
+
+  /**
+   * Build a budget with fresh stack counters
+   */
+  static FetchBudget budget(WarpScriptStack stack) throws WarpScriptException {
+    stack.setAttribute(WarpScriptStack.ATTRIBUTE_FETCH_COUNT, new AtomicLong());
+    stack.setAttribute(WarpScriptStack.ATTRIBUTE_GTS_COUNT, new AtomicLong());
+    return FetchBudget.fromParams("BENCHMARK", stack, null);
+  }
+}
@@ -0,0 +1,109 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+
+package io.warp10.script.ext.influxdb;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import io.warp10.continuum.store.Constants;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+
+/**
+ * Conversion of Flux tables into Geo Time Series, as done by INFLUXDB.FLUX in stream mode.
+ * Annotated CSV responses are served from memory so only the decoding is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FluxDecoderBenchmark {
+
+  @Param({ "1", "100" })
+  public int series;
+
+  @Param({ "1000", "10000" })
+  public int points;
+
+  @Param({ "LONG", "DOUBLE", "BOOLEAN", "STRING" })
+  public BenchmarkData.ValueType type;
+
+  private OkHttpClient client;
+  private Request request;
+  private WarpScriptStack stack;
+
+  @Setup
+  public void setup() {
+    client = BenchmarkData.client(csv(), "text/csv; charset=utf-8");
+    request = BenchmarkData.request("api/v2/query");
+    stack = BenchmarkData.stack();
+  }
+
+  @Benchmark
+  public Object decode() throws IOException, WarpScriptException {
+    return FluxStreamDecoder.query(client, request, false, BenchmarkData.budget(stack));
+  }
+
+  private static String datatype(BenchmarkData.ValueType type) {
+    switch (type) {
+      case LONG:
+        return "long";
+      case DOUBLE:
+        return "double";
+      case BOOLEAN:
+        return "boolean";
+      default:
+        return "string";
+    }
+  }
+
+  private byte[] csv() {
+    String start = Instant.ofEpochMilli(BenchmarkData.START / Constants.TIME_UNITS_PER_MS).toString();
+    String stop = Instant.ofEpochMilli((BenchmarkData.START + points * BenchmarkData.STEP) / Constants.TIME_UNITS_PER_MS).toString();
+
+    StringBuilder sb = new StringBuilder();
+    sb.append("#datatype,string,long,dateTime:RFC3339,dateTime:RFC3339,dateTime:RFC3339,").append(datatype(type)).append(",string,string,string,string\r\n");
+    sb.append("#group,false,false,true,true,false,false,true,true,true,true\r\n");
+    sb.append("#default,_result,,,,,,,,,\r\n");
+    sb.append(",result,table,_start,_stop,_time,_value,_field,_measurement,dc,host\r\n");
+
+    for (int s = 0; s < series; s++) {
+      for (int i = 0; i < points; i++) {
+        long ts = BenchmarkData.START + i * BenchmarkData.STEP;
+        Instant time = Instant.ofEpochSecond(ts / Constants.TIME_UNITS_PER_S, (ts % Constants.TIME_UNITS_PER_S) * (1000000000L / Constants.TIME_UNITS_PER_S));
+        sb.append(",,").append(s).append(',').append(start).append(',').append(stop).append(',').append(time).append(',');
+        sb.append(BenchmarkData.value(type, i)).append(",value,measurement,dc").append(s % 4).append(",host").append(s).append("\r\n");
+      }
+    }
+    sb.append("\r\n");
+
+    return sb.toString().getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,141 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+
+package io.warp10.script.ext.influxdb;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.msgpack.core.MessageBufferPacker;
+import org.msgpack.core.MessagePack;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import io.warp10.continuum.store.Constants;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+
+/**
+ * Conversion of InfluxQL query results into Geo Time Series, as done by INFLUXDB.FETCH.
+ * Responses are served from memory so only the decoding is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class InfluxQLDecoderBenchmark {
+
+  @Param({ "1", "100" })
+  public int series;
+
+  @Param({ "1000", "10000" })
+  public int points;
+
+  @Param({ "LONG", "DOUBLE", "BOOLEAN", "STRING" })
+  public BenchmarkData.ValueType type;
+
+  @Param({ "json", "msgpack" })
+  public String format;
+
+  private OkHttpClient client;
+  private Request request;
+  private WarpScriptStack stack;
+
+  @Setup
+  public void setup() throws IOException {
+    if ("msgpack".equals(format)) {
+      client = BenchmarkData.client(msgpack(), "application/x-msgpack");
+    } else {
+      client = BenchmarkData.client(json(), "application/json");
+    }
+    request = BenchmarkData.request("query");
+    stack = BenchmarkData.stack();
+  }
+
+  @Benchmark
+  public Object decode() throws IOException, WarpScriptException {
+    return InfluxQLChunkDecoder.query(client, request, false, BenchmarkData.budget(stack));
+  }
+
+  private static long nanos(int i) {
+    return (BenchmarkData.START + i * BenchmarkData.STEP) * (1000000000L / Constants.TIME_UNITS_PER_S);
+  }
+
+  private byte[] json() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\"results\":[{\"statement_id\":0,\"series\":[");
+    for (int s = 0; s < series; s++) {
+      if (s > 0) {
+        sb.append(',');
+      }
+      sb.append("{\"name\":\"measurement\",\"tags\":{\"dc\":\"dc").append(s % 4).append("\",\"host\":\"host").append(s).append("\"},");
+      sb.append("\"columns\":[\"time\",\"value\"],\"values\":[");
+      for (int i = 0; i < points; i++) {
+        if (i > 0) {
+          sb.append(',');
+        }
+        sb.append('[').append(nanos(i)).append(',');
+        Object value = BenchmarkData.value(type, i);
+        if (value instanceof String) {
+          sb.append('"').append(value).append('"');
+        } else {
+          sb.append(value);
+        }
+        sb.append(']');
+      }
+      sb.append("]}");
+    }
+    sb.append("]}]}");
+    return sb.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private byte[] msgpack() throws IOException {
+    MessageBufferPacker packer = MessagePack.newDefaultBufferPacker();
+    packer.packMapHeader(1).packString("results").packArrayHeader(1);
+    packer.packMapHeader(2).packString("statement_id").packInt(0).packString("series").packArrayHeader(series);
+    for (int s = 0; s < series; s++) {
+      packer.packMapHeader(4);
+      packer.packString("name").packString("measurement");
+      packer.packString("tags").packMapHeader(2).packString("dc").packString("dc" + (s % 4)).packString("host").packString("host" + s);
+      packer.packString("columns").packArrayHeader(2).packString("time").packString("value");
+      packer.packString("values").packArrayHeader(points);
+      for (int i = 0; i < points; i++) {
+        packer.packArrayHeader(2).packLong(nanos(i));
+        Object value = BenchmarkData.value(type, i);
+        if (value instanceof Long) {
+          packer.packLong((Long) value);
+        } else if (value instanceof Double) {
+          packer.packDouble((Double) value);
+        } else if (value instanceof Boolean) {
+          packer.packBoolean((Boolean) value);
+        } else {
+          packer.packString((String) value);
+        }
+      }
+    }
+    packer.close();
+    return packer.toByteArray();
+  }
+}
@@ -0,0 +1,96 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+
+package io.warp10.script.ext.influxdb;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+
+/**
+ * Encoding of Geo Time Series into line protocol batches, as done by INFLUXDB.UPDATE.
+ * Batches hold a fixed number of points and span series boundaries, InfluxDB 1.x batches never
+ * carry lat/lon/elev fields, InfluxDB 2.x ones carry them when the series are located.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LineProtocolEncoderBenchmark {
+
+  /**
+   * Number of points of a batch, as set by the batchsize parameter of INFLUXDB.UPDATE
+   */
+  private static final int BATCH_SIZE = 2500;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  @Param({ "1", "100" })
+  public int series;
+
+  @Param({ "1000", "10000" })
+  public int points;
+
+  @Param({ "LONG", "DOUBLE", "BOOLEAN", "STRING" })
+  public BenchmarkData.ValueType type;
+
+  @Param({ "false", "true" })
+  public boolean geo;
+
+  @Param({ "v1", "v2" })
+  public String version;
+
+  private GeoTimeSerie[] data;
+  private LineProtocolEncoder encoder;
+
+  @Setup
+  public void setup() {
+    data = BenchmarkData.series(series, points, type, geo);
+    encoder = new LineProtocolEncoder(BUFFER_SIZE, !"v1".equals(version));
+  }
+
+  @Benchmark
+  public void encode(Blackhole bh) {
+    for (GeoTimeSerie gts: data) {
+      encoder.series("measurement", gts.getLabels(), gts.getName());
+      int n = GTSHelper.nvalues(gts);
+      for (int i = 0; i < n; i++) {
+        encoder.append(GTSHelper.tickAtIndex(gts, i), GTSHelper.locationAtIndex(gts, i), GTSHelper.elevationAtIndex(gts, i), GTSHelper.valueAtIndex(gts, i));
+        if (encoder.points() >= BATCH_SIZE) {
+          flush(bh);
+        }
+      }
+    }
+    flush(bh);
+  }
+
+  private void flush(Blackhole bh) {
+    bh.consume(encoder.buffer());
+    bh.consume(encoder.size());
+    encoder.reset();
+  }
+}
@@ -0,0 +1,199 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+
+package io.warp10.script.ext.influxdb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+
+/**
+ * End to end throughput of INFLUXDB.UPDATE, INFLUXDB.FETCH and INFLUXDB.FLUX against the in-process emulator.
+ *
+ * The 'points' secondary result is the number of datapoints written or read per second, 'errors' the
+ * number of calls failed by the error injection. Run with
+ * -Pjmh.profilers=gc to also report the allocation rates, gc.alloc.rate.norm being the number of
+ * bytes allocated per call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class LoadBenchmark {
+
+  private static final String TOKEN = "token";
+  private static final String ORG = "org";
+
+  @Param({ "10", "100" })
+  public int series;
+
+  @Param({ "1000", "10000" })
+  public int points;
+
+  /**
+   * Delay (in ms) of each response of the emulator
+   */
+  @Param({ "0", "5" })
+  public long latency;
+
+  /**
+   * Fraction of the requests failed by the emulator
+   */
+  @Param({ "0.0" })
+  public double errorRate;
+
+  /**
+   * Datapoints processed by the successful calls and failed calls, reported per second
+   */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  public static class Counters {
+    public long points;
+    public long errors;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      points = 0L;
+      errors = 0L;
+    }
+  }
+
+  private InfluxDBEmulator emulator;
+  private List<Object> data;
+
+  private final INFLUXDBUPDATE update = new INFLUXDBUPDATE("INFLUXDB.UPDATE");
+  private final INFLUXDBFETCH fetch = new INFLUXDBFETCH("INFLUXDB.FETCH");
+  private final INFLUXDBFLUX flux = new INFLUXDBFLUX("INFLUXDB.FLUX");
+
+  @Setup
+  public void setup() throws IOException {
+    emulator = new InfluxDBEmulator();
+    emulator.setLatency(latency);
+    // InfluxDB answers 503 with a Retry-After header when it is overloaded
+    emulator.setErrorRate(errorRate, 503, 1L);
+    emulator.setDataset(series, points);
+    data = new ArrayList<Object>(Arrays.asList(BenchmarkData.series(series, points, BenchmarkData.ValueType.DOUBLE, false)));
+  }
+
+  @TearDown
+  public void tearDown() {
+    emulator.close();
+  }
+
+  /**
+   * Each thread has its own stack, as each script execution does
+   */
+  @State(Scope.Thread)
+  public static class Stack {
+    WarpScriptStack stack;
+
+    @Setup
+    public void setup() {
+      stack = BenchmarkData.stack();
+    }
+  }
+
+  @Benchmark
+  public void update(Stack s, Counters counters) {
+    Map<Object,Object> params = new HashMap<Object,Object>();
+    params.put(INFLUXDBFLUX.KEY_URL, emulator.url());
+    params.put(INFLUXDBFLUX.KEY_TOKEN, TOKEN);
+    params.put(INFLUXDBFLUX.KEY_ORG, ORG);
+    params.put("bucket", "bucket");
+    params.put("measurement", "measurement");
+
+    try {
+      s.stack.push(data);
+      s.stack.push(params);
+      update.apply(s.stack);
+      counters.points += (long) series * points;
+    } catch (WarpScriptException wse) {
+      counters.errors++;
+    }
+  }
+
+  @Benchmark
+  public Object fetch(Stack s, Counters counters) {
+    Map<Object,Object> params = new HashMap<Object,Object>();
+    params.put(INFLUXDBFLUX.KEY_URL, emulator.url());
+    params.put(INFLUXDBFLUX.KEY_USER, "user");
+    params.put(INFLUXDBFLUX.KEY_PASSWORD, "password");
+    params.put(INFLUXDBFETCH.KEY_DB, "db");
+    params.put("influxql", "SELECT value FROM measurement GROUP BY *");
+
+    try {
+      s.stack.push(params);
+      fetch.apply(s.stack);
+      List<List<GeoTimeSerie>> result = (List<List<GeoTimeSerie>>) s.stack.pop();
+      for (List<GeoTimeSerie> statement: result) {
+        counters.points += count(statement);
+      }
+      return result;
+    } catch (WarpScriptException wse) {
+      counters.errors++;
+      return wse;
+    }
+  }
+
+  @Benchmark
+  public Object flux(Stack s, Counters counters) {
+    Map<Object,Object> params = new HashMap<Object,Object>();
+    params.put(INFLUXDBFLUX.KEY_URL, emulator.url());
+    params.put(INFLUXDBFLUX.KEY_TOKEN, TOKEN);
+    params.put(INFLUXDBFLUX.KEY_ORG, ORG);
+    params.put("flux", "from(bucket: \"bucket\") |> range(start: 0)");
+
+    try {
+      s.stack.push(params);
+      flux.apply(s.stack);
+      List<GeoTimeSerie> result = (List<GeoTimeSerie>) s.stack.pop();
+      counters.points += count(result);
+      return result;
+    } catch (WarpScriptException wse) {
+      counters.errors++;
+      return wse;
+    }
+  }
+
+  private static long count(List<GeoTimeSerie> series) {
+    long n = 0L;
+    for (GeoTimeSerie gts: series) {
+      n += GTSHelper.nvalues(gts);
+    }
+    return n;
+  }
+}
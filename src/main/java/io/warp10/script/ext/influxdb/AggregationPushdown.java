@@ -0,0 +1,341 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.ext.influxdb;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.store.Constants;
+import io.warp10.script.WarpScriptException;
+
+/**
+ * Compiles structured selection and aggregation parameters into an InfluxQL or Flux query
+ * which aggregates the data server side, and marks the resulting series as bucketized.
+ *
+ * The [start, end) range is extended to whole buckets aligned on the epoch, which is how
+ * InfluxDB aligns its windows. Each bucket is timestamped at the end of its window.
+ */
+class AggregationPushdown {
+
+  static final String KEY_AGGREGATOR = "aggregator";
+  static final String KEY_MEASUREMENT = "measurement";
+  static final String KEY_FIELD = "field";
+  static final String KEY_TAGS = "tags";
+  static final String KEY_BUCKETSPAN = "bucketspan";
+  static final String KEY_BUCKET = "bucket";
+
+  /**
+   * Aggregators available both as InfluxQL and Flux functions
+   */
+  private static final Set<String> AGGREGATORS = new HashSet<String>(Arrays.asList(
+      "mean", "median", "mode", "sum", "count", "min", "max", "first", "last", "spread", "stddev"));
+
+  /**
+   * Maximum number of buckets a single call may request
+   */
+  private static final long MAX_BUCKETS = 10000000L;
+
+  private final String aggregator;
+  private final String measurement;
+  private final List<String> fields;
+  private final Map<String,List<String>> tags;
+  private final String bucket;
+  private final long start;
+  private final long end;
+  private final long bucketspan;
+
+  private AggregationPushdown(String aggregator, String measurement, List<String> fields, Map<String,List<String>> tags, String bucket, long start, long end, long bucketspan) {
+    this.aggregator = aggregator;
+    this.measurement = measurement;
+    this.fields = fields;
+    this.tags = tags;
+    this.bucket = bucket;
+    this.start = start;
+    this.end = end;
+    this.bucketspan = bucketspan;
+  }
+
+  /**
+   * Extract the aggregation parameters, returns null if no aggregation was requested
+   *
+   * @param flux true if the query will be a Flux query, false for InfluxQL
+   */
+  static AggregationPushdown fromParams(String functionName, Map<Object,Object> params, boolean flux) throws WarpScriptException {
+    if (!params.containsKey(KEY_AGGREGATOR)) {
+      return null;
+    }
+
+    if (!AGGREGATORS.contains(params.get(KEY_AGGREGATOR))) {
+      throw new WarpScriptException(functionName + " expects '" + KEY_AGGREGATOR + "' to be one of " + new TreeSet<String>(AGGREGATORS) + ".");
+    }
+
+    String aggregator = (String) params.get(KEY_AGGREGATOR);
+
+    if (params.containsKey(ParallelFetch.KEY_SLICES)) {
+      throw new WarpScriptException(functionName + " cannot use '" + KEY_AGGREGATOR + "' and '" + ParallelFetch.KEY_SLICES + "' together.");
+    }
+
+    if (!(params.get(KEY_MEASUREMENT) instanceof String)) {
+      throw new WarpScriptException(functionName + " missing valid '" + KEY_MEASUREMENT + "' parameter.");
+    }
+
+    String measurement = (String) params.get(KEY_MEASUREMENT);
+
+    List<String> fields = strings(functionName, KEY_FIELD, params.get(KEY_FIELD));
+
+    // InfluxQL needs explicit fields to name the aggregated columns after them
+    if (!flux && fields.isEmpty()) {
+      throw new WarpScriptException(functionName + " missing valid '" + KEY_FIELD + "' parameter.");
+    }
+
+    Map<String,List<String>> tags = new TreeMap<String,List<String>>();
+
+    if (params.containsKey(KEY_TAGS)) {
+      if (!(params.get(KEY_TAGS) instanceof Map)) {
+        throw new WarpScriptException(functionName + " expects '" + KEY_TAGS + "' to be a map of tag names to a STRING value or a list thereof.");
+      }
+      for (Map.Entry<Object,Object> entry: ((Map<Object,Object>) params.get(KEY_TAGS)).entrySet()) {
+        if (!(entry.getKey() instanceof String)) {
+          throw new WarpScriptException(functionName + " expects '" + KEY_TAGS + "' to be a map of tag names to a STRING value or a list thereof.");
+        }
+        List<String> values = strings(functionName, KEY_TAGS, entry.getValue());
+        if (values.isEmpty()) {
+          throw new WarpScriptException(functionName + " expects at least one value for tag '" + entry.getKey() + "'.");
+        }
+        tags.put((String) entry.getKey(), values);
+      }
+    }
+
+    String bucket = null;
+
+    if (flux) {
+      if (!(params.get(KEY_BUCKET) instanceof String)) {
+        throw new WarpScriptException(functionName + " missing valid '" + KEY_BUCKET + "' parameter.");
+      }
+      bucket = (String) params.get(KEY_BUCKET);
+    }
+
+    if (!(params.get(KEY_BUCKETSPAN) instanceof Long) || ((Long) params.get(KEY_BUCKETSPAN)) <= 0) {
+      throw new WarpScriptException(functionName + " expects a strictly positive LONG value for the '" + KEY_BUCKETSPAN + "' parameter.");
+    }
+
+    long bucketspan = (Long) params.get(KEY_BUCKETSPAN);
+
+    if (!(params.get(ParallelFetch.KEY_START) instanceof Long) || !(params.get(ParallelFetch.KEY_END) instanceof Long)) {
+      throw new WarpScriptException(functionName + " expects LONG '" + ParallelFetch.KEY_START + "' and '" + ParallelFetch.KEY_END + "' parameters when '" + KEY_AGGREGATOR + "' is set.");
+    }
+
+    long start = (Long) params.get(ParallelFetch.KEY_START);
+    long end = (Long) params.get(ParallelFetch.KEY_END);
+
+    if (end <= start) {
+      throw new WarpScriptException(functionName + " expects '" + ParallelFetch.KEY_END + "' to be strictly greater than '" + ParallelFetch.KEY_START + "'.");
+    }
+
+    // Align the range on whole buckets
+    start = Math.floorDiv(start, bucketspan) * bucketspan;
+    end = Math.floorDiv(end - 1, bucketspan) * bucketspan + bucketspan;
+
+    if ((end - start) / bucketspan > MAX_BUCKETS) {
+      throw new WarpScriptException(functionName + " cannot request more than " + MAX_BUCKETS + " buckets.");
+    }
+
+    return new AggregationPushdown(aggregator, measurement, fields, tags, bucket, start, end, bucketspan);
+  }
+
+  private static List<String> strings(String functionName, String key, Object value) throws WarpScriptException {
+    List<String> strings = new ArrayList<String>();
+
+    if (null == value) {
+      return strings;
+    } else if (value instanceof String) {
+      strings.add((String) value);
+    } else if (value instanceof List) {
+      for (Object elt: (List<Object>) value) {
+        if (!(elt instanceof String)) {
+          throw new WarpScriptException(functionName + " expects '" + key + "' values to be STRINGs.");
+        }
+        strings.add((String) elt);
+      }
+    } else {
+      throw new WarpScriptException(functionName + " expects '" + key + "' to be a STRING or a list thereof.");
+    }
+
+    return strings;
+  }
+
+  /**
+   * Build the InfluxQL query, buckets are timestamped at the start of their window
+   */
+  String influxql() {
+    long units = 1000000000L / Constants.TIME_UNITS_PER_S;
+
+    StringBuilder sb = new StringBuilder();
+    sb.append("SELECT ");
+    for (int i = 0; i < fields.size(); i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      sb.append(aggregator).append('(');
+      identifier(sb, fields.get(i));
+      sb.append(") AS ");
+      identifier(sb, fields.get(i));
+    }
+    sb.append(" FROM ");
+    identifier(sb, measurement);
+    sb.append(" WHERE time >= ").append(start * units).append(" AND time < ").append(end * units);
+    for (Map.Entry<String,List<String>> tag: tags.entrySet()) {
+      sb.append(" AND (");
+      for (int i = 0; i < tag.getValue().size(); i++) {
+        if (i > 0) {
+          sb.append(" OR ");
+        }
+        identifier(sb, tag.getKey());
+        sb.append(" = ");
+        literal(sb, tag.getValue().get(i));
+      }
+      sb.append(')');
+    }
+    sb.append(" GROUP BY time(").append(bucketspan * units).append("ns), * fill(none)");
+
+    return sb.toString();
+  }
+
+  /**
+   * Build the Flux query, buckets are timestamped at the end of their window
+   */
+  String flux() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("from(bucket: ");
+    fluxString(sb, bucket);
+    sb.append(")\n  |> range(start: ").append(rfc3339(start)).append(", stop: ").append(rfc3339(end)).append(")\n");
+    sb.append("  |> filter(fn: (r) => r._measurement == ");
+    fluxString(sb, measurement);
+    if (!fields.isEmpty()) {
+      sb.append(" and (");
+      for (int i = 0; i < fields.size(); i++) {
+        if (i > 0) {
+          sb.append(" or ");
+        }
+        sb.append("r._field == ");
+        fluxString(sb, fields.get(i));
+      }
+      sb.append(')');
+    }
+    for (Map.Entry<String,List<String>> tag: tags.entrySet()) {
+      sb.append(" and (");
+      for (int i = 0; i < tag.getValue().size(); i++) {
+        if (i > 0) {
+          sb.append(" or ");
+        }
+        sb.append("r[");
+        fluxString(sb, tag.getKey());
+        sb.append("] == ");
+        fluxString(sb, tag.getValue().get(i));
+      }
+      sb.append(')');
+    }
+    sb.append(")\n");
+    sb.append("  |> aggregateWindow(every: ").append(bucketspan * (1000000000L / Constants.TIME_UNITS_PER_S)).append("ns, fn: ").append(aggregator).append(", createEmpty: false)\n");
+
+    return sb.toString();
+  }
+
+  /**
+   * Mark the series as bucketized, replacing them in the list
+   *
+   * @param windowStart true if the buckets are timestamped at the start of their window and need to be shifted
+   */
+  void bucketize(List<GeoTimeSerie> series, boolean windowStart) {
+    for (int i = 0; i < series.size(); i++) {
+      series.set(i, bucketize(series.get(i), windowStart));
+    }
+  }
+
+  /**
+   * Mark a series as bucketized
+   *
+   * @param windowStart true if the buckets are timestamped at the start of their window and need to be shifted
+   * @return the bucketized series, which is a new instance if it had to be shifted
+   */
+  GeoTimeSerie bucketize(GeoTimeSerie gts, boolean windowStart) {
+    if (windowStart) {
+      int n = GTSHelper.nvalues(gts);
+      GeoTimeSerie shifted = gts.cloneEmpty(n);
+      for (int j = 0; j < n; j++) {
+        GTSHelper.setValue(shifted, GTSHelper.tickAtIndex(gts, j) + bucketspan, GTSHelper.locationAtIndex(gts, j), GTSHelper.elevationAtIndex(gts, j), GTSHelper.valueAtIndex(gts, j), false);
+      }
+      gts = shifted;
+    }
+
+    GTSHelper.setLastBucket(gts, end);
+    GTSHelper.setBucketSpan(gts, bucketspan);
+    GTSHelper.setBucketCount(gts, (int) ((end - start) / bucketspan));
+
+    return gts;
+  }
+
+  private static void identifier(StringBuilder sb, String s) {
+    sb.append('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if ('"' == c || '\\' == c) {
+        sb.append('\\');
+      }
+      sb.append(c);
+    }
+    sb.append('"');
+  }
+
+  private static void literal(StringBuilder sb, String s) {
+    sb.append('\'');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if ('\'' == c || '\\' == c) {
+        sb.append('\\');
+      }
+      sb.append(c);
+    }
+    sb.append('\'');
+  }
+
+  private static void fluxString(StringBuilder sb, String s) {
+    sb.append('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if ('"' == c || '\\' == c || ('$' == c && i + 1 < s.length() && '{' == s.charAt(i + 1))) {
+        sb.append('\\');
+      }
+      sb.append(c);
+    }
+    sb.append('"');
+  }
+
+  private static String rfc3339(long ts) {
+    long nanos = ts * (1000000000L / Constants.TIME_UNITS_PER_S);
+    return Instant.ofEpochSecond(Math.floorDiv(nanos, 1000000000L), Math.floorMod(nanos, 1000000000L)).toString();
+  }
+}
@@ -0,0 +1,109 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.ext.influxdb;
+
+import java.io.IOException;
+import java.util.List;
+
+import okhttp3.Credentials;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * Adds the credentials of a registry key to the requests issued directly by the extension.
+ *
+ * InfluxDB 1.x and token authenticated 2.x requests carry the credentials in an
+ * Authorization header. For InfluxDB 2.x with a user and password, a session is
+ * opened via /api/v2/signin and its cookie is sent with subsequent requests, the
+ * session is renewed when the server answers 401.
+ */
+class AuthInterceptor implements Interceptor {
+
+  private static final MediaType EMPTY = MediaType.parse("text/plain");
+
+  private final InfluxDBClientRegistry.Key key;
+
+  private String session = null;
+
+  AuthInterceptor(InfluxDBClientRegistry.Key key) {
+    this.key = key;
+  }
+
+  @Override
+  public Response intercept(Chain chain) throws IOException {
+    Request request = chain.request();
+
+    if (!key.isV2()) {
+      if (null != key.getUser() && null != key.getPassword()) {
+        request = request.newBuilder().header("Authorization", Credentials.basic(key.getUser(), key.getPassword())).build();
+      }
+      return chain.proceed(request);
+    }
+
+    if (null != key.getToken()) {
+      return chain.proceed(request.newBuilder().header("Authorization", "Token " + key.getToken()).build());
+    }
+
+    String cookie = session(chain, false);
+    Response response = chain.proceed(request.newBuilder().header("Cookie", cookie).build());
+
+    if (401 == response.code()) {
+      response.close();
+      cookie = session(chain, true);
+      response = chain.proceed(request.newBuilder().header("Cookie", cookie).build());
+    }
+
+    return response;
+  }
+
+  private synchronized String session(Chain chain, boolean renew) throws IOException {
+    if (null != session && !renew) {
+      return session;
+    }
+
+    HttpUrl url = HttpUrl.parse(key.getUrl()).newBuilder().addPathSegments("api/v2/signin").build();
+
+    Request signin = new Request.Builder()
+        .url(url)
+        .header("Authorization", Credentials.basic(key.getUser(), key.getPassword()))
+        .post(RequestBody.create(EMPTY, new byte[0]))
+        .build();
+
+    try (Response response = chain.proceed(signin)) {
+      if (!response.isSuccessful()) {
+        throw new IOException("Unable to sign in as '" + key.getUser() + "', server returned " + response.code() + ".");
+      }
+
+      List<String> cookies = response.headers("Set-Cookie");
+      StringBuilder sb = new StringBuilder();
+      for (String cookie: cookies) {
+        if (sb.length() > 0) {
+          sb.append("; ");
+        }
+        int idx = cookie.indexOf(';');
+        sb.append(idx >= 0 ? cookie.substring(0, idx) : cookie);
+      }
+      session = sb.toString();
+    }
+
+    return session;
+  }
+}
@@ -0,0 +1,315 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.ext.influxdb;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Field;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+import okhttp3.Call;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.ForwardingSource;
+import okio.Okio;
+
+/**
+ * Bounds the HTTP calls issued on behalf of a single function call.
+ *
+ * Requests tagged with a guard are tracked by {@link #INTERCEPTOR} until their response is closed.
+ * A watchdog cancels them once the deadline of the guard has expired, the thread executing the
+ * script has been interrupted (aborted execution, TIMEBOX, ...) or the stack has been signaled
+ * to stop or to be killed. Cancelling a call fails any pending
+ * read of its response, so decoding stops right away instead of waiting for the read timeout.
+ *
+ * The time spent in the tracked calls, until their headers are received and then reading their
+ * responses, is accounted so closing the guard records the call in the extension's metrics.
+ */
+class CallGuard implements AutoCloseable {
+
+  static final String KEY_DEADLINE = "deadline";
+
+  /**
+   * Period (in ms) at which the watchdog checks the guards
+   */
+  private static final long WATCH_PERIOD = 50L;
+
+  /**
+   * Fields holding the pending signal of the classes of stacks, null when a class has none
+   */
+  private static final Map<Class<?>,Field> signalFields = new ConcurrentHashMap<Class<?>,Field>();
+
+  /**
+   * Guards of the function calls in progress
+   */
+  private static final Set<CallGuard> guards = ConcurrentHashMap.newKeySet();
+
+  static {
+    ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r);
+      t.setName("[InfluxDB call watchdog]");
+      t.setDaemon(true);
+      return t;
+    });
+    watchdog.scheduleAtFixedRate(() -> {
+      for (CallGuard guard: guards) {
+        guard.check();
+      }
+    }, WATCH_PERIOD, WATCH_PERIOD, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Application interceptor tracking the calls of tagged requests, added to every client of the registry
+   */
+  static final Interceptor INTERCEPTOR = chain -> {
+    CallGuard guard = chain.request().tag(CallGuard.class);
+
+    if (null == guard) {
+      return chain.proceed(chain.request());
+    }
+
+    Call call = chain.call();
+    guard.watch(call);
+
+    long start = System.nanoTime();
+    Response response;
+    try {
+      response = chain.proceed(chain.request());
+    } catch (IOException ioe) {
+      guard.calls.remove(call);
+      throw ioe;
+    } finally {
+      guard.network.addAndGet(System.nanoTime() - start);
+    }
+
+    ResponseBody body = response.body();
+    if (null == body) {
+      guard.calls.remove(call);
+      return response;
+    }
+
+    // Stop tracking the call once its response has been consumed
+    ResponseBody tracked = ResponseBody.create(Okio.buffer(new ForwardingSource(body.source()) {
+      @Override
+      public long read(Buffer sink, long byteCount) throws IOException {
+        long start = System.nanoTime();
+        try {
+          return super.read(sink, byteCount);
+        } finally {
+          guard.network.addAndGet(System.nanoTime() - start);
+        }
+      }
+
+      @Override
+      public void close() throws IOException {
+        guard.calls.remove(call);
+        super.close();
+      }
+    }), body.contentType(), body.contentLength());
+
+    return response.newBuilder().body(tracked).build();
+  };
+
+  private final String functionName;
+  private final Thread thread;
+  private final WarpScriptStack stack;
+  private final long timeout;
+  private final long deadline;
+  private final long start = System.nanoTime();
+
+  private final Set<Call> calls = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Time (in ns) spent in the tracked calls
+   */
+  private final AtomicLong network = new AtomicLong();
+
+  private volatile boolean failed = false;
+
+  /**
+   * Were the calls cancelled because the stack was signaled
+   */
+  private volatile boolean signaled = false;
+
+  /**
+   * Why the calls were cancelled, null while they are allowed to run
+   */
+  private volatile String reason = null;
+
+  /**
+   * @param stack stack executing the function, whose signals cancel the calls, may be null
+   * @param timeout maximum duration (in ms) of the function call, 0 for no deadline
+   */
+  private CallGuard(String functionName, WarpScriptStack stack, long timeout) {
+    this.functionName = functionName;
+    this.thread = Thread.currentThread();
+    this.stack = stack;
+    this.timeout = timeout;
+    this.deadline = timeout > 0L ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+    guards.add(this);
+  }
+
+  /**
+   * Create a guard for the calling thread and stack, with the deadline given in params or the default one
+   *
+   * @param params parameters of the function, may be null
+   * @param stack stack executing the function, may be null
+   */
+  static CallGuard fromParams(String functionName, Map<Object,Object> params, WarpScriptStack stack) throws WarpScriptException {
+    long timeout = InfluxDBWarpScriptExtension.getDefaultDeadline();
+
+    if (null != params && params.containsKey(KEY_DEADLINE)) {
+      if (!(params.get(KEY_DEADLINE) instanceof Long) || ((Long) params.get(KEY_DEADLINE)) <= 0) {
+        throw new WarpScriptException(functionName + " expects a strictly positive LONG value for the '" + KEY_DEADLINE + "' parameter.");
+      }
+      timeout = (Long) params.get(KEY_DEADLINE);
+    }
+
+    return new CallGuard(functionName, stack, timeout);
+  }
+
+  /**
+   * Tag a request so its call is cancelled with the others of this guard
+   */
+  Request tag(Request request) {
+    return request.newBuilder().tag(CallGuard.class, this).build();
+  }
+
+  /**
+   * Build the exception reported for an I/O error, mentioning the cancellation if it was caused by this guard.
+   * When the stack was signaled, the signal is handled instead so STOP and KILL propagate as such.
+   */
+  WarpScriptException error(String message, IOException ioe) throws WarpScriptException {
+    failed = true;
+    if (signaled) {
+      stack.handleSignal();
+    }
+    String cause = reason;
+    if (null != cause) {
+      message = message + " Calls were cancelled: " + cause + ".";
+    }
+    return new WarpScriptException(message, ioe);
+  }
+
+  /**
+   * Fail if the deadline has expired or the execution has been interrupted, for callers waiting outside of HTTP calls
+   */
+  void checkpoint() throws InterruptedIOException {
+    check();
+    if (null != reason) {
+      throw new InterruptedIOException(reason);
+    }
+  }
+
+  /**
+   * Has the deadline expired or the execution been interrupted
+   */
+  boolean cancelled() {
+    check();
+    return null != reason;
+  }
+
+  private void watch(Call call) throws IOException {
+    calls.add(call);
+    check();
+    if (null != reason) {
+      calls.remove(call);
+      throw new InterruptedIOException(reason);
+    }
+  }
+
+  private void check() {
+    if (null == reason) {
+      if (thread.isInterrupted()) {
+        reason = "execution interrupted";
+      } else if (pendingSignal()) {
+        signaled = true;
+        reason = "execution stopped";
+      } else if (System.currentTimeMillis() >= deadline) {
+        reason = "deadline of " + timeout + " ms exceeded";
+      }
+    }
+
+    if (null != reason) {
+      for (Call call: calls) {
+        call.cancel();
+      }
+    }
+  }
+
+  /**
+   * Has the stack been signaled to stop or to be killed, STOP and KILL only interrupt the script between two functions.
+   * The signal is only read, it is handled by the thread executing the script in {@link #error}.
+   */
+  private boolean pendingSignal() {
+    if (null == stack) {
+      return false;
+    }
+    Field field = signalFields.computeIfAbsent(stack.getClass(), CallGuard::signalField);
+    if (null == field) {
+      return false;
+    }
+    try {
+      return null != field.get(stack);
+    } catch (IllegalAccessException iae) {
+      return false;
+    }
+  }
+
+  /**
+   * Find the field holding the pending signal of a class of stacks, WarpScriptStack only exposes the handling of signals
+   */
+  private static Field signalField(Class<?> clazz) {
+    for (Class<?> c = clazz; null != c; c = c.getSuperclass()) {
+      for (Field field: c.getDeclaredFields()) {
+        if (WarpScriptStack.Signal.class == field.getType()) {
+          try {
+            field.setAccessible(true);
+            return field;
+          } catch (RuntimeException re) {
+            return null;
+          }
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Cancel the calls still in progress, such as those of slices abandoned after a failure, and record the function call
+   */
+  @Override
+  public void close() {
+    guards.remove(this);
+    for (Call call: calls) {
+      call.cancel();
+    }
+    calls.clear();
+    InfluxDBWarpScriptExtension.getMetrics().call(functionName, System.nanoTime() - start, network.get(), failed);
+  }
+}
@@ -0,0 +1,271 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.ext.influxdb;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+
+/**
+ * Limits on the datapoints, series and response bytes a function call may decode.
+ *
+ * Each call has its own limits, given as parameters, and shares those of its stack: the
+ * datapoints and series are accounted in the fetch and GTS counters of Warp 10, which are
+ * bounded by the stack's fetch and GTS limits, the bytes in a counter bounded by
+ * influxdb.stack.maxbytes. Decoding fails as soon as one of the limits is exceeded.
+ */
+class FetchBudget {
+
+  static final String KEY_MAXPOINTS = "maxpoints";
+  static final String KEY_MAXSERIES = "maxseries";
+  static final String KEY_MAXBYTES = "maxbytes";
+
+  /**
+   * Stack attribute holding the number of response bytes read by the stack
+   */
+  private static final String ATTRIBUTE_BYTES = "influxdb.bytes";
+
+  /**
+   * Maximum number of datapoints a meter reserves at once
+   */
+  private static final long RESERVATION = 4096L;
+
+  /**
+   * Thrown when a limit is exceeded
+   */
+  static class ExceededException extends IOException {
+    ExceededException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * Counts the datapoints of a single decoder, reserving them from the budget by chunks so the
+   * shared counters are only updated once in a while
+   */
+  class Meter {
+    private long allowance = 0L;
+
+    void point() throws ExceededException {
+      if (--allowance < 0L) {
+        allowance = reserve() - 1L;
+      }
+    }
+
+    /**
+     * Give the unused datapoints back to the budget
+     */
+    void close() {
+      if (allowance > 0L) {
+        release(allowance);
+        allowance = 0L;
+      }
+    }
+  }
+
+  private final long maxPoints;
+  private final long maxSeries;
+  private final long maxBytes;
+
+  private final long stackMaxPoints;
+  private final long stackMaxSeries;
+  private final long stackMaxBytes;
+
+  private final AtomicLong points = new AtomicLong();
+  private final AtomicLong series = new AtomicLong();
+  private final AtomicLong bytes = new AtomicLong();
+
+  private final AtomicLong stackPoints;
+  private final AtomicLong stackSeries;
+  private final AtomicLong stackBytes;
+
+  private FetchBudget(long maxPoints, long maxSeries, long maxBytes, long stackMaxPoints, long stackMaxSeries, long stackMaxBytes, AtomicLong stackPoints, AtomicLong stackSeries, AtomicLong stackBytes) {
+    this.maxPoints = maxPoints;
+    this.maxSeries = maxSeries;
+    this.maxBytes = maxBytes;
+    this.stackMaxPoints = stackMaxPoints;
+    this.stackMaxSeries = stackMaxSeries;
+    this.stackMaxBytes = stackMaxBytes;
+    this.stackPoints = stackPoints;
+    this.stackSeries = stackSeries;
+    this.stackBytes = stackBytes;
+  }
+
+  /**
+   * Build the budget of a call from its parameters and the limits of its stack
+   *
+   * @param params parameters of the function, may be null
+   */
+  static FetchBudget fromParams(String functionName, WarpScriptStack stack, Map<Object,Object> params) throws WarpScriptException {
+    long maxPoints = limit(functionName, params, KEY_MAXPOINTS);
+    long maxSeries = limit(functionName, params, KEY_MAXSERIES);
+    long maxBytes = limit(functionName, params, KEY_MAXBYTES);
+
+    AtomicLong stackPoints = counter(stack, WarpScriptStack.ATTRIBUTE_FETCH_COUNT);
+    AtomicLong stackSeries = counter(stack, WarpScriptStack.ATTRIBUTE_GTS_COUNT);
+    AtomicLong stackBytes = counter(stack, ATTRIBUTE_BYTES);
+
+    long stackMaxPoints = stack.getAttribute(WarpScriptStack.ATTRIBUTE_FETCH_LIMIT) instanceof Long ? (Long) stack.getAttribute(WarpScriptStack.ATTRIBUTE_FETCH_LIMIT) : Long.MAX_VALUE;
+    long stackMaxSeries = stack.getAttribute(WarpScriptStack.ATTRIBUTE_GTS_LIMIT) instanceof Long ? (Long) stack.getAttribute(WarpScriptStack.ATTRIBUTE_GTS_LIMIT) : Long.MAX_VALUE;
+    long stackMaxBytes = InfluxDBWarpScriptExtension.getStackMaxBytes();
+
+    return new FetchBudget(maxPoints, maxSeries, maxBytes, stackMaxPoints, stackMaxSeries, stackMaxBytes, stackPoints, stackSeries, stackBytes);
+  }
+
+  private static long limit(String functionName, Map<Object,Object> params, String key) throws WarpScriptException {
+    if (null == params || !params.containsKey(key)) {
+      return Long.MAX_VALUE;
+    }
+    if (!(params.get(key) instanceof Long) || ((Long) params.get(key)) < 0) {
+      throw new WarpScriptException(functionName + " expects a positive LONG value for the '" + key + "' parameter.");
+    }
+    return (Long) params.get(key);
+  }
+
+  /**
+   * Retrieve a counter of the stack, creating it if the stack does not have one
+   */
+  private static AtomicLong counter(WarpScriptStack stack, String attribute) {
+    synchronized(stack) {
+      Object counter = stack.getAttribute(attribute);
+      if (!(counter instanceof AtomicLong)) {
+        counter = new AtomicLong();
+        stack.setAttribute(attribute, counter);
+      }
+      return (AtomicLong) counter;
+    }
+  }
+
+  Meter meter() {
+    return new Meter();
+  }
+
+  /**
+   * @return the number of datapoints decoded so far, including those reserved by meters which are not closed yet
+   */
+  long points() {
+    return points.get();
+  }
+
+  /**
+   * Account for a new series
+   */
+  void series() throws ExceededException {
+    if (series.incrementAndGet() > maxSeries) {
+      throw new ExceededException("Maximum number of series (" + maxSeries + ") exceeded.");
+    }
+    if (stackSeries.incrementAndGet() > stackMaxSeries) {
+      throw new ExceededException("Maximum number of series of the stack (" + stackMaxSeries + ") exceeded.");
+    }
+  }
+
+  /**
+   * Account for series handed out without being decoded, such as the results served by the cache
+   *
+   * @param bytes estimated size of the series, standing for the bytes of the response they were decoded from
+   */
+  void charge(long series, long points, long bytes) throws ExceededException {
+    if (this.series.addAndGet(series) > maxSeries) {
+      throw new ExceededException("Maximum number of series (" + maxSeries + ") exceeded.");
+    }
+    if (stackSeries.addAndGet(series) > stackMaxSeries) {
+      throw new ExceededException("Maximum number of series of the stack (" + stackMaxSeries + ") exceeded.");
+    }
+    if (this.points.addAndGet(points) > maxPoints) {
+      throw new ExceededException("Maximum number of datapoints (" + maxPoints + ") exceeded.");
+    }
+    if (stackPoints.addAndGet(points) > stackMaxPoints) {
+      throw new ExceededException("Maximum number of datapoints of the stack (" + stackMaxPoints + ") exceeded.");
+    }
+    if (this.bytes.addAndGet(bytes) > maxBytes) {
+      throw new ExceededException("Maximum number of response bytes (" + maxBytes + ") exceeded.");
+    }
+    if (stackBytes.addAndGet(bytes) > stackMaxBytes) {
+      throw new ExceededException("Maximum number of response bytes of the stack (" + stackMaxBytes + ") exceeded.");
+    }
+  }
+
+  /**
+   * Wrap the source of a response so its bytes are accounted as they are read
+   */
+  BufferedSource source(BufferedSource source) {
+    return Okio.buffer(new ForwardingSource(source) {
+      @Override
+      public long read(Buffer sink, long byteCount) throws IOException {
+        long n = super.read(sink, byteCount);
+        if (n > 0L) {
+          if (bytes.addAndGet(n) > maxBytes) {
+            throw new ExceededException("Maximum number of response bytes (" + maxBytes + ") exceeded.");
+          }
+          if (stackBytes.addAndGet(n) > stackMaxBytes) {
+            throw new ExceededException("Maximum number of response bytes of the stack (" + stackMaxBytes + ") exceeded.");
+          }
+        }
+        return n;
+      }
+    });
+  }
+
+  /**
+   * Reserve datapoints for a meter, up to RESERVATION. Concurrent meters (slices) may hold
+   * reservations they do not use, so a call may fail slightly before reaching its limits.
+   */
+  private long reserve() throws ExceededException {
+    long granted = take(points, maxPoints, RESERVATION);
+    if (0L == granted) {
+      throw new ExceededException("Maximum number of datapoints (" + maxPoints + ") exceeded.");
+    }
+
+    long stackGranted = take(stackPoints, stackMaxPoints, granted);
+    if (stackGranted < granted) {
+      points.addAndGet(stackGranted - granted);
+    }
+    if (0L == stackGranted) {
+      throw new ExceededException("Maximum number of datapoints of the stack (" + stackMaxPoints + ") exceeded.");
+    }
+
+    return stackGranted;
+  }
+
+  /**
+   * Add up to wanted to a counter without exceeding max, return what was added
+   */
+  private static long take(AtomicLong counter, long max, long wanted) {
+    while (true) {
+      long current = counter.get();
+      long granted = Math.min(wanted, max - current);
+      if (granted <= 0L) {
+        return 0L;
+      }
+      if (counter.compareAndSet(current, current + granted)) {
+        return granted;
+      }
+    }
+  }
+
+  private void release(long unused) {
+    points.addAndGet(-unused);
+    stackPoints.addAndGet(-unused);
+  }
+}
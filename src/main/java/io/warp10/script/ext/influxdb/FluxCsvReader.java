@@ -0,0 +1,362 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.ext.influxdb;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+
+import okio.BufferedSource;
+
+/**
+ * Reads the records of a CSV stream into a reusable byte buffer and exposes their fields
+ * without materializing them, fields are only decoded when accessed.
+ *
+ * Quoted fields may contain commas, doubled quotes and line breaks, they are unescaped in place.
+ */
+class FluxCsvReader {
+
+  private static final int INITIAL_BUFFER_SIZE = 4096;
+
+  private final BufferedSource source;
+
+  private byte[] buf = new byte[INITIAL_BUFFER_SIZE];
+  private int len = 0;
+
+  private int[] starts = new int[16];
+  private int[] ends = new int[16];
+  private int nfields = 0;
+
+  FluxCsvReader(BufferedSource source) {
+    this.source = source;
+  }
+
+  /**
+   * Read the next record
+   *
+   * @return false when the end of the stream has been reached
+   */
+  boolean next() throws IOException {
+    len = 0;
+    nfields = 0;
+
+    if (source.exhausted()) {
+      return false;
+    }
+
+    // Read lines until the quotes are balanced
+    int quotes = 0;
+    do {
+      if (len > 0) {
+        append((byte) '\n');
+      }
+      int from = len;
+      long idx = source.indexOf((byte) '\n');
+      if (-1L == idx) {
+        // The source is exhausted, what is left is buffered
+        readInto(source.buffer().size());
+      } else {
+        readInto(idx);
+        source.skip(1L);
+      }
+      for (int i = from; i < len; i++) {
+        if ('"' == buf[i]) {
+          quotes++;
+        }
+      }
+    } while (0 != (quotes & 1) && !source.exhausted());
+
+    if (len > 0 && '\r' == buf[len - 1]) {
+      len--;
+    }
+
+    split();
+
+    return true;
+  }
+
+  /**
+   * @return true if the current record is an empty line
+   */
+  boolean isEmpty() {
+    return 0 == len;
+  }
+
+  int size() {
+    return nfields;
+  }
+
+  int length(int i) {
+    return ends[i] - starts[i];
+  }
+
+  /**
+   * Check whether field i starts with the given ASCII prefix
+   */
+  boolean startsWith(int i, String prefix) {
+    if (length(i) < prefix.length()) {
+      return false;
+    }
+    for (int j = 0; j < prefix.length(); j++) {
+      if (buf[starts[i] + j] != prefix.charAt(j)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Check whether field i has the same content as a field saved with {@link #bytes(int)}
+   */
+  boolean sameAs(int i, byte[] saved) {
+    if (null == saved || saved.length != length(i)) {
+      return false;
+    }
+    for (int j = 0; j < saved.length; j++) {
+      if (buf[starts[i] + j] != saved[j]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  byte[] bytes(int i) {
+    return Arrays.copyOfRange(buf, starts[i], ends[i]);
+  }
+
+  String string(int i) {
+    return new String(buf, starts[i], length(i), StandardCharsets.UTF_8);
+  }
+
+  long parseLong(int i) {
+    int off = starts[i];
+    int end = ends[i];
+
+    boolean negative = false;
+    if (off < end && ('-' == buf[off] || '+' == buf[off])) {
+      negative = '-' == buf[off];
+      off++;
+    }
+
+    if (off == end || end - off > 18) {
+      // Let the JDK deal with errors and values close to the limits
+      return Long.parseLong(string(i));
+    }
+
+    long value = 0L;
+    for (; off < end; off++) {
+      int digit = buf[off] - '0';
+      if (digit < 0 || digit > 9) {
+        return Long.parseLong(string(i));
+      }
+      value = value * 10L + digit;
+    }
+
+    return negative ? -value : value;
+  }
+
+  double parseDouble(int i) {
+    String s = string(i);
+    if ("+Inf".equals(s)) {
+      return Double.POSITIVE_INFINITY;
+    } else if ("-Inf".equals(s)) {
+      return Double.NEGATIVE_INFINITY;
+    }
+    return Double.parseDouble(s);
+  }
+
+  /**
+   * Parse an RFC3339 timestamp into nanoseconds since the epoch. UTC timestamps, which is what
+   * InfluxDB emits, are parsed directly, others go through java.time.
+   */
+  long parseRFC3339(int i) {
+    int off = starts[i];
+    int n = length(i);
+
+    if (n < 20 || 'Z' != buf[off + n - 1] || '-' != buf[off + 4] || '-' != buf[off + 7] || 'T' != buf[off + 10] || ':' != buf[off + 13] || ':' != buf[off + 16]) {
+      return slowRFC3339(i);
+    }
+
+    int year = digits(off, 4);
+    int month = digits(off + 5, 2);
+    int day = digits(off + 8, 2);
+    int hour = digits(off + 11, 2);
+    int minute = digits(off + 14, 2);
+    int second = digits(off + 17, 2);
+
+    if (year < 0 || month < 0 || day < 0 || hour < 0 || minute < 0 || second < 0) {
+      return slowRFC3339(i);
+    }
+
+    long nanos = 0L;
+    int pos = off + 19;
+    int end = off + n - 1;
+
+    if (pos < end) {
+      if ('.' != buf[pos] || end - pos - 1 > 9) {
+        return slowRFC3339(i);
+      }
+      int scale = 9;
+      for (pos++; pos < end; pos++) {
+        int digit = buf[pos] - '0';
+        if (digit < 0 || digit > 9) {
+          return slowRFC3339(i);
+        }
+        nanos = nanos * 10L + digit;
+        scale--;
+      }
+      for (; scale > 0; scale--) {
+        nanos *= 10L;
+      }
+    }
+
+    long seconds = daysFromCivil(year, month, day) * 86400L + hour * 3600L + minute * 60L + second;
+
+    return seconds * 1000000000L + nanos;
+  }
+
+  private long slowRFC3339(int i) {
+    try {
+      OffsetDateTime odt = OffsetDateTime.parse(string(i));
+      return odt.toEpochSecond() * 1000000000L + odt.getNano();
+    } catch (DateTimeParseException dtpe) {
+      throw new IllegalArgumentException("Invalid timestamp '" + string(i) + "'.", dtpe);
+    }
+  }
+
+  private int digits(int off, int n) {
+    int value = 0;
+    for (int i = off; i < off + n; i++) {
+      int digit = buf[i] - '0';
+      if (digit < 0 || digit > 9) {
+        return -1;
+      }
+      value = value * 10 + digit;
+    }
+    return value;
+  }
+
+  /**
+   * Number of days since 1970-01-01 of a proleptic Gregorian date
+   */
+  private static long daysFromCivil(long y, int m, int d) {
+    y -= m <= 2 ? 1 : 0;
+    long era = Math.floorDiv(y, 400L);
+    long yoe = y - era * 400L;
+    long doy = (153L * (m + (m > 2 ? -3 : 9)) + 2L) / 5L + d - 1L;
+    long doe = yoe * 365L + yoe / 4L - yoe / 100L + doy;
+    return era * 146097L + doe - 719468L;
+  }
+
+  private void readInto(long count) throws IOException {
+    if (count > Integer.MAX_VALUE - len) {
+      throw new IOException("CSV record too large.");
+    }
+    ensure(len + (int) count);
+    int remaining = (int) count;
+    while (remaining > 0) {
+      int read = source.read(buf, len, remaining);
+      if (read < 0) {
+        throw new IOException("Unexpected end of CSV stream.");
+      }
+      len += read;
+      remaining -= read;
+    }
+  }
+
+  private void append(byte b) {
+    ensure(len + 1);
+    buf[len++] = b;
+  }
+
+  private void ensure(int capacity) {
+    if (capacity > buf.length) {
+      buf = Arrays.copyOf(buf, Math.max(capacity, buf.length << 1));
+    }
+  }
+
+  /**
+   * Compute the bounds of each field, unescaping quoted fields in place
+   */
+  private void split() {
+    if (0 == len) {
+      return;
+    }
+
+    int pos = 0;
+
+    while (true) {
+      if (nfields == starts.length) {
+        starts = Arrays.copyOf(starts, nfields << 1);
+        ends = Arrays.copyOf(ends, nfields << 1);
+      }
+
+      if (pos < len && '"' == buf[pos]) {
+        // Quoted field, unescape doubled quotes by shifting the content
+        int out = pos;
+        starts[nfields] = out;
+        pos++;
+        while (pos < len) {
+          if ('"' == buf[pos]) {
+            if (pos + 1 < len && '"' == buf[pos + 1]) {
+              buf[out++] = '"';
+              pos += 2;
+              continue;
+            }
+            pos++;
+            break;
+          }
+          buf[out++] = buf[pos++];
+        }
+        ends[nfields] = out;
+        // Skip anything up to the next separator
+        while (pos < len && ',' != buf[pos]) {
+          pos++;
+        }
+      } else {
+        starts[nfields] = pos;
+        while (pos < len && ',' != buf[pos]) {
+          pos++;
+        }
+        ends[nfields] = pos;
+      }
+
+      nfields++;
+
+      if (pos >= len) {
+        break;
+      }
+
+      // Skip the separator
+      pos++;
+
+      if (pos == len) {
+        // Trailing empty field
+        if (nfields == starts.length) {
+          starts = Arrays.copyOf(starts, nfields << 1);
+          ends = Arrays.copyOf(ends, nfields << 1);
+        }
+        starts[nfields] = pos;
+        ends[nfields] = pos;
+        nfields++;
+        break;
+      }
+    }
+  }
+}
@@ -0,0 +1,537 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.ext.influxdb;
+
+import java.io.IOException;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.geoxp.GeoXPLib;
+
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.store.Constants;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Decodes a Flux annotated CSV response as it is read. The annotations of each table are
+ * parsed once, then only the _time and _value columns of the records are decoded and appended
+ * to the Geo Time Series of their table. Labels are only built when a new table starts.
+ *
+ * In geo mode the tables must have been pivoted on _field by the query, each field column other
+ * than lat/lon/elev is converted to a Geo Time Series located by the lat/lon/elev columns.
+ */
+class FluxStreamDecoder {
+
+  private static final String TABLE_LABEL = "_table";
+
+  private static final String COL_RESULT = "result";
+  private static final String COL_TABLE = "table";
+  private static final String COL_TIME = "_time";
+  private static final String COL_VALUE = "_value";
+  private static final String COL_MEASUREMENT = "_measurement";
+  private static final String COL_FIELD = "_field";
+  private static final String COL_START = "_start";
+  private static final String COL_STOP = "_stop";
+  private static final String COL_ERROR = "error";
+  private static final String COL_REFERENCE = "reference";
+
+  /**
+   * Types of the value columns
+   */
+  private static final int TYPE_STRING = 0;
+  private static final int TYPE_DOUBLE = 1;
+  private static final int TYPE_LONG = 2;
+  private static final int TYPE_UNSIGNED_LONG = 3;
+  private static final int TYPE_BOOLEAN = 4;
+  private static final int TYPE_DATETIME = 5;
+  private static final int TYPE_DURATION = 6;
+  private static final int TYPE_BINARY = 7;
+
+  /**
+   * We can use GeoTimeSerie instances because a table only contains elements of the same type
+   */
+  private final Map<Map<String,String>,GeoTimeSerie> series = new LinkedHashMap<Map<String,String>,GeoTimeSerie>();
+
+  //
+  // Schema of the current table
+  //
+  private List<String> datatypes = null;
+  private List<String> groups = null;
+  private List<String> defaults = null;
+  private boolean expectHeader = false;
+  private List<String> names = null;
+  private int resultIdx;
+  private int tableIdx;
+  private int timeIdx;
+  private int measurementIdx;
+  private int fieldIdx;
+  private int errorIdx;
+  private int latIdx;
+  private int lonIdx;
+  private int elevIdx;
+  private int elevType;
+  private List<Integer> groupIdx;
+
+  /**
+   * Columns converted to Geo Time Series and their types
+   */
+  private int[] valueIdx;
+  private int[] valueTypes;
+
+  //
+  // Table of the previous record, with the series of each value column
+  //
+  private byte[] result = null;
+  private byte[] table = null;
+  private GeoTimeSerie[] current = null;
+
+  /**
+   * Receives the series as they are completed, null if they should be retained
+   */
+  private final SeriesCallback callback;
+
+  /**
+   * Are the tables pivoted with lat/lon/elev columns
+   */
+  private final boolean geo;
+
+  /**
+   * Are the series labeled with their table number
+   */
+  private final boolean tabled;
+
+  private final FetchBudget budget;
+  private final FetchBudget.Meter meter;
+
+  private FluxStreamDecoder(SeriesCallback callback, boolean geo, boolean tabled, FetchBudget budget) {
+    this.callback = callback;
+    this.geo = geo;
+    this.tabled = tabled;
+    this.budget = budget;
+    this.meter = budget.meter();
+  }
+
+  /**
+   * Execute a Flux query and decode its result
+   */
+  static Map<Map<String,String>,GeoTimeSerie> query(OkHttpClient client, Request request, boolean geo, FetchBudget budget) throws IOException {
+    FluxStreamDecoder decoder = new FluxStreamDecoder(null, geo, true, budget);
+    decoder.execute(client, request);
+    return decoder.series;
+  }
+
+  /**
+   * Execute a Flux query whose series are merged with those of other queries. Table numbers differ from one
+   * response to another, so the series are keyed and labeled by group key only, see {@link #tableLabel}.
+   */
+  static Map<Map<String,String>,GeoTimeSerie> untabled(OkHttpClient client, Request request, boolean geo, FetchBudget budget) throws IOException {
+    FluxStreamDecoder decoder = new FluxStreamDecoder(null, geo, false, budget);
+    decoder.execute(client, request);
+    return decoder.series;
+  }
+
+  /**
+   * Execute a Flux query, handing the series of each table over to a callback once the table has been read
+   */
+  static void query(OkHttpClient client, Request request, SeriesCallback callback, boolean geo, FetchBudget budget) throws IOException {
+    new FluxStreamDecoder(callback, geo, true, budget).execute(client, request);
+  }
+
+  private void execute(OkHttpClient client, Request request) throws IOException {
+    try (Response response = client.newCall(request).execute()) {
+      InfluxDBRequests.check(response);
+      read(new FluxCsvReader(budget.source(response.body().source())));
+    } finally {
+      meter.close();
+    }
+  }
+
+  private void read(FluxCsvReader reader) throws IOException {
+    while (reader.next()) {
+      if (reader.isEmpty()) {
+        // Tables are separated by empty lines
+        continue;
+      }
+
+      if (reader.startsWith(0, "#datatype")) {
+        datatypes = strings(reader);
+        expectHeader = true;
+        continue;
+      } else if (reader.startsWith(0, "#group")) {
+        groups = strings(reader);
+        continue;
+      } else if (reader.startsWith(0, "#default")) {
+        defaults = strings(reader);
+        continue;
+      }
+
+      if (expectHeader) {
+        header(strings(reader));
+        expectHeader = false;
+        continue;
+      }
+
+      if (null == names) {
+        throw new IOException("Flux response does not start with a header.");
+      }
+
+      record(reader);
+    }
+
+    complete();
+  }
+
+  /**
+   * Hand the series of the current table over to the callback, if any
+   */
+  private void complete() throws IOException {
+    if (null == callback || null == current) {
+      return;
+    }
+    GeoTimeSerie[] completed = current;
+    current = null;
+    for (GeoTimeSerie gts: completed) {
+      series.remove(gts.getLabels());
+      callback.series(gts);
+    }
+  }
+
+  private static List<String> strings(FluxCsvReader reader) {
+    List<String> strings = new ArrayList<String>(reader.size());
+    for (int i = 0; i < reader.size(); i++) {
+      strings.add(reader.string(i));
+    }
+    return strings;
+  }
+
+  private void header(List<String> names) throws IOException {
+    complete();
+
+    this.names = names;
+
+    resultIdx = names.indexOf(COL_RESULT);
+    tableIdx = names.indexOf(COL_TABLE);
+    timeIdx = names.indexOf(COL_TIME);
+    measurementIdx = names.indexOf(COL_MEASUREMENT);
+    fieldIdx = names.indexOf(COL_FIELD);
+    // Errors are reported as a table with 'error' and 'reference' columns
+    errorIdx = names.size() > 2 && COL_ERROR.equals(names.get(1)) && COL_REFERENCE.equals(names.get(2)) ? 1 : -1;
+
+    groupIdx = new ArrayList<Integer>();
+    for (int i = 1; i < names.size(); i++) {
+      // Ignore _start, _stop
+      if (null != groups && i < groups.size() && "true".equals(groups.get(i)) && !COL_START.equals(names.get(i)) && !COL_STOP.equals(names.get(i))) {
+        groupIdx.add(i);
+      }
+    }
+
+    List<Integer> values = new ArrayList<Integer>();
+    if (geo) {
+      if (errorIdx < 0 && fieldIdx >= 0 && names.contains(COL_VALUE)) {
+        throw new IOException("Geo mode expects tables pivoted on '" + COL_FIELD + "', add |> pivot(rowKey: [\"" + COL_TIME + "\"], columnKey: [\"" + COL_FIELD + "\"], valueColumn: \"" + COL_VALUE + "\") to the query.");
+      }
+      latIdx = names.indexOf(INFLUXDBUPDATE.FIELD_LATITUDE);
+      lonIdx = names.indexOf(INFLUXDBUPDATE.FIELD_LONGITUDE);
+      elevIdx = names.indexOf(INFLUXDBUPDATE.FIELD_ELEVATION);
+      elevType = type(elevIdx);
+      // Every column which is neither part of the group key nor a known column holds a field, error tables hold none
+      for (int i = 1; i < names.size() && errorIdx < 0; i++) {
+        if (!groupIdx.contains(i) && i != resultIdx && i != tableIdx && i != timeIdx && i != measurementIdx && i != latIdx && i != lonIdx && i != elevIdx
+            && !COL_START.equals(names.get(i)) && !COL_STOP.equals(names.get(i))) {
+          values.add(i);
+        }
+      }
+    } else {
+      latIdx = -1;
+      lonIdx = -1;
+      elevIdx = -1;
+      if (names.contains(COL_VALUE)) {
+        values.add(names.indexOf(COL_VALUE));
+      }
+    }
+
+    valueIdx = new int[values.size()];
+    valueTypes = new int[values.size()];
+    for (int i = 0; i < valueIdx.length; i++) {
+      valueIdx[i] = values.get(i);
+      valueTypes[i] = type(valueIdx[i]);
+    }
+
+    // A new schema always starts a new table
+    result = null;
+    table = null;
+    current = null;
+  }
+
+  private void record(FluxCsvReader reader) throws IOException {
+    if (errorIdx >= 0 && errorIdx < reader.size() && reader.length(errorIdx) > 0) {
+      throw new IOException("Flux query failed: " + reader.string(errorIdx));
+    }
+
+    if (null == current || !same(reader, resultIdx, result) || !same(reader, tableIdx, table)) {
+      complete();
+      startTable(reader);
+    }
+
+    if (timeIdx < 0 || timeIdx >= reader.size()) {
+      throw new IOException("Flux tables without a '" + COL_TIME + "' column cannot be converted to Geo Time Series.");
+    }
+
+    // Convert to platform time units
+    long ts = reader.parseRFC3339(timeIdx) / (1000000L / Constants.TIME_UNITS_PER_MS);
+
+    long location = GeoTimeSerie.NO_LOCATION;
+    long elevation = GeoTimeSerie.NO_ELEVATION;
+
+    if (geo) {
+      if (present(reader, latIdx) && present(reader, lonIdx)) {
+        location = GeoXPLib.toGeoXPPoint(reader.parseDouble(latIdx), reader.parseDouble(lonIdx));
+      }
+      if (present(reader, elevIdx)) {
+        // Elevations are written as integers but may have been converted by the query
+        elevation = TYPE_LONG == elevType ? reader.parseLong(elevIdx) : Math.round(reader.parseDouble(elevIdx));
+      }
+    }
+
+    for (int i = 0; i < valueIdx.length; i++) {
+      int idx = valueIdx[i];
+
+      if (idx >= reader.size()) {
+        continue;
+      }
+
+      Object value;
+
+      if (0 == reader.length(idx)) {
+        // Empty values are replaced by the default value of the column, if any
+        String dflt = value(reader, idx);
+        if (null == dflt) {
+          continue;
+        }
+        value = convert(valueTypes[i], dflt);
+      } else {
+        switch (valueTypes[i]) {
+          case TYPE_DOUBLE:
+            value = reader.parseDouble(idx);
+            break;
+          case TYPE_LONG:
+            value = reader.parseLong(idx);
+            break;
+          default:
+            value = convert(valueTypes[i], reader.string(idx));
+        }
+      }
+
+      meter.point();
+      GTSHelper.setValue(current[i], ts, location, elevation, value, false);
+    }
+  }
+
+  private static boolean present(FluxCsvReader reader, int idx) {
+    return idx >= 0 && idx < reader.size() && reader.length(idx) > 0;
+  }
+
+  /**
+   * Type of a column according to the #datatype annotation
+   */
+  private int type(int idx) {
+    if (null == datatypes || idx < 0 || idx >= datatypes.size()) {
+      return TYPE_STRING;
+    }
+
+    String type = datatypes.get(idx);
+
+    if ("double".equals(type)) {
+      return TYPE_DOUBLE;
+    } else if ("long".equals(type)) {
+      return TYPE_LONG;
+    } else if ("unsignedLong".equals(type)) {
+      return TYPE_UNSIGNED_LONG;
+    } else if ("boolean".equals(type)) {
+      return TYPE_BOOLEAN;
+    } else if (type.startsWith("dateTime")) {
+      return TYPE_DATETIME;
+    } else if ("duration".equals(type)) {
+      return TYPE_DURATION;
+    } else if ("base64Binary".equals(type)) {
+      return TYPE_BINARY;
+    }
+
+    return TYPE_STRING;
+  }
+
+  private static boolean same(FluxCsvReader reader, int idx, byte[] saved) {
+    if (idx < 0 || idx >= reader.size()) {
+      return true;
+    }
+    return reader.sameAs(idx, saved);
+  }
+
+  private void startTable(FluxCsvReader reader) throws IOException {
+    result = resultIdx >= 0 && resultIdx < reader.size() ? reader.bytes(resultIdx) : null;
+    table = tableIdx >= 0 && tableIdx < reader.size() ? reader.bytes(tableIdx) : null;
+
+    Map<String,String> labels = new HashMap<String,String>(groupIdx.size() + 1);
+    for (int idx: groupIdx) {
+      labels.put(names.get(idx), String.valueOf(value(reader, idx)));
+    }
+
+    String tableId = String.valueOf(value(reader, tableIdx));
+
+    if (tabled) {
+      labels.put(tableLabel(labels), tableId);
+    }
+
+    current = new GeoTimeSerie[valueIdx.length];
+
+    for (int i = 0; i < valueIdx.length; i++) {
+      Map<String,String> gtsLabels = labels;
+      String field;
+
+      if (geo) {
+        // Pivoted tables hold one field per column, label each series with its field as unpivoted tables do
+        field = names.get(valueIdx[i]);
+        gtsLabels = new HashMap<String,String>(labels);
+        gtsLabels.put(COL_FIELD, field);
+      } else {
+        field = value(reader, fieldIdx);
+      }
+
+      GeoTimeSerie gts = series.get(gtsLabels);
+
+      if (null == gts) {
+        budget.series();
+        gts = new GeoTimeSerie();
+        series.put(gtsLabels, gts);
+        gts.setLabels(gtsLabels);
+        gts.setName(tableId + " " + value(reader, measurementIdx) + " " + field);
+      }
+
+      current[i] = gts;
+    }
+  }
+
+  /**
+   * Label holding the table number of series labeled with a group key, prefixed with as many underscores as needed
+   * not to clash with a group key column
+   */
+  static String tableLabel(Map<String,String> groupKey) {
+    String label = TABLE_LABEL;
+    while (groupKey.containsKey(label)) {
+      label = "_" + label;
+    }
+    return label;
+  }
+
+  /**
+   * Raw value of a column, or its default value if empty, null if there is none
+   */
+  private String value(FluxCsvReader reader, int idx) {
+    if (idx < 0 || idx >= reader.size()) {
+      return null;
+    }
+    if (reader.length(idx) > 0) {
+      return reader.string(idx);
+    }
+    if (null != defaults && idx < defaults.size() && !defaults.get(idx).isEmpty()) {
+      return defaults.get(idx);
+    }
+    return null;
+  }
+
+  /**
+   * Convert a value according to the type of its column
+   */
+  private static Object convert(int valueType, String value) {
+    switch (valueType) {
+      case TYPE_DOUBLE:
+        if ("+Inf".equals(value)) {
+          return Double.POSITIVE_INFINITY;
+        } else if ("-Inf".equals(value)) {
+          return Double.NEGATIVE_INFINITY;
+        }
+        return Double.parseDouble(value);
+      case TYPE_LONG:
+        return Long.parseLong(value);
+      case TYPE_UNSIGNED_LONG:
+        return Long.parseUnsignedLong(value);
+      case TYPE_BOOLEAN:
+        return "true".equals(value);
+      case TYPE_DATETIME:
+        // Date values are converted to platform time units
+        OffsetDateTime odt = OffsetDateTime.parse(value);
+        return (odt.toEpochSecond() * 1000000000L + odt.getNano()) / (1000000L / Constants.TIME_UNITS_PER_MS);
+      case TYPE_DURATION:
+        return durationNanos(value);
+      case TYPE_BINARY:
+        return Base64.getDecoder().decode(value);
+      default:
+        return value;
+    }
+  }
+
+  /**
+   * Parse a Flux duration (i.e. 1h30m, 10ms, -5s) into nanoseconds
+   */
+  private static long durationNanos(String value) {
+    long total = 0L;
+    int i = 0;
+    boolean negative = false;
+
+    if (value.startsWith("-")) {
+      negative = true;
+      i++;
+    }
+
+    while (i < value.length()) {
+      int start = i;
+      while (i < value.length() && Character.isDigit(value.charAt(i))) {
+        i++;
+      }
+      long magnitude = Long.parseLong(value.substring(start, i));
+      start = i;
+      while (i < value.length() && !Character.isDigit(value.charAt(i))) {
+        i++;
+      }
+      String unit = value.substring(start, i);
+      long factor;
+      switch (unit) {
+        case "ns": factor = 1L; break;
+        case "us": case "µs": factor = 1000L; break;
+        case "ms": factor = 1000000L; break;
+        case "s": factor = 1000000000L; break;
+        case "m": factor = 60000000000L; break;
+        case "h": factor = 3600000000000L; break;
+        case "d": factor = 86400000000000L; break;
+        case "w": factor = 604800000000000L; break;
+        default:
+          throw new IllegalArgumentException("Unsupported duration unit '" + unit + "' in '" + value + "'.");
+      }
+      total += magnitude * factor;
+    }
+
+    return negative ? -total : total;
+  }
+}
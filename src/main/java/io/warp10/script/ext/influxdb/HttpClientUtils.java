@@ -16,8 +16,8 @@
 
 package io.warp10.script.ext.influxdb;
 
+import java.util.Collections;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
 
 import io.warp10.script.WarpScriptException;
 import okhttp3.OkHttpClient.Builder;
@@ -26,14 +26,38 @@ public class HttpClientUtils {
 
     private static final String KEY_READ_TIMEOUT = "readTimeout";
     private static final String KEY_WRITE_TIMEOUT = "writeTimeout";
+    private static final String KEY_TRANSPORT = "transport";
+
+    private static final Builder DEFAULTS = new Builder();
+
+    private static final TransportOptions DEFAULT_OPTIONS = new TransportOptions(DEFAULTS.getReadTimeout$okhttp(), DEFAULTS.getWriteTimeout$okhttp());
 
     public static Builder getOkHttpClientBuilder(final String functionName, final Map<Object, Object> params) throws WarpScriptException {
+        return getTransportOptions(functionName, params).newBuilder();
+    }
+
+    public static TransportOptions getTransportOptions(final String functionName, final Map<Object, Object> params) throws WarpScriptException {
+
+        Map<Object, Object> p = null != params ? params : Collections.emptyMap();
 
-        Builder result = new Builder();
-        result.readTimeout(getLongValueFromKey(functionName, params, KEY_READ_TIMEOUT, result.getReadTimeout$okhttp()), TimeUnit.MILLISECONDS);
-        result.writeTimeout(getLongValueFromKey(functionName, params, KEY_WRITE_TIMEOUT, result.getWriteTimeout$okhttp()), TimeUnit.MILLISECONDS);
+        // Named profile from the configuration, its timeouts can be overridden by the call
+        TransportOptions profile = DEFAULT_OPTIONS;
+        if (p.containsKey(KEY_TRANSPORT)) {
+            Object name = p.get(KEY_TRANSPORT);
+            profile = name instanceof String ? InfluxDBWarpScriptExtension.getTransportProfiles().get(name) : null;
+            if (null == profile) {
+                throw new WarpScriptException(functionName + " unknown transport profile '" + name + "', profiles are declared with '" + TransportOptions.CONF_PREFIX + "NAME.SETTING' configuration keys.");
+            }
+        }
+
+        long readTimeout = getLongValueFromKey(functionName, p, KEY_READ_TIMEOUT, profile.getReadTimeout());
+        long writeTimeout = getLongValueFromKey(functionName, p, KEY_WRITE_TIMEOUT, profile.getWriteTimeout());
+
+        if (readTimeout == profile.getReadTimeout() && writeTimeout == profile.getWriteTimeout()) {
+            return profile;
+        }
 
-        return result;
+        return profile.withTimeouts(readTimeout, writeTimeout);
     }
 
     private static long getLongValueFromKey(final String functionName, final Map<Object, Object> params, final String key, final long defaultValue) throws WarpScriptException {
@@ -16,34 +16,31 @@
 
 package io.warp10.script.ext.influxdb;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Callable;
 
-import okhttp3.OkHttpClient.Builder;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
 
-import org.influxdb.InfluxDB;
-import org.influxdb.InfluxDBFactory;
-import org.influxdb.dto.Query;
-import org.influxdb.dto.QueryResult;
-import org.influxdb.dto.QueryResult.Result;
-import org.influxdb.dto.QueryResult.Series;
-
-import io.warp10.continuum.gts.GTSHelper;
 import io.warp10.continuum.gts.GeoTimeSerie;
-import io.warp10.continuum.store.Constants;
-import io.warp10.continuum.store.thrift.data.Metadata;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptException;
 import io.warp10.script.WarpScriptStack;
+import io.warp10.script.WarpScriptStack.Macro;
 import io.warp10.script.WarpScriptStackFunction;
 
 public class INFLUXDBFETCH extends NamedWarpScriptFunction implements WarpScriptStackFunction {
     
   public static final String KEY_DB = "db";
   private static final String KEY_INFLUXQL = "influxql";
+  private static final String KEY_CHUNKSIZE = "chunksize";
+  private static final String KEY_FORMAT = "format";
+
+  private static final String FORMAT_JSON = "json";
+  private static final String FORMAT_MSGPACK = "msgpack";
 
   public INFLUXDBFETCH(String name) {
     super(name);
@@ -58,15 +55,62 @@ public class INFLUXDBFETCH extends NamedWarpScriptFunction implements WarpScript
     String password;
     String username;
     String url;
-    Builder okHttpClientBuilder = null;
+    TransportOptions transport;
+    int chunkSize = 0;
+    ParallelFetch parallel = null;
+    AggregationPushdown pushdown = null;
+    long ttl = 0L;
+    boolean msgpack = false;
+    Macro macro = null;
+    boolean geo = false;
+    ShardRing ring = null;
+    Map<Object,Object> params = null;
     if (top instanceof Map) {
-      Map<Object,Object> params = (Map<Object,Object>) top;
-      influxql = String.valueOf(params.get(KEY_INFLUXQL));
+      params = (Map<Object,Object>) top;
+      pushdown = AggregationPushdown.fromParams(getName(), params, false);
+      if (null != pushdown) {
+        // The query is generated from the aggregation parameters
+        influxql = pushdown.influxql();
+      } else {
+        influxql = String.valueOf(params.get(KEY_INFLUXQL));
+      }
       dbName = String.valueOf(params.get(KEY_DB));
       password = String.valueOf(params.get(INFLUXDBFLUX.KEY_PASSWORD));
       username = String.valueOf(params.get(INFLUXDBFLUX.KEY_USER));
       url = String.valueOf(params.get(INFLUXDBFLUX.KEY_URL));
-      okHttpClientBuilder = HttpClientUtils.getOkHttpClientBuilder(getName(), params);
+      transport = HttpClientUtils.getTransportOptions(getName(), params);
+      ring = ShardRing.fromParams(getName(), params);
+      if (params.containsKey(KEY_CHUNKSIZE)) {
+        if (!(params.get(KEY_CHUNKSIZE) instanceof Long) || ((Long) params.get(KEY_CHUNKSIZE)) <= 0 || ((Long) params.get(KEY_CHUNKSIZE)) > Integer.MAX_VALUE) {
+          throw new WarpScriptException(getName() + " expects a strictly positive LONG value for the '" + KEY_CHUNKSIZE + "' parameter.");
+        }
+        chunkSize = ((Long) params.get(KEY_CHUNKSIZE)).intValue();
+      }
+      parallel = ParallelFetch.fromParams(getName(), params);
+      if (null != parallel) {
+        ParallelFetch.check(getName(), influxql, false);
+      }
+      ttl = ResultCache.getTTL(getName(), params);
+      if (params.containsKey(KEY_FORMAT)) {
+        if (FORMAT_MSGPACK.equals(params.get(KEY_FORMAT))) {
+          msgpack = true;
+        } else if (!FORMAT_JSON.equals(params.get(KEY_FORMAT))) {
+          throw new WarpScriptException(getName() + " expects '" + KEY_FORMAT + "' to be '" + FORMAT_JSON + "' or '" + FORMAT_MSGPACK + "'.");
+        }
+      }
+      if (params.containsKey(SeriesCallback.KEY_MACRO)) {
+        if (!(params.get(SeriesCallback.KEY_MACRO) instanceof Macro)) {
+          throw new WarpScriptException(getName() + " expects a macro for the '" + SeriesCallback.KEY_MACRO + "' parameter.");
+        }
+        if (null != parallel || ttl > 0L || null != ring) {
+          throw new WarpScriptException(getName() + " cannot use '" + SeriesCallback.KEY_MACRO + "' together with '" + ParallelFetch.KEY_SLICES + "', '" + ResultCache.KEY_TTL + "' or '" + ShardRing.KEY_URLS + "'.");
+        }
+        macro = (Macro) params.get(SeriesCallback.KEY_MACRO);
+      }
+      geo = Boolean.TRUE.equals(params.get(INFLUXDBFLUX.KEY_GEO));
+      if (geo && null != pushdown) {
+        throw new WarpScriptException(getName() + " cannot use '" + INFLUXDBFLUX.KEY_GEO + "' together with '" + AggregationPushdown.KEY_AGGREGATOR + "'.");
+      }
     } else {
       if (!(top instanceof String)) {
         throw new WarpScriptException(getName() + " expects an InfluxQL query.");
@@ -105,88 +149,161 @@ public class INFLUXDBFETCH extends NamedWarpScriptFunction implements WarpScript
       }
       
       url = top.toString();
+
+      transport = HttpClientUtils.getTransportOptions(getName(), null);
     }
 
-    InfluxDB influxdb;
-    if (null != okHttpClientBuilder) {
-      influxdb = InfluxDBFactory.connect(url, username, password, okHttpClientBuilder);
+    InfluxDBClientRegistry.Key key = InfluxDBClientRegistry.Key.v1(url, username, password, transport);
+
+    // One key per shard, the query is sent to all of them
+    List<InfluxDBClientRegistry.Key> keys = new ArrayList<InfluxDBClientRegistry.Key>();
+    if (null != ring) {
+      for (int node = 0; node < ring.size(); node++) {
+        keys.add(InfluxDBClientRegistry.Key.v1(ring.url(node), username, password, transport));
+      }
     } else {
-      influxdb = InfluxDBFactory.connect(url, username, password);
+      keys.add(key);
     }
 
-    Query query = new Query(influxql, dbName, true);
-    
-    // Request timestamps as nanoseconds so we do not waste time parsing timestamps
-    QueryResult results = influxdb.query(query, TimeUnit.NANOSECONDS);
-           
-    List<List<GeoTimeSerie>> allgts = new ArrayList<List<GeoTimeSerie>>();
-    
-    for (Result result: results.getResults()) {
-      
-      List<GeoTimeSerie> resultgts = new ArrayList<GeoTimeSerie>();
+    // Decoding fails as soon as the limits of the call or of the stack are exceeded
+    FetchBudget budget = FetchBudget.fromParams(getName(), stack, params);
 
-      allgts.add(resultgts);
-      
-      List<Series> series = result.getSeries();
+    // Calls are cancelled when the deadline expires or the execution is interrupted
+    try (CallGuard guard = CallGuard.fromParams(getName(), params, stack)) {
+      if (null != macro) {
+        //
+        // Hand each series over to the macro once all its chunks have been read, nothing is pushed afterwards
+        //
+        SeriesCallback callback = SeriesCallback.macro(stack, macro);
+        if (null != pushdown) {
+          final AggregationPushdown agg = pushdown;
+          final SeriesCallback cb = callback;
+          // InfluxQL timestamps buckets at the start of their window
+          callback = gts -> cb.series(agg.bucketize(gts, true));
+        }
+        try (InfluxDBClientRegistry.Lease lease = InfluxDBWarpScriptExtension.getClientRegistry().acquire(key)) {
+          InfluxQLChunkDecoder.query(lease.http(), guard.tag(InfluxDBRequests.influxql(key, dbName, influxql, chunkSize, msgpack)), callback, geo, budget);
+        } catch (SeriesCallback.ControlException ce) {
+          throw ce.getCause();
+        } catch (IOException ioe) {
+          throw guard.error(getName() + " error reading data.", ioe);
+        }
+        return stack;
+      }
 
-      Metadata meta = new Metadata();
-      
-      for (Series serie: series) {
-        
-        // Set labels
-        if (meta.getLabelsSize() > 0) {
-          meta.getLabels().clear();
+      if (ttl > 0L) {
+        //
+        // Identical queries share a single request and their results are reused for ttl ms
+        //
+        final String db = dbName;
+        final String q = influxql;
+        final int chunk = chunkSize;
+        final ParallelFetch par = parallel;
+        final AggregationPushdown agg = pushdown;
+        final boolean mp = msgpack;
+        final boolean g = geo;
+        final ShardRing r = ring;
+        // MessagePack results hold longs where JSON ones hold doubles
+        String cacheKey = ResultCache.key(ShardRing.id(keys), db, q, null == par ? null : par.range(), mp ? FORMAT_MSGPACK : FORMAT_JSON, g ? INFLUXDBFLUX.KEY_GEO : null);
+        try {
+          stack.push(InfluxDBWarpScriptExtension.getResultCache().get(cacheKey, ttl, guard, budget, () -> fetch(keys, r, db, q, chunk, par, agg, mp, g, guard, budget)));
+        } catch (IOException ioe) {
+          throw guard.error(getName() + " error reading data.", ioe);
         }
-        
-        if (null != serie.getTags()) {
-          meta.setLabels(serie.getTags());
-        } else {
-          meta.setLabels(new HashMap<String,String>());
+      } else {
+        stack.push(fetch(keys, ring, dbName, influxql, chunkSize, parallel, pushdown, msgpack, geo, guard, budget));
+      }
+    } finally {
+      // Points read from shards are recorded per shard
+      if (null == ring) {
+        InfluxDBWarpScriptExtension.getMetrics().read(key.getUrl(), budget.points());
+      }
+    }
+
+    return stack;
+  }
+
+  private List<List<GeoTimeSerie>> fetch(List<InfluxDBClientRegistry.Key> keys, ShardRing ring, String dbName, String influxql, int chunkSize, ParallelFetch parallel, AggregationPushdown pushdown, boolean msgpack, boolean geo, CallGuard guard, FetchBudget budget) throws WarpScriptException {
+    if (null != parallel || null != ring) {
+      //
+      // Fetch each time slice from each shard concurrently and merge the statements' series
+      //
+      List<InfluxDBClientRegistry.Lease> leases = new ArrayList<InfluxDBClientRegistry.Lease>();
+      try {
+        int[] nodes = null == ring ? new int[] { 0 } : ring.readable();
+        int count = null == parallel ? 1 : parallel.slices();
+        int[] targets = new int[nodes.length * count];
+        List<Callable<List<Map<List<Object>,GeoTimeSerie>>>> tasks = new ArrayList<Callable<List<Map<List<Object>,GeoTimeSerie>>>>();
+        for (int node: nodes) {
+          InfluxDBClientRegistry.Lease lease = InfluxDBWarpScriptExtension.getClientRegistry().acquire(keys.get(node));
+          leases.add(lease);
+          final OkHttpClient client = lease.http();
+          final String shard = null == ring ? null : ring.url(node);
+          for (int i = 0; i < count; i++) {
+            final Request request = guard.tag(InfluxDBRequests.influxql(keys.get(node), dbName, null == parallel ? influxql : parallel.influxql(influxql, i), chunkSize, msgpack));
+            targets[tasks.size()] = node;
+            tasks.add(() -> {
+              List<Map<List<Object>,GeoTimeSerie>> statements = InfluxQLChunkDecoder.decode(client, request, geo, budget);
+              if (null != shard) {
+                for (Map<List<Object>,GeoTimeSerie> statement: statements) {
+                  ShardRing.read(shard, statement);
+                }
+              }
+              return statements;
+            });
+          }
         }
-        
-        String measurement = serie.getName();
-
-        List<List<Object>> allvalues = serie.getValues();
-        
-        // Loop over the columns, column 0 is the timestamp
-        for (int i = 1; i < serie.getColumns().size(); i++) {
-          meta.setName(measurement + " " + serie.getColumns().get(i));
-          
-          int hint = serie.getValues().size();
-          GeoTimeSerie gts = new GeoTimeSerie(hint);          
-          gts.setMetadata(meta);
-          
-          resultgts.add(gts);
-          
-          for (List<Object> values: allvalues) {            
-            long timestamp = 0L;
-            if (1 == i) {
-              long dts = (long) ((double) values.get(0));
-
-              timestamp += dts / (1000000000L / Constants.TIME_UNITS_PER_S);
-              
-              // Set timestamp
-              values.set(0, timestamp);
-            } else {
-              timestamp = (long) values.get(0);
-            }
-                                   
-            Object value = values.get(i);
 
-            if (null == value) {
-              continue;
+        List<List<Map<List<Object>,GeoTimeSerie>>> slices = null == ring ? ParallelFetch.run(tasks) : ring.gather(targets, tasks, guard);
+        List<List<GeoTimeSerie>> allgts = new ArrayList<List<GeoTimeSerie>>();
+        for (int statement = 0; ; statement++) {
+          List<Map<List<Object>,GeoTimeSerie>> parts = new ArrayList<Map<List<Object>,GeoTimeSerie>>();
+          for (List<Map<List<Object>,GeoTimeSerie>> slice: slices) {
+            if (statement < slice.size()) {
+              parts.add(slice.get(statement));
             }
+          }
+          if (parts.isEmpty()) {
+            break;
+          }
+          Map<List<Object>,GeoTimeSerie> merged = ParallelFetch.merge(parts);
+          if (null != ring) {
+            // Replicas return the same points
+            ParallelFetch.dedup(merged);
+          }
+          List<GeoTimeSerie> series = new ArrayList<GeoTimeSerie>(merged.values());
+          if (null != pushdown) {
+            // InfluxQL timestamps buckets at the start of their window
+            pushdown.bucketize(series, true);
+          }
+          allgts.add(series);
+        }
+        return allgts;
+      } catch (IOException ioe) {
+        throw guard.error(getName() + " error reading data.", ioe);
+      } finally {
+        for (InfluxDBClientRegistry.Lease lease: leases) {
+          lease.close();
+        }
+      }
+    }
 
-            GTSHelper.setValue(gts, timestamp, value);
-          }                    
-        }         
+    try (InfluxDBClientRegistry.Lease lease = InfluxDBWarpScriptExtension.getClientRegistry().acquire(keys.get(0))) {
+      //
+      // Convert the response as it is read, each chunk as it arrives if chunkSize is set
+      //
+      try {
+        List<List<GeoTimeSerie>> allgts = InfluxQLChunkDecoder.query(lease.http(), guard.tag(InfluxDBRequests.influxql(keys.get(0), dbName, influxql, chunkSize, msgpack)), geo, budget);
+        if (null != pushdown) {
+          // InfluxQL timestamps buckets at the start of their window
+          for (List<GeoTimeSerie> statement: allgts) {
+            pushdown.bucketize(statement, true);
+          }
+        }
+        return allgts;
+      } catch (IOException ioe) {
+        throw guard.error(getName() + " error reading data.", ioe);
       }
     }
-        
-    influxdb.close();
-    
-    stack.push(allgts);
-    
-    return stack;
   }
 }
@@ -0,0 +1,50 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.ext.influxdb;
+
+import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+import io.warp10.script.WarpScriptStackFunction;
+
+/**
+ * Wait for the asynchronous write queue to be drained
+ */
+public class INFLUXDBFLUSH extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+
+  public INFLUXDBFLUSH(String name) {
+    super(name);
+  }
+
+  @Override
+  public Object apply(WarpScriptStack stack) throws WarpScriptException {
+    Object top = stack.pop();
+
+    if (!(top instanceof Long)) {
+      throw new WarpScriptException(getName() + " expects a timeout in milliseconds.");
+    }
+
+    try {
+      stack.push(InfluxDBWarpScriptExtension.getWriteQueue().flush((Long) top));
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new WarpScriptException(getName() + " interrupted while waiting for the write queue.", ie);
+    }
+
+    return stack;
+  }
+}
@@ -16,21 +16,22 @@
 
 package io.warp10.script.ext.influxdb;
 
+import java.io.IOException;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 import com.influxdb.client.InfluxDBClient;
-import com.influxdb.client.InfluxDBClientFactory;
-import com.influxdb.client.InfluxDBClientOptions;
 import com.influxdb.client.QueryApi;
 import com.influxdb.query.FluxColumn;
 import com.influxdb.query.FluxRecord;
 import com.influxdb.query.FluxTable;
 
-import okhttp3.OkHttpClient.Builder;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
 
 import io.warp10.continuum.gts.GTSHelper;
 import io.warp10.continuum.gts.GeoTimeSerie;
@@ -38,6 +39,7 @@ import io.warp10.continuum.store.Constants;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptException;
 import io.warp10.script.WarpScriptStack;
+import io.warp10.script.WarpScriptStack.Macro;
 import io.warp10.script.WarpScriptStackFunction;
 
 public class INFLUXDBFLUX extends NamedWarpScriptFunction implements WarpScriptStackFunction {
@@ -49,7 +51,13 @@ public class INFLUXDBFLUX extends NamedWarpScriptFunction implements WarpScriptS
   public static final String KEY_ORG = "org";
   public static final String KEY_USER = "user";
   public static final String KEY_PASSWORD = "password";
+  public static final String KEY_GEO = "geo";
   private static final String KEY_FLUX = "flux";
+  private static final String KEY_STREAM = "stream";
+
+  /**
+   * Turns the lat/lon/elev fields written by INFLUXDB.UPDATE into columns of the rows they locate
+   */
 
   public INFLUXDBFLUX(String name) {
     super(name);
@@ -66,43 +74,179 @@ public class INFLUXDBFLUX extends NamedWarpScriptFunction implements WarpScriptS
     
     Map<Object,Object> params = (Map<Object,Object>) top;
     
-    if (!params.containsKey(KEY_FLUX) || !(params.get(KEY_FLUX) instanceof String)) {
-      throw new WarpScriptException(getName() + " missing '" + KEY_FLUX + "' parameter.");
+    AggregationPushdown pushdown = AggregationPushdown.fromParams(getName(), params, true);
+
+    String query;
+
+    if (null != pushdown) {
+      // The query is generated from the aggregation parameters
+      query = pushdown.flux();
+    } else {
+      if (!params.containsKey(KEY_FLUX) || !(params.get(KEY_FLUX) instanceof String)) {
+        throw new WarpScriptException(getName() + " missing '" + KEY_FLUX + "' parameter.");
+      }
+
+      query = (String) params.get(KEY_FLUX);
     }
-    
-    String query = (String) params.get(KEY_FLUX);
-    
-    InfluxDBClientOptions.Builder builder = new InfluxDBClientOptions.Builder();
 
-    if (!params.containsKey(KEY_URL) || !(params.get(KEY_URL) instanceof String)) {
-      throw new WarpScriptException(getName() + " missing valid '" + KEY_URL + "' parameter.");
+    boolean geo = Boolean.TRUE.equals(params.get(KEY_GEO));
+
+    if (geo) {
+      if (null != pushdown) {
+        throw new WarpScriptException(getName() + " cannot use '" + KEY_GEO + "' together with '" + AggregationPushdown.KEY_AGGREGATOR + "'.");
+      }
     }
-    
-    builder.url((String) params.get(KEY_URL));
-    
-    if (params.containsKey(KEY_TOKEN) && params.get(KEY_TOKEN) instanceof String) {
-      builder.authenticateToken(((String) params.get(KEY_TOKEN)).toCharArray());
-    } else if (params.get(KEY_USER) instanceof String && params.get(KEY_PASSWORD) instanceof String) {
-      builder.authenticate((String) params.get(KEY_USER), ((String) params.get(KEY_PASSWORD)).toCharArray()); 
+
+    ShardRing ring = ShardRing.fromParams(getName(), params);
+
+    // One key per shard, the query is sent to all of them
+    List<InfluxDBClientRegistry.Key> keys = new ArrayList<InfluxDBClientRegistry.Key>();
+    if (null != ring) {
+      for (int node = 0; node < ring.size(); node++) {
+        keys.add(getClientKey(getName(), params, ring.url(node)));
+      }
     } else {
-      throw new WarpScriptException(getName() + " missing key '" + KEY_TOKEN + "' or keys '" + KEY_USER + "' and '" + KEY_PASSWORD + "'.");
+      keys.add(getClientKey(getName(), params));
     }
-    
-    if (!(params.get(KEY_ORG) instanceof String)) {
-      throw new WarpScriptException(getName() + " missing valid '" + KEY_ORG + "' parameter.");
+
+    InfluxDBClientRegistry.Key key = keys.get(0);
+
+    // Pivoted tables are only supported by the streaming decoder
+    boolean stream = geo || !Boolean.FALSE.equals(params.get(KEY_STREAM));
+
+    ParallelFetch parallel = ParallelFetch.fromParams(getName(), params);
+
+    if (null != parallel) {
+      ParallelFetch.check(getName(), query, true);
     }
-    
-    builder.org((String) params.get(KEY_ORG));
 
-    final Builder okHttpClientBuilder = HttpClientUtils.getOkHttpClientBuilder(getName(), params);
-    builder.okHttpClient(okHttpClientBuilder);
+    long ttl = ResultCache.getTTL(getName(), params);
 
-    InfluxDBClientOptions options = builder.build();
+    // Decoding fails as soon as the limits of the call or of the stack are exceeded
+    FetchBudget budget = FetchBudget.fromParams(getName(), stack, params);
 
-    InfluxDBClient client = null;
+    // Calls are cancelled when the deadline expires or the execution is interrupted
+    try (CallGuard guard = CallGuard.fromParams(getName(), params, stack)) {
+      if (params.containsKey(SeriesCallback.KEY_MACRO)) {
+        if (!(params.get(SeriesCallback.KEY_MACRO) instanceof Macro)) {
+          throw new WarpScriptException(getName() + " expects a macro for the '" + SeriesCallback.KEY_MACRO + "' parameter.");
+        }
+        if (null != parallel || ttl > 0L || null != ring) {
+          throw new WarpScriptException(getName() + " cannot use '" + SeriesCallback.KEY_MACRO + "' together with '" + ParallelFetch.KEY_SLICES + "', '" + ResultCache.KEY_TTL + "' or '" + ShardRing.KEY_URLS + "'.");
+        }
 
-    try {
-      client = InfluxDBClientFactory.create(options);
+        //
+        // Hand the series of each table over to the macro once the table has been read, nothing is pushed afterwards
+        //
+        SeriesCallback callback = SeriesCallback.macro(stack, (Macro) params.get(SeriesCallback.KEY_MACRO));
+        if (null != pushdown) {
+          final SeriesCallback cb = callback;
+          callback = gts -> cb.series(pushdown.bucketize(gts, false));
+        }
+        try (InfluxDBClientRegistry.Lease lease = InfluxDBWarpScriptExtension.getClientRegistry().acquire(key)) {
+          FluxStreamDecoder.query(lease.http(), guard.tag(InfluxDBRequests.flux(key, query)), callback, geo, budget);
+        } catch (SeriesCallback.ControlException ce) {
+          throw ce.getCause();
+        } catch (IOException ioe) {
+          throw guard.error(getName() + " error reading data.", ioe);
+        }
+        return stack;
+      }
+
+      if (ttl > 0L) {
+        //
+        // Identical queries share a single request and their results are reused for ttl ms
+        //
+        final String q = query;
+        String cacheKey = ResultCache.key(ShardRing.id(keys), q, null == parallel ? null : parallel.range(), geo ? KEY_GEO : null);
+        try {
+          stack.push(InfluxDBWarpScriptExtension.getResultCache().get(cacheKey, ttl, guard, budget, () -> fetch(keys, ring, q, stream, parallel, pushdown, geo, guard, budget)));
+        } catch (IOException ioe) {
+          throw guard.error(getName() + " error reading data.", ioe);
+        }
+      } else {
+        stack.push(fetch(keys, ring, query, stream, parallel, pushdown, geo, guard, budget));
+      }
+    } finally {
+      // Points read from shards are recorded per shard
+      if (null == ring) {
+        InfluxDBWarpScriptExtension.getMetrics().read(key.getUrl(), budget.points());
+      }
+    }
+
+    return stack;
+  }
+
+  private List<GeoTimeSerie> fetch(List<InfluxDBClientRegistry.Key> keys, ShardRing ring, String query, boolean stream, ParallelFetch parallel, AggregationPushdown pushdown, boolean geo, CallGuard guard, FetchBudget budget) throws WarpScriptException {
+    if (null != ring) {
+      //
+      // Send the query, or each of its slices, to every shard concurrently and merge the series by group key
+      //
+      List<InfluxDBClientRegistry.Lease> leases = new ArrayList<InfluxDBClientRegistry.Lease>();
+      try {
+        int[] nodes = ring.readable();
+        int count = null == parallel ? 1 : parallel.slices();
+        int[] targets = new int[nodes.length * count];
+        List<Callable<Map<Map<String,String>,GeoTimeSerie>>> tasks = new ArrayList<Callable<Map<Map<String,String>,GeoTimeSerie>>>();
+        for (int node: nodes) {
+          InfluxDBClientRegistry.Lease lease = InfluxDBWarpScriptExtension.getClientRegistry().acquire(keys.get(node));
+          leases.add(lease);
+          final OkHttpClient client = lease.http();
+          final String shard = ring.url(node);
+          for (int i = 0; i < count; i++) {
+            final Request request = guard.tag(InfluxDBRequests.flux(keys.get(node), null == parallel ? query : parallel.flux(query, i)));
+            targets[tasks.size()] = node;
+            tasks.add(() -> {
+              Map<Map<String,String>,GeoTimeSerie> series = FluxStreamDecoder.untabled(client, request, geo, budget);
+              ShardRing.read(shard, series);
+              return series;
+            });
+          }
+        }
+        // Replicas return the same points
+        List<GeoTimeSerie> fetched = merge(ring.gather(targets, tasks, guard), true);
+        if (null != pushdown) {
+          pushdown.bucketize(fetched, false);
+        }
+        return fetched;
+      } catch (IOException ioe) {
+        throw guard.error(getName() + " error reading data.", ioe);
+      } finally {
+        for (InfluxDBClientRegistry.Lease lease: leases) {
+          lease.close();
+        }
+      }
+    }
+
+    InfluxDBClientRegistry.Key key = keys.get(0);
+
+    try (InfluxDBClientRegistry.Lease lease = InfluxDBWarpScriptExtension.getClientRegistry().acquire(key)) {
+      if (null != parallel) {
+        //
+        // Fetch each time slice concurrently and merge the series by group key
+        //
+        final OkHttpClient client = lease.http();
+        List<Callable<Map<Map<String,String>,GeoTimeSerie>>> tasks = new ArrayList<Callable<Map<Map<String,String>,GeoTimeSerie>>>();
+        for (int i = 0; i < parallel.slices(); i++) {
+          final Request request = guard.tag(InfluxDBRequests.flux(key, parallel.flux(query, i)));
+          tasks.add(() -> FluxStreamDecoder.untabled(client, request, geo, budget));
+        }
+        return merge(ParallelFetch.run(tasks), false);
+      }
+
+      if (stream) {
+        //
+        // Decode the response as it is read, records are directly appended to their series
+        //
+        Map<Map<String,String>,GeoTimeSerie> gts = FluxStreamDecoder.query(lease.http(), guard.tag(InfluxDBRequests.flux(key, query)), geo, budget);
+        List<GeoTimeSerie> fetched = new ArrayList<GeoTimeSerie>(gts.values());
+        if (null != pushdown) {
+          pushdown.bucketize(fetched, false);
+        }
+        return fetched;
+      }
+
+      InfluxDBClient client = lease.v2();
 
       //
       // We can use GeoTimeSerie instances because a table only contains elements of the same type
@@ -110,8 +254,11 @@ public class INFLUXDBFLUX extends NamedWarpScriptFunction implements WarpScriptS
       final Map<Map<String,String>,GeoTimeSerie> gts = new HashMap<Map<String,String>, GeoTimeSerie>();
 
       QueryApi api = client.getQueryApi();
+      // The client library buffers the whole response, limits are only checked during the conversion
       List<FluxTable> tables = api.query(query);
 
+      FetchBudget.Meter meter = budget.meter();
+
       for (FluxTable table: tables) {
         List<FluxColumn> group = table.getGroupKey();
 
@@ -139,6 +286,7 @@ public class INFLUXDBFLUX extends NamedWarpScriptFunction implements WarpScriptS
             series = gts.get(labels);
 
             if (null == series) {
+              budget.series();
               series = new GeoTimeSerie(records.size());
               gts.put(labels, series);
               series.setLabels(labels);
@@ -150,23 +298,87 @@ public class INFLUXDBFLUX extends NamedWarpScriptFunction implements WarpScriptS
           long ts = instant.getEpochSecond() * 1000000000L + instant.getNano();
           // Convert to platform time units
           ts = ts / (1000000L / Constants.TIME_UNITS_PER_MS);
+          meter.point();
           GTSHelper.setValue(series, ts, record.getValue());
         }
       }
 
+      meter.close();
+
       List<GeoTimeSerie> fetched = new ArrayList<GeoTimeSerie>(gts.values());
-      stack.push(fetched);
+      if (null != pushdown) {
+        pushdown.bucketize(fetched, false);
+      }
+      return fetched;
+    } catch (IOException ioe) {
+      throw guard.error(getName() + " error reading data.", ioe);
     } catch (Throwable t) {
       throw new WarpScriptException(getName() + " error reading data.", t);
-    } finally {
-      if (null != client) {
-        client.close();
-      }
     }
-    
-    return stack;
   }
 
+  /**
+   * Build the client registry key for InfluxDB 2.x from a parameter map
+   */
+  static InfluxDBClientRegistry.Key getClientKey(String functionName, Map<Object,Object> params) throws WarpScriptException {
+    if (!params.containsKey(KEY_URL) || !(params.get(KEY_URL) instanceof String)) {
+      throw new WarpScriptException(functionName + " missing valid '" + KEY_URL + "' parameter.");
+    }
+
+    return getClientKey(functionName, params, (String) params.get(KEY_URL));
+  }
+
+  /**
+   * Build the client registry key for InfluxDB 2.x from a parameter map, for another URL such as one of a shard
+   */
+  static InfluxDBClientRegistry.Key getClientKey(String functionName, Map<Object,Object> params, String url) throws WarpScriptException {
+    String user = null;
+    String password = null;
+    String token = null;
+
+    if (params.containsKey(KEY_TOKEN) && params.get(KEY_TOKEN) instanceof String) {
+      token = (String) params.get(KEY_TOKEN);
+    } else if (params.get(KEY_USER) instanceof String && params.get(KEY_PASSWORD) instanceof String) {
+      user = (String) params.get(KEY_USER);
+      password = (String) params.get(KEY_PASSWORD);
+    } else {
+      throw new WarpScriptException(functionName + " missing key '" + KEY_TOKEN + "' or keys '" + KEY_USER + "' and '" + KEY_PASSWORD + "'.");
+    }
 
+    if (!(params.get(KEY_ORG) instanceof String)) {
+      throw new WarpScriptException(functionName + " missing valid '" + KEY_ORG + "' parameter.");
+    }
+
+    String org = (String) params.get(KEY_ORG);
+
+    TransportOptions transport = HttpClientUtils.getTransportOptions(functionName, params);
+
+    return InfluxDBClientRegistry.Key.v2(url, user, password, token, org, transport);
+  }
+
+  /**
+   * Merge the series read by several requests by group key. Table numbers differ from one response to
+   * another, so series are read without their table label and the merged series are numbered in order.
+   *
+   * @param parts series keyed by group key, as returned by {@link FluxStreamDecoder#untabled}
+   * @param dedup remove the duplicate timestamps of the merged series
+   */
+  private static List<GeoTimeSerie> merge(List<Map<Map<String,String>,GeoTimeSerie>> parts, boolean dedup) {
+    Map<Map<String,String>,GeoTimeSerie> merged = ParallelFetch.merge(parts);
+    if (dedup) {
+      ParallelFetch.dedup(merged);
+    }
 
+    List<GeoTimeSerie> fetched = new ArrayList<GeoTimeSerie>(merged.values());
+    for (int i = 0; i < fetched.size(); i++) {
+      GeoTimeSerie gts = fetched.get(i);
+      Map<String,String> labels = new HashMap<String,String>(gts.getLabels());
+      labels.put(FluxStreamDecoder.tableLabel(labels), Integer.toString(i));
+      gts.setLabels(labels);
+      // Names start with the table number
+      String name = gts.getName();
+      gts.setName(i + name.substring(Math.max(0, name.indexOf(' '))));
+    }
+    return fetched;
+  }
 }
@@ -0,0 +1,45 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+
+package io.warp10.script.ext.influxdb;
+
+import java.util.Map;
+
+import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+import io.warp10.script.WarpScriptStackFunction;
+
+/**
+ * Push the metrics of the InfluxDB endpoints and functions, the state of the write controllers and of the shards, and the statistics of the result cache
+ */
+public class INFLUXDBSTATS extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+
+  public INFLUXDBSTATS(String name) {
+    super(name);
+  }
+
+  @Override
+  public Object apply(WarpScriptStack stack) throws WarpScriptException {
+    Map<Object,Object> stats = InfluxDBWarpScriptExtension.getMetrics().stats();
+    stats.put("writers", WriteController.stats());
+    stats.put("shards", ShardHealth.stats());
+    stats.put("cache", InfluxDBWarpScriptExtension.getResultCache().stats());
+    stack.push(stats);
+    return stack;
+  }
+}
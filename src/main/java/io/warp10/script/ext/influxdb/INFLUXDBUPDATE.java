@@ -16,37 +16,25 @@
 
 package io.warp10.script.ext.influxdb;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
-
-import okhttp3.OkHttpClient.Builder;
-
-import org.influxdb.BatchOptions;
-import org.influxdb.InfluxDB;
-import org.influxdb.InfluxDBFactory;
-import org.influxdb.dto.BatchPoints;
-
-import com.geoxp.GeoXPLib;
-import com.influxdb.client.InfluxDBClient;
-import com.influxdb.client.InfluxDBClientFactory;
-import com.influxdb.client.InfluxDBClientOptions;
-import com.influxdb.client.WriteApi;
-import com.influxdb.client.WriteOptions;
-import com.influxdb.client.domain.WritePrecision;
-import com.influxdb.client.write.Point;
+import java.util.concurrent.Callable;
 
 import io.warp10.continuum.gts.GTSDecoder;
 import io.warp10.continuum.gts.GTSEncoder;
 import io.warp10.continuum.gts.GTSHelper;
 import io.warp10.continuum.gts.GeoTimeSerie;
-import io.warp10.continuum.store.Constants;
+import io.warp10.continuum.store.thrift.data.Metadata;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptException;
 import io.warp10.script.WarpScriptStack;
 import io.warp10.script.WarpScriptStackFunction;
+import okhttp3.HttpUrl;
 
 public class INFLUXDBUPDATE extends NamedWarpScriptFunction implements WarpScriptStackFunction {
   
@@ -55,25 +43,37 @@ public class INFLUXDBUPDATE extends NamedWarpScriptFunction implements WarpScrip
   private static final String KEY_BATCHSIZE = "batchsize";
   private static final String KEY_V1 = "v1";
   private static final String KEY_ATTR = "attr";
+  private static final String KEY_MERGE = "merge";
+  private static final String KEY_CONCURRENCY = "concurrency";
+  private static final String KEY_ASYNC = "async";
+  private static final String KEY_BACKPRESSURE = "backpressure";
+  private static final String KEY_SPILL = "spill";
+
+  private static final String BACKPRESSURE_BLOCK = "block";
+  private static final String BACKPRESSURE_REJECT = "reject";
+  private static final String BACKPRESSURE_SPILL = "spill";
   
   public static final String FIELD_ELEVATION = "elev";
   public static final String FIELD_LATITUDE = "lat";
   public static final String FIELD_LONGITUDE = "lon";
   
-  private static final WritePrecision PRECISION;
-  
   private static final int MAX_BATCH_SIZE = 10000;
-  
-  static {
-    if (1000000000L == Constants.TIME_UNITS_PER_S) {
-      PRECISION = WritePrecision.NS;      
-    } else if (1000000L == Constants.TIME_UNITS_PER_S) {
-      PRECISION = WritePrecision.US;
-    } else if (1000L == Constants.TIME_UNITS_PER_S) {
-      PRECISION = WritePrecision.MS;
-    } else {
-      throw new RuntimeException("Invalid time units found!");
-    }
+
+  /**
+   * Maximum number of concurrent write requests a single call may issue
+   */
+  private static final int MAX_CONCURRENCY = 64;
+
+  /**
+   * Initial capacity of the line protocol buffer
+   */
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Writes the series of a node
+   */
+  private interface NodeWriter {
+    void write(InfluxDBClientRegistry.Key key, List<Object> series) throws IOException;
   }
   
   public INFLUXDBUPDATE(String name) {
@@ -91,20 +91,33 @@ public class INFLUXDBUPDATE extends NamedWarpScriptFunction implements WarpScrip
     
     Map<Object,Object> params = (Map<Object,Object>) top;
 
-    if (Boolean.TRUE.equals(params.get(KEY_V1))) {
+    boolean v1 = Boolean.TRUE.equals(params.get(KEY_V1));
+
+    // Series are spread over the nodes of the ring when 'urls' is set
+    ShardRing ring = ShardRing.fromParams(getName(), params);
+
+    // One key per node
+    List<InfluxDBClientRegistry.Key> keys = new ArrayList<InfluxDBClientRegistry.Key>();
+    // Target database (1.x) or bucket (2.x)
+    String target;
+    // Maximum number of points per write request, batches span series boundaries
+    int batchSize;
+    // Size batches by encoded bytes from the write latency of the endpoint
+    boolean adaptive = false;
+
+    if (v1) {
       //
       // InfluxDB 1.x
       //
       
-      if (!(params.get(INFLUXDBFLUX.KEY_URL) instanceof String)) {
+      if (null == ring && !(params.get(INFLUXDBFLUX.KEY_URL) instanceof String)) {
         throw new WarpScriptException(getName() + " missing key '" + INFLUXDBFLUX.KEY_URL + "'.");
       }
-      String url = (String) params.get(INFLUXDBFLUX.KEY_URL);
 
       if (!(params.get(INFLUXDBFETCH.KEY_DB) instanceof String)) {
         throw new WarpScriptException(getName() + " missing key '" + INFLUXDBFETCH.KEY_DB + "'.");        
       }      
-      String db = (String) params.get(INFLUXDBFETCH.KEY_DB);
+      target = (String) params.get(INFLUXDBFETCH.KEY_DB);
 
       if (!(params.get(INFLUXDBFLUX.KEY_USER) instanceof String)) {
         throw new WarpScriptException(getName() + " missing key '" + INFLUXDBFLUX.KEY_USER + "'.");
@@ -116,295 +129,397 @@ public class INFLUXDBUPDATE extends NamedWarpScriptFunction implements WarpScrip
       }
       
       String password = (String) params.get(INFLUXDBFLUX.KEY_PASSWORD);
-      
-      if (!(params.get(KEY_MEASUREMENT) instanceof String)) {
-        throw new WarpScriptException(getName() + " missing key '" + KEY_MEASUREMENT + "'.");
+
+      TransportOptions transport = HttpClientUtils.getTransportOptions(getName(), params);
+
+      if (null != ring) {
+        for (int node = 0; node < ring.size(); node++) {
+          keys.add(InfluxDBClientRegistry.Key.v1(ring.url(node), username, password, transport));
+        }
+      } else {
+        keys.add(InfluxDBClientRegistry.Key.v1((String) params.get(INFLUXDBFLUX.KEY_URL), username, password, transport));
+      }
+    } else {
+      //
+      // InfluxDB 2.x
+      //
+      if (null != ring) {
+        for (int node = 0; node < ring.size(); node++) {
+          keys.add(INFLUXDBFLUX.getClientKey(getName(), params, ring.url(node)));
+        }
+      } else {
+        keys.add(INFLUXDBFLUX.getClientKey(getName(), params));
       }
-      
-      String measurement = (String) params.get(KEY_MEASUREMENT);
 
-      String measurementAttr = null;
-      
-      if (params.get(KEY_ATTR) instanceof String) {
-        measurementAttr = (String) params.get(KEY_ATTR);
+      if (!params.containsKey(KEY_BUCKET) || !(params.get(KEY_BUCKET) instanceof String)) {
+        throw new WarpScriptException(getName() + " missing valid '" + KEY_BUCKET + "' parameter.");
       }
       
-      List<Object> data;
-      
-      top = stack.pop();
+      target = (String) params.get(KEY_BUCKET);
+    }
 
-      if (top instanceof List) {
-        data = (List<Object>) top;
-      } else if (top instanceof GeoTimeSerie || top instanceof GTSEncoder) {
-        data = new ArrayList<Object>();
-        data.add(top);
-      } else {
+    if (params.containsKey(KEY_BATCHSIZE) && params.get(KEY_BATCHSIZE) instanceof Long) {
+      batchSize = Math.max(1, Math.min(((Long) params.get(KEY_BATCHSIZE)).intValue(), MAX_BATCH_SIZE));
+    } else {
+      batchSize = Integer.MAX_VALUE;
+      adaptive = true;
+    }
+
+    if (!(params.get(KEY_MEASUREMENT) instanceof String)) {
+      throw new WarpScriptException(getName() + " missing valid '" + KEY_MEASUREMENT + "' parameter.");
+    }
+    
+    String measurement = (String) params.get(KEY_MEASUREMENT);
+
+    String measurementAttr = null;
+    
+    if (params.get(KEY_ATTR) instanceof String) {
+      measurementAttr = (String) params.get(KEY_ATTR);
+    }
+    
+    List<Object> data;
+    
+    top = stack.pop();
+
+    if (top instanceof List) {
+      data = (List<Object>) top;
+    } else if (top instanceof GeoTimeSerie || top instanceof GTSEncoder) {
+      data = new ArrayList<Object>();
+      data.add(top);
+    } else {
+      throw new WarpScriptException(getName() + " expects a Geo Time Series or an Encoder, or a list thereof.");
+    }
+
+    for (int i = 0; i < data.size(); i++) {
+      Object elt = data.get(i);
+      if (!(elt instanceof GeoTimeSerie) && !(elt instanceof GTSEncoder)) {
         throw new WarpScriptException(getName() + " expects a Geo Time Series or an Encoder, or a list thereof.");
       }
-      
-      InfluxDB influxdb = null;
-      
-      try {
-        final Builder okHttpClientBuilder = HttpClientUtils.getOkHttpClientBuilder(getName(), params);
-        influxdb = InfluxDBFactory.connect(url, username, password, okHttpClientBuilder);
-        influxdb.setDatabase(db);
-        influxdb.enableBatch(BatchOptions.DEFAULTS);
-
-        long units = 1000000000L / Constants.TIME_UNITS_PER_S;
-        
-        for (Object elt: data) {
-          // One batch per GTS/Encoder
-          BatchPoints.Builder batch = BatchPoints.builder();
-          if (elt instanceof GeoTimeSerie) {
-            GeoTimeSerie gts = (GeoTimeSerie) elt;
-            int n = GTSHelper.nvalues(gts);
-            Map<String,String> labels = gts.getLabels();
-            
-            //
-            // Extract the measurement from the attributes or use the default one
-            //
-            String name = gts.getName();
-            String mes = measurement;
-            if (null != measurementAttr && gts.getMetadata().getAttributesSize() > 0 && gts.getMetadata().getAttributes().containsKey(measurementAttr)) {
-              mes = gts.getMetadata().getAttributes().get(measurementAttr);
-            }
-            
-            for (int i = 0; i < n; i++) {
-              org.influxdb.dto.Point.Builder point = org.influxdb.dto.Point.measurement(mes);
-              point.tag(labels);
-              point.time(GTSHelper.tickAtIndex(gts, i) * units, TimeUnit.NANOSECONDS);
-              Object value = GTSHelper.valueAtIndex(gts, i);
-              if (value instanceof Number) {
-                point.addField(name, (Number) value);
-              } else if (value instanceof String) {
-                point.addField(name, (String) value);
-              } else {
-                point.addField(name, (Boolean) value);
-              }
-              batch.point(point.build());
-            }
-          } else if (elt instanceof GTSEncoder) {
-            GTSEncoder encoder = (GTSEncoder) elt;
-            GTSDecoder decoder = encoder.getDecoder();
+      Metadata metadata = elt instanceof GeoTimeSerie ? ((GeoTimeSerie) elt).getMetadata() : ((GTSEncoder) elt).getMetadata();
+      if (!representable(metadata, measurement, measurementAttr)) {
+        throw new WarpScriptException(getName() + " cannot store series #" + i + " of the input list, newlines are not allowed in measurements, tags and field keys.");
+      }
+    }
+
+    boolean merge = Boolean.TRUE.equals(params.get(KEY_MERGE));
+
+    int concurrency = 1;
+
+    if (params.containsKey(KEY_CONCURRENCY)) {
+      if (!(params.get(KEY_CONCURRENCY) instanceof Long) || ((Long) params.get(KEY_CONCURRENCY)) < 1) {
+        throw new WarpScriptException(getName() + " expects a strictly positive LONG value for the '" + KEY_CONCURRENCY + "' parameter.");
+      }
+      if (null != ring) {
+        // Both use the extension executor, the nodes are already written concurrently
+        throw new WarpScriptException(getName() + " cannot use '" + KEY_CONCURRENCY + "' together with '" + ShardRing.KEY_URLS + "'.");
+      }
+      if (merge) {
+        // Merged series are written by a single thread
+        throw new WarpScriptException(getName() + " cannot use '" + KEY_CONCURRENCY + "' together with '" + KEY_MERGE + "'.");
+      }
+      concurrency = (int) Math.min((Long) params.get(KEY_CONCURRENCY), MAX_CONCURRENCY);
+    }
 
-            Map<String,String> labels = encoder.getLabels();
-            
+    boolean async = Boolean.TRUE.equals(params.get(KEY_ASYNC));
+    boolean block = true;
+    boolean overflow = false;
+
+    if (params.containsKey(KEY_BACKPRESSURE)) {
+      if (BACKPRESSURE_REJECT.equals(params.get(KEY_BACKPRESSURE))) {
+        block = false;
+      } else if (BACKPRESSURE_SPILL.equals(params.get(KEY_BACKPRESSURE))) {
+        block = false;
+        overflow = true;
+      } else if (!BACKPRESSURE_BLOCK.equals(params.get(KEY_BACKPRESSURE))) {
+        throw new WarpScriptException(getName() + " expects '" + KEY_BACKPRESSURE + "' to be '" + BACKPRESSURE_BLOCK + "', '" + BACKPRESSURE_REJECT + "' or '" + BACKPRESSURE_SPILL + "'.");
+      }
+    }
+
+    boolean spill = Boolean.TRUE.equals(params.get(KEY_SPILL));
+
+    if ((overflow || spill) && null == InfluxDBWarpScriptExtension.getSpillBuffer()) {
+      throw new WarpScriptException(getName() + " cannot spill batches, '" + InfluxDBWarpScriptExtension.CONF_SPILL_DIR + "' is not configured.");
+    }
+
+    // Direct writes are cancelled when the deadline expires or the execution is interrupted
+    try (CallGuard guard = CallGuard.fromParams(getName(), params, stack)) {
+      final String mes = measurement;
+      final String attr = measurementAttr;
+      final int size = batchSize;
+      final boolean adapt = adaptive;
+      final int threads = concurrency;
+      final boolean limited = !params.containsKey(KEY_CONCURRENCY);
+      final boolean blocking = block;
+      final boolean spillFull = overflow;
+
+      // Writes the series of a node, or of the single endpoint
+      NodeWriter nodeWriter = (key, series) -> {
+        if (null != InfluxDBWarpScriptExtension.getSpillBuffer()) {
+          // Batches spilled for this endpoint by a previous run can now be replayed
+          InfluxDBWarpScriptExtension.getSpillBuffer().register(key);
+        }
+
+        try (InfluxDBClientRegistry.Lease lease = InfluxDBWarpScriptExtension.getClientRegistry().acquire(key)) {
+          HttpUrl url = v1 ? LineProtocolWriter.v1(key, target) : LineProtocolWriter.v2(key, target);
+          LineProtocolWriter writer;
+
+          if (async) {
+            // Batches are handed over to the background writers
+            writer = new LineProtocolWriter(InfluxDBWarpScriptExtension.getWriteQueue(), key, url, blocking, spillFull);
+          } else {
+            writer = new LineProtocolWriter(lease.http(), url, key, spill ? InfluxDBWarpScriptExtension.getSpillBuffer() : null, guard);
+          }
+
+          writer.setBatchSize(size, adapt);
+          // An explicit concurrency is not capped by the adaptive one of the endpoint
+          writer.setLimited(limited);
+
+          // lat/lon/elev fields are only set for InfluxDB 2.x
+          LineProtocolEncoder encoder = new LineProtocolEncoder(BUFFER_SIZE, !v1);
+
+          if (merge) {
+            writeMerged(series, mes, attr, encoder, writer);
+            return;
+          }
+
+          if (threads > 1) {
             //
-            // Extract the measurement from the attributes or use the default one
+            // Convert the next series while the previous ones are being written
             //
-            String name = encoder.getName();
-            String mes = measurement;
-            if (null != measurementAttr && encoder.getMetadata().getAttributesSize() > 0 && encoder.getMetadata().getAttributes().containsKey(measurementAttr)) {
-              mes = encoder.getMetadata().getAttributes().get(measurementAttr);
-            }
-            
-            while(decoder.next()) {
-              org.influxdb.dto.Point.Builder point = org.influxdb.dto.Point.measurement(mes);
-              point.tag(labels);
-              point.time(decoder.getTimestamp() * units, TimeUnit.NANOSECONDS);
-              Object value = decoder.getValue();
-              if (value instanceof Number) {
-                point.addField(name, (Number) value);
-              } else if (value instanceof String) {
-                point.addField(name, (String) value);
-              } else {
-                point.addField(name, (Boolean) value);
-              }
-              batch.point(point.build());
-            }
+            WritePipeline.run(series, threads, BUFFER_SIZE, !v1, (elt, enc) -> {
+              writeSeries(elt, mes, attr, enc, writer);
+              // Encoders are shared among series, flush the remaining points
+              writer.write(enc);
+            });
           } else {
-            throw new WarpScriptException(getName() + " expects a Geo Time Series or an Encoder, or a list thereof.");
-          }          
-          influxdb.write(batch.build());
+            for (Object elt: series) {
+              writeSeries(elt, mes, attr, encoder, writer);
+            }
+          }
+
+          writer.write(encoder);
         }
-      } catch (Exception e) {
-        throw new WarpScriptException(getName() + " error while writing data points.", e);
-      } finally {
-        if (null != influxdb) {
-          influxdb.close();
+      };
+
+      try {
+        if (null != ring) {
+          writeShards(ring, keys, data, measurement, measurementAttr, nodeWriter, guard);
+        } else {
+          nodeWriter.write(keys.get(0), data);
         }
-      }      
+      } catch (IOException ioe) {
+        throw guard.error(getName() + " error writing data points.", ioe);
+      }
+    }
+
+    return stack;
+  }
+
+  /**
+   * Write each series to the nodes of the ring holding it, all nodes concurrently. The call fails if a series
+   * could not be written to all of its nodes, as sharded reads skip up to replicas - 1 nodes on probation
+   * and would miss the points held by fewer nodes.
+   */
+  private static void writeShards(ShardRing ring, List<InfluxDBClientRegistry.Key> keys, List<Object> data, String measurement, String measurementAttr, NodeWriter writer, CallGuard guard) throws IOException {
+    List<List<Object>> shards = new ArrayList<List<Object>>(ring.size());
+    for (int node = 0; node < ring.size(); node++) {
+      shards.add(new ArrayList<Object>());
+    }
+
+    int[][] placement = new int[data.size()][];
+
+    for (int i = 0; i < data.size(); i++) {
+      Object elt = data.get(i);
+      Metadata metadata = elt instanceof GeoTimeSerie ? ((GeoTimeSerie) elt).getMetadata() : ((GTSEncoder) elt).getMetadata();
+      Map<String,String> tags = metadata.getLabelsSize() > 0 ? metadata.getLabels() : Collections.<String,String>emptyMap();
+      placement[i] = ring.nodes(measurement(metadata, measurement, measurementAttr), tags);
+      for (int node: placement[i]) {
+        shards.get(node).add(elt);
+      }
+    }
+
+    int[] nodes = new int[ring.size()];
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for (int node = 0; node < ring.size(); node++) {
+      if (shards.get(node).isEmpty()) {
+        continue;
+      }
+      final InfluxDBClientRegistry.Key key = keys.get(node);
+      final List<Object> shard = shards.get(node);
+      nodes[tasks.size()] = node;
+      tasks.add(() -> {
+        writer.write(key, shard);
+        return null;
+      });
+    }
+
+    IOException[] errors = ring.run(nodes, tasks, new ArrayList<Void>(), guard);
+
+    for (int i = 0; i < placement.length; i++) {
+      for (int node: placement[i]) {
+        if (null != errors[node]) {
+          throw new IOException("Error writing series #" + i + " of the input list to '" + ring.url(node) + "'.", errors[node]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Encode a GTS or Encoder, writing a batch each time the writer considers the encoder full.
+   * The last points of the series are left in the encoder.
+   */
+  private static void writeSeries(Object elt, String measurement, String measurementAttr, LineProtocolEncoder encoder, LineProtocolWriter writer) throws IOException {
+    if (elt instanceof GeoTimeSerie) {
+      GeoTimeSerie gts = (GeoTimeSerie) elt;
+      encoder.series(measurement(gts.getMetadata(), measurement, measurementAttr), gts.getLabels(), gts.getName());
+
+      int n = GTSHelper.nvalues(gts);
+      for (int i = 0; i < n; i++) {
+        encoder.append(GTSHelper.tickAtIndex(gts, i), GTSHelper.locationAtIndex(gts, i), GTSHelper.elevationAtIndex(gts, i), GTSHelper.valueAtIndex(gts, i));
+        if (writer.full(encoder)) {
+          writer.write(encoder);
+        }
+      }
     } else {
-      //
-      // InfluxDB 2.x
-      //
-      InfluxDBClientOptions.Builder builder = new InfluxDBClientOptions.Builder();
+      GTSDecoder decoder = ((GTSEncoder) elt).getDecoder();
+      encoder.series(measurement(decoder.getMetadata(), measurement, measurementAttr), decoder.getLabels(), decoder.getName());
 
-      if (!params.containsKey(INFLUXDBFLUX.KEY_URL) || !(params.get(INFLUXDBFLUX.KEY_URL) instanceof String)) {
-        throw new WarpScriptException(getName() + " missing valid '" + INFLUXDBFLUX.KEY_URL + "' parameter.");
+      while(decoder.next()) {
+        encoder.append(decoder.getTimestamp(), decoder.getLocation(), decoder.getElevation(), decoder.getValue());
+        if (writer.full(encoder)) {
+          writer.write(encoder);
+        }
       }
-      
-      builder.url((String) params.get(INFLUXDBFLUX.KEY_URL));
-      
-      if (params.containsKey(INFLUXDBFLUX.KEY_TOKEN) && params.get(INFLUXDBFLUX.KEY_TOKEN) instanceof String) {
-        builder.authenticateToken(((String) params.get(INFLUXDBFLUX.KEY_TOKEN)).toCharArray());
-      } else if (params.containsKey(INFLUXDBFLUX.KEY_USER)
-          && params.containsKey(INFLUXDBFLUX.KEY_PASSWORD)
-          && params.get(INFLUXDBFLUX.KEY_USER) instanceof String
-          && params.get(INFLUXDBFLUX.KEY_PASSWORD) instanceof String) {
-        builder.authenticate((String) params.get(INFLUXDBFLUX.KEY_USER), ((String) params.get(INFLUXDBFLUX.KEY_PASSWORD)).toCharArray()); 
+    }
+  }
+
+  /**
+   * Write series sharing the same measurement and tags as lines holding one field per series.
+   * The series of each group are merged on their timestamps, lat/lon/elev are emitted once per
+   * line, from the first series of the group with a location or elevation at that timestamp.
+   */
+  private static void writeMerged(List<Object> data, String measurement, String measurementAttr, LineProtocolEncoder encoder, LineProtocolWriter writer) throws IOException {
+    //
+    // Group the series by measurement and tags, preserving the input order
+    //
+    Map<List<Object>,List<GeoTimeSerie>> groups = new LinkedHashMap<List<Object>,List<GeoTimeSerie>>();
+
+    for (Object elt: data) {
+      GeoTimeSerie gts;
+      if (elt instanceof GTSEncoder) {
+        gts = ((GTSEncoder) elt).getDecoder().decode();
       } else {
-        throw new WarpScriptException(getName() + " missing key '" + INFLUXDBFLUX.KEY_TOKEN + "' or keys '" + INFLUXDBFLUX.KEY_USER + "' and '" + INFLUXDBFLUX.KEY_PASSWORD + "'.");
+        gts = (GeoTimeSerie) elt;
       }
-      
-      if (!params.containsKey(INFLUXDBFLUX.KEY_ORG) || !(params.get(INFLUXDBFLUX.KEY_ORG) instanceof String)) {
-        throw new WarpScriptException(getName() + " missing valid '" + INFLUXDBFLUX.KEY_ORG + "' parameter.");
-      }
-      
-      builder.org((String) params.get(INFLUXDBFLUX.KEY_ORG));
-      
-      if (!params.containsKey(KEY_BUCKET) || !(params.get(KEY_BUCKET) instanceof String)) {
-        throw new WarpScriptException(getName() + " missing valid '" + KEY_BUCKET + "' parameter.");
+
+      if (0 == GTSHelper.nvalues(gts)) {
+        continue;
       }
-      
-      builder.bucket((String) params.get(KEY_BUCKET));
 
-      if (!params.containsKey(KEY_MEASUREMENT) || !(params.get(KEY_MEASUREMENT) instanceof String)) {
-        throw new WarpScriptException(getName() + " missing valid '" + KEY_MEASUREMENT + "' parameter.");      
+      if (elt instanceof GeoTimeSerie) {
+        // Series are sorted below, those of the caller must be left as they are
+        gts = gts.clone();
       }
-      
-      String measurement = (String) params.get(KEY_MEASUREMENT);
-      
-      String measurementAttr = null;
-      
-      if (params.get(KEY_ATTR) instanceof String) {
-        measurementAttr = (String) params.get(KEY_ATTR);
+
+      List<Object> group = Arrays.asList(measurement(gts.getMetadata(), measurement, measurementAttr), gts.getLabels());
+      List<GeoTimeSerie> series = groups.get(group);
+      if (null == series) {
+        series = new ArrayList<GeoTimeSerie>();
+        groups.put(group, series);
       }
+      series.add(gts);
+    }
 
-      final Builder okHttpClientBuilder = HttpClientUtils.getOkHttpClientBuilder(getName(), params);
-      builder.okHttpClient(okHttpClientBuilder);
+    for (Map.Entry<List<Object>,List<GeoTimeSerie>> group: groups.entrySet()) {
+      encoder.measurement((String) group.getKey().get(0), (Map<String,String>) group.getKey().get(1));
 
-      InfluxDBClientOptions options = builder.build();
-      
-      InfluxDBClient client = null;
-      WriteApi write = null;
-      
-      try {
-        top = stack.pop();
-
-        List<Object> data;
-        
-        if (top instanceof List) {
-          data = (List<Object>) top;
-        } else if (top instanceof GeoTimeSerie || top instanceof GTSEncoder) {
-          data = new ArrayList<Object>();
-          data.add(top);
-        } else {
-          throw new WarpScriptException(getName() + " expects a Geo Time Series or an Encoder, or a list thereof.");
+      List<GeoTimeSerie> series = group.getValue();
+      int n = series.size();
+      byte[][] fields = new byte[n][];
+      int[] sizes = new int[n];
+      int[] idx = new int[n];
+
+      for (int i = 0; i < n; i++) {
+        GeoTimeSerie gts = series.get(i);
+        GTSHelper.sort(gts);
+        fields[i] = LineProtocolEncoder.fieldKey(gts.getName());
+        sizes[i] = GTSHelper.nvalues(gts);
+      }
+
+      while (true) {
+        // Find the next timestamp
+        long ts = Long.MAX_VALUE;
+        boolean done = true;
+        for (int i = 0; i < n; i++) {
+          if (idx[i] < sizes[i]) {
+            done = false;
+            ts = Math.min(ts, GTSHelper.tickAtIndex(series.get(i), idx[i]));
+          }
         }
-        
-        client = InfluxDBClientFactory.create(options);
-        WriteOptions.Builder woptions = WriteOptions.builder();
-        
-        if (params.containsKey(KEY_BATCHSIZE) && params.get(KEY_BATCHSIZE) instanceof Long) {
-          woptions.batchSize(Math.min(((Long) params.get(KEY_BATCHSIZE)).intValue(), MAX_BATCH_SIZE));        
-        } else {
-          woptions.batchSize(MAX_BATCH_SIZE >> 2);
+
+        if (done) {
+          break;
         }
-        
-        write =  client.getWriteApi(woptions.build());
-
-        
-        for (Object elt: data) {
-          if (elt instanceof GTSEncoder) {
-            GTSDecoder decoder = ((GTSEncoder) elt).getDecoder(true);
-            String field = decoder.getName();
-            Map<String,String> tags = new HashMap<String,String>(decoder.getLabels());
-            
-            String mes = measurement;
-            if (null != measurementAttr && decoder.getMetadata().getAttributesSize() > 0 && decoder.getMetadata().getAttributes().containsKey(measurementAttr)) {
-              mes = decoder.getMetadata().getAttributes().get(measurementAttr);
-            }
-            
-            while(decoder.next()) {
-              long ts = decoder.getTimestamp();
-              long location = decoder.getLocation();
-              long elevation = decoder.getElevation();
-              Object value = decoder.getValue();
-              
-              Point point = Point.measurement(mes);
-              point.addTags(tags);
-              point.time(ts, PRECISION);
-              
-              if (GeoTimeSerie.NO_LOCATION != location) {
-                double[] latlon = GeoXPLib.fromGeoXPPoint(location);
-                point.addField(FIELD_LATITUDE, (double) latlon[0]);
-                point.addField(FIELD_LONGITUDE, (double) latlon[1]);
-              }
-              
-              if (GeoTimeSerie.NO_ELEVATION != elevation) {
-                point.addField(FIELD_ELEVATION, (long) elevation);
-              }
-              
-              if (value instanceof Long) {
-                point.addField(field, ((Long) value).longValue());
-              } else if (value instanceof Double) {
-                point.addField(field, ((Double) value).doubleValue());
-              } else if (value instanceof Boolean) {
-                point.addField(field, Boolean.TRUE.equals(value));
-              } else if (value instanceof String) {
-                point.addField(field, (String) value);
-              }
-              
-              write.writePoint(point);
-            }
-          } else if (elt instanceof GeoTimeSerie) {
-            GeoTimeSerie gts = (GeoTimeSerie) elt;
-            String field = gts.getName();
-            
-            String mes = measurement;
-            if (null != measurementAttr && gts.getMetadata().getAttributesSize() > 0 && gts.getMetadata().getAttributes().containsKey(measurementAttr)) {
-              mes = gts.getMetadata().getAttributes().get(measurementAttr);
-            }
 
-            Map<String,String> tags = new HashMap<String,String>(gts.getLabels());
-            for (int i = 0; i < GTSHelper.nvalues(gts); i++) {
-              long ts = GTSHelper.tickAtIndex(gts, i);
-              long location = GTSHelper.locationAtIndex(gts, i);
-              long elevation = GTSHelper.elevationAtIndex(gts, i);
-              Object value = GTSHelper.valueAtIndex(gts, i);
-              
-              Point point = Point.measurement(mes);
-              point.addTags(tags);
-              point.time(ts, PRECISION);
-              
-              if (GeoTimeSerie.NO_LOCATION != location) {
-                double[] latlon = GeoXPLib.fromGeoXPPoint(location);
-                point.addField(FIELD_LATITUDE, (double) latlon[0]);
-                point.addField(FIELD_LONGITUDE, (double) latlon[1]);
-              }
-              
-              if (GeoTimeSerie.NO_ELEVATION != elevation) {
-                point.addField(FIELD_ELEVATION, (long) elevation);
-              }
-              
-              if (value instanceof Long) {
-                point.addField(field, ((Long) value).longValue());
-              } else if (value instanceof Double) {
-                point.addField(field, ((Double) value).doubleValue());
-              } else if (value instanceof Boolean) {
-                point.addField(field, Boolean.TRUE.equals(value));
-              } else if (value instanceof String) {
-                point.addField(field, (String) value);
-              }
-              
-              write.writePoint(point);            
+        encoder.startLine();
+
+        boolean located = false;
+        for (int i = 0; i < n; i++) {
+          if (idx[i] >= sizes[i]) {
+            continue;
+          }
+          GeoTimeSerie gts = series.get(i);
+          if (ts != GTSHelper.tickAtIndex(gts, idx[i])) {
+            continue;
+          }
+          if (!located) {
+            long location = GTSHelper.locationAtIndex(gts, idx[i]);
+            long elevation = GTSHelper.elevationAtIndex(gts, idx[i]);
+            if (GeoTimeSerie.NO_LOCATION != location || GeoTimeSerie.NO_ELEVATION != elevation) {
+              encoder.location(location, elevation);
+              located = true;
             }
           }
+          encoder.field(fields[i], GTSHelper.valueAtIndex(gts, idx[i]));
+          // Only consume one value per series, duplicate timestamps end up on subsequent lines
+          idx[i]++;
         }
-      } catch (Exception e) {
-        throw new WarpScriptException(getName() + " error writing data points.", e);
-      } finally {
-        if (null != write) {
-          write.flush();
-          write.close();
+
+        encoder.endLine(ts);
+
+        if (writer.full(encoder)) {
+          writer.write(encoder);
         }
-        if (null != client) {
-          client.close();
+      }
+    }
+
+    writer.write(encoder);
+  }
+
+  /**
+   * Can the measurement, tags and field key of a series be written as line protocol
+   */
+  private static boolean representable(Metadata metadata, String measurement, String measurementAttr) {
+    if (!LineProtocolEncoder.representable(measurement(metadata, measurement, measurementAttr)) || !LineProtocolEncoder.representable(metadata.getName())) {
+      return false;
+    }
+    if (metadata.getLabelsSize() > 0) {
+      for (Map.Entry<String,String> label: metadata.getLabels().entrySet()) {
+        if (!LineProtocolEncoder.representable(label.getKey()) || !LineProtocolEncoder.representable(label.getValue())) {
+          return false;
         }
-      }      
+      }
     }
+    return true;
+  }
 
-    return stack;
+  /**
+   * Extract the measurement from the attributes or use the default one
+   */
+  private static String measurement(Metadata metadata, String measurement, String measurementAttr) {
+    if (null != measurementAttr && metadata.getAttributesSize() > 0 && metadata.getAttributes().containsKey(measurementAttr)) {
+      return metadata.getAttributes().get(measurementAttr);
+    }
+    return measurement;
   }
 }
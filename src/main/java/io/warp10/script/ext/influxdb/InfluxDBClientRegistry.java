@@ -0,0 +1,389 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.ext.influxdb;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.influxdb.client.InfluxDBClient;
+import com.influxdb.client.InfluxDBClientFactory;
+import com.influxdb.client.InfluxDBClientOptions;
+
+import okhttp3.OkHttpClient;
+
+/**
+ * Registry of InfluxDB clients shared by all the functions of the extension.
+ *
+ * Clients are keyed by endpoint, credentials, organization and transport options. Each
+ * use of a client is bracketed by a {@link Lease}, clients which have not been leased for
+ * longer than the idle timeout are closed by a background task. When the registry holds
+ * its maximum number of clients and none of them is idle, a private client is created for
+ * the caller and closed as soon as its lease is released.
+ */
+public class InfluxDBClientRegistry {
+
+  private final int maxClients;
+  private final long idleTimeout;
+
+  /**
+   * Pooled entries, in access order so the eldest idle entry is evicted first
+   */
+  private final LinkedHashMap<Key,Entry> entries = new LinkedHashMap<Key,Entry>(16, 0.75F, true);
+
+  private final ScheduledExecutorService evictor;
+
+  public InfluxDBClientRegistry(int maxClients, long idleTimeout) {
+    this.maxClients = maxClients;
+    this.idleTimeout = idleTimeout;
+
+    if (maxClients > 0 && idleTimeout > 0) {
+      this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r);
+        t.setName("[InfluxDB client evictor]");
+        t.setDaemon(true);
+        return t;
+      });
+      long period = Math.max(1000L, idleTimeout / 2);
+      this.evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    } else {
+      this.evictor = null;
+    }
+  }
+
+  /**
+   * Identifies a client. Password and token are part of the key so different
+   * credentials never share a client.
+   */
+  public static class Key {
+    private final boolean v2;
+    private final String url;
+    private final String user;
+    private final String password;
+    private final String token;
+    private final String org;
+    private final TransportOptions transport;
+
+    private Key(boolean v2, String url, String user, String password, String token, String org, TransportOptions transport) {
+      this.v2 = v2;
+      this.url = url;
+      this.user = user;
+      this.password = password;
+      this.token = token;
+      this.org = org;
+      this.transport = transport;
+    }
+
+    public static Key v1(String url, String user, String password, TransportOptions transport) {
+      return new Key(false, url, user, password, null, null, transport);
+    }
+
+    public static Key v2(String url, String user, String password, String token, String org, TransportOptions transport) {
+      return new Key(true, url, user, password, token, org, transport);
+    }
+
+    public boolean isV2() {
+      return v2;
+    }
+
+    public String getUrl() {
+      return url;
+    }
+
+    public String getUser() {
+      return user;
+    }
+
+    public String getPassword() {
+      return password;
+    }
+
+    public String getToken() {
+      return token;
+    }
+
+    public String getOrg() {
+      return org;
+    }
+
+    public TransportOptions getTransport() {
+      return transport;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return v2 == other.v2 && Arrays.equals(fields(), other.fields());
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * Boolean.hashCode(v2) + Arrays.hashCode(fields());
+    }
+
+    private Object[] fields() {
+      return new Object[] { url, user, password, token, org, transport };
+    }
+
+    /**
+     * Stable identifier of the endpoint and credentials, which does not reveal the credentials.
+     * Transport options are not part of the identifier.
+     */
+    public String id() {
+      try {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        for (Object field: new Object[] { v2, url, user, password, token, org }) {
+          md.update(String.valueOf(field).getBytes(StandardCharsets.UTF_8));
+          md.update((byte) 0);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b: md.digest()) {
+          sb.append(String.format("%02x", b & 0xFF));
+        }
+        return sb.toString();
+      } catch (NoSuchAlgorithmException nsae) {
+        throw new RuntimeException(nsae);
+      }
+    }
+  }
+
+  private static class Entry {
+    private final Key key;
+    private final boolean pooled;
+    private int refCount = 0;
+    private long lastReleased = System.currentTimeMillis();
+
+    /**
+     * Client built from the transport options, the clients of the entry derive from it so they share its connection pool and dispatcher
+     */
+    private OkHttpClient base = null;
+
+    private InfluxDBClient v2 = null;
+    private OkHttpClient http = null;
+
+    private Entry(Key key, boolean pooled) {
+      this.key = key;
+      this.pooled = pooled;
+    }
+
+    private synchronized OkHttpClient base() {
+      if (null == base) {
+        base = key.transport.newBuilder().build();
+      }
+      return base;
+    }
+
+    private synchronized InfluxDBClient v2() {
+      if (null == v2) {
+        InfluxDBClientOptions.Builder builder = new InfluxDBClientOptions.Builder();
+        builder.url(key.url);
+        if (null != key.token) {
+          builder.authenticateToken(key.token.toCharArray());
+        } else {
+          builder.authenticate(key.user, key.password.toCharArray());
+        }
+        builder.org(key.org);
+        builder.okHttpClient(base().newBuilder().addInterceptor(InfluxDBWarpScriptExtension.getMetrics().interceptor()));
+        v2 = InfluxDBClientFactory.create(builder.build());
+      }
+      return v2;
+    }
+
+    private synchronized OkHttpClient http() {
+      if (null == http) {
+        http = base().newBuilder().addInterceptor(CallGuard.INTERCEPTOR).addInterceptor(InfluxDBWarpScriptExtension.getMetrics().interceptor()).addInterceptor(new AuthInterceptor(key)).build();
+      }
+      return http;
+    }
+
+    private synchronized void close() {
+      if (null != v2) {
+        try {
+          v2.close();
+        } catch (Throwable t) {
+          // Ignore, the client is discarded anyway
+        }
+        v2 = null;
+      }
+      http = null;
+      if (null != base) {
+        base.dispatcher().executorService().shutdown();
+        base.connectionPool().evictAll();
+        base = null;
+      }
+    }
+  }
+
+  /**
+   * Handle on a client, must be closed once the caller is done with the client.
+   * The underlying client must not be closed by the caller.
+   */
+  public class Lease implements AutoCloseable {
+    private final Entry entry;
+    private boolean released = false;
+
+    private Lease(Entry entry) {
+      this.entry = entry;
+    }
+
+    public Key getKey() {
+      return entry.key;
+    }
+
+    public InfluxDBClient v2() {
+      return entry.v2();
+    }
+
+    /**
+     * HTTP client for the requests issued directly by the extension, credentials are added automatically
+     */
+    public OkHttpClient http() {
+      return entry.http();
+    }
+
+    @Override
+    public void close() {
+      if (released) {
+        return;
+      }
+      released = true;
+      release(entry);
+    }
+  }
+
+  public Lease acquire(Key key) {
+    Entry entry = null;
+    List<Entry> evicted = null;
+
+    synchronized(entries) {
+      if (maxClients > 0) {
+        entry = entries.get(key);
+
+        if (null == entry) {
+          if (entries.size() >= maxClients) {
+            evicted = new ArrayList<Entry>();
+            // Evict the least recently used idle entries to make room
+            Iterator<Entry> iter = entries.values().iterator();
+            while (entries.size() >= maxClients && iter.hasNext()) {
+              Entry e = iter.next();
+              if (0 == e.refCount) {
+                iter.remove();
+                evicted.add(e);
+              }
+            }
+          }
+
+          if (entries.size() < maxClients) {
+            entry = new Entry(key, true);
+            entries.put(key, entry);
+          }
+        }
+      }
+
+      if (null == entry) {
+        entry = new Entry(key, false);
+      }
+
+      entry.refCount++;
+    }
+
+    if (null != evicted) {
+      for (Entry e: evicted) {
+        e.close();
+      }
+    }
+
+    return new Lease(entry);
+  }
+
+  private void release(Entry entry) {
+    boolean close = false;
+
+    synchronized(entries) {
+      entry.refCount--;
+      entry.lastReleased = System.currentTimeMillis();
+      close = !entry.pooled && 0 == entry.refCount;
+    }
+
+    if (close) {
+      entry.close();
+    }
+  }
+
+  private void evictIdle() {
+    List<Entry> evicted = new ArrayList<Entry>();
+    long now = System.currentTimeMillis();
+
+    synchronized(entries) {
+      Iterator<Map.Entry<Key,Entry>> iter = entries.entrySet().iterator();
+      while (iter.hasNext()) {
+        Entry entry = iter.next().getValue();
+        if (0 == entry.refCount && now - entry.lastReleased >= idleTimeout) {
+          iter.remove();
+          evicted.add(entry);
+        }
+      }
+    }
+
+    for (Entry entry: evicted) {
+      entry.close();
+    }
+  }
+
+  /**
+   * Close all idle clients. Pooled clients in use are left in the pool, they are closed once idle for the idle timeout or evicted to make room for other clients.
+   */
+  public void clear() {
+    List<Entry> evicted = new ArrayList<Entry>();
+
+    synchronized(entries) {
+      Iterator<Entry> iter = entries.values().iterator();
+      while (iter.hasNext()) {
+        Entry entry = iter.next();
+        if (0 == entry.refCount) {
+          iter.remove();
+          evicted.add(entry);
+        }
+      }
+    }
+
+    for (Entry entry: evicted) {
+      entry.close();
+    }
+  }
+
+  public int size() {
+    synchronized(entries) {
+      return entries.size();
+    }
+  }
+}
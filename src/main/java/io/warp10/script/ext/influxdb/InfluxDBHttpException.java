@@ -0,0 +1,90 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.ext.influxdb;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+
+/**
+ * Non successful HTTP response from InfluxDB
+ */
+class InfluxDBHttpException extends IOException {
+
+  private final int code;
+  private final long retryAfter;
+
+  InfluxDBHttpException(int code, String message) {
+    this(code, message, -1L);
+  }
+
+  /**
+   * @param retryAfter delay (in ms) set by the Retry-After header, -1 if there was none
+   */
+  InfluxDBHttpException(int code, String message, long retryAfter) {
+    super(message);
+    this.code = code;
+    this.retryAfter = retryAfter;
+  }
+
+  int getCode() {
+    return code;
+  }
+
+  /**
+   * @return the delay (in ms) after which the server asked to retry, -1 if it did not
+   */
+  long getRetryAfter() {
+    return retryAfter;
+  }
+
+  /**
+   * Was the request rejected because the server is overloaded (429) or unavailable (503)
+   */
+  boolean isThrottled() {
+    return 429 == code || 503 == code;
+  }
+
+  /**
+   * Can the request succeed if it is retried later, i.e. the server was overloaded or unavailable
+   */
+  boolean isRetryable() {
+    return 429 == code || code >= 500;
+  }
+
+  /**
+   * Can a write request failing with this exception succeed later. Connection errors, timeouts and
+   * overloaded or unavailable servers are transient, malformed requests and cancelled calls are not.
+   */
+  static boolean isTransient(IOException ioe) {
+    if (ioe instanceof InfluxDBHttpException) {
+      return ((InfluxDBHttpException) ioe).isRetryable();
+    }
+    return !isCancellation(ioe);
+  }
+
+  /**
+   * Was the call cancelled, by its guard or by an interruption, rather than failed by the server
+   */
+  static boolean isCancellation(IOException ioe) {
+    if (ioe instanceof SocketTimeoutException) {
+      return false;
+    }
+    // OkHttp reports calls cancelled while in flight with a plain IOException
+    return ioe instanceof InterruptedIOException || "Canceled".equals(ioe.getMessage());
+  }
+}
@@ -0,0 +1,340 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.ext.influxdb;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.warp10.sensision.Sensision;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.ForwardingSource;
+import okio.Okio;
+
+/**
+ * Counters and latency histograms of the extension, per InfluxDB endpoint and per function.
+ *
+ * Endpoint metrics are recorded by {@link #interceptor()}, added to every client of the registry, and by
+ * the writers. Function metrics are recorded by {@link CallGuard} when a call ends: its duration, the time
+ * spent in HTTP calls and the rest of it, mostly spent converting data. When influxdb.sensision is true,
+ * counters are also published to the Sensision metrics of the Warp 10 instance.
+ */
+class InfluxDBMetrics {
+
+  private static final String SENSISION_CLASS_PREFIX = "warp.ext.influxdb.";
+  private static final String SENSISION_LABEL_ENDPOINT = "endpoint";
+  private static final String SENSISION_LABEL_FUNCTION = "function";
+
+  /**
+   * Number of histogram buckets, bucket i counts the durations below 2^i us, the last one the longer ones
+   */
+  private static final int BUCKETS = 32;
+
+  private static final double[] PERCENTILES = { 0.5D, 0.9D, 0.99D };
+
+  /**
+   * Counter optionally mirrored in Sensision
+   */
+  private class Counter {
+    private final LongAdder adder = new LongAdder();
+    private final String sensisionClass;
+    private final Map<String,String> labels;
+
+    private Counter(String name, Map<String,String> labels) {
+      this.sensisionClass = SENSISION_CLASS_PREFIX + name;
+      this.labels = labels;
+    }
+
+    private void add(long delta) {
+      adder.add(delta);
+      if (sensision) {
+        Sensision.update(sensisionClass, labels, delta);
+      }
+    }
+
+    private long get() {
+      return adder.sum();
+    }
+  }
+
+  /**
+   * Histogram of durations with power of two buckets, percentiles are reported as the upper bound of their bucket
+   */
+  private class Histogram {
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final Counter count;
+    private final Counter sum;
+    private final AtomicLong max = new AtomicLong();
+
+    private Histogram(String name, Map<String,String> labels) {
+      for (int i = 0; i < BUCKETS; i++) {
+        buckets[i] = new LongAdder();
+      }
+      count = new Counter(name + ".count", labels);
+      sum = new Counter(name + ".us", labels);
+    }
+
+    private void record(long nanos) {
+      long us = Math.max(0L, nanos / 1000L);
+      buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(us))].increment();
+      count.add(1L);
+      sum.add(us);
+      long current = max.get();
+      while (us > current && !max.compareAndSet(current, us)) {
+        current = max.get();
+      }
+    }
+
+    private Map<Object,Object> stats() {
+      Map<Object,Object> stats = new LinkedHashMap<Object,Object>();
+
+      long[] counts = new long[BUCKETS];
+      long total = 0L;
+      for (int i = 0; i < BUCKETS; i++) {
+        counts[i] = buckets[i].sum();
+        total += counts[i];
+      }
+
+      stats.put("count", total);
+      stats.put("sum.us", sum.get());
+      stats.put("max.us", max.get());
+
+      for (double percentile: PERCENTILES) {
+        long rank = (long) Math.ceil(percentile * total);
+        long seen = 0L;
+        long bound = 0L;
+        for (int i = 0; i < BUCKETS && total > 0L; i++) {
+          seen += counts[i];
+          if (seen >= rank) {
+            // The last bucket has no upper bound, use the maximum
+            bound = i < BUCKETS - 1 ? Math.min(1L << i, max.get()) : max.get();
+            break;
+          }
+        }
+        stats.put("p" + Math.round(percentile * 100D) + ".us", bound);
+      }
+
+      return stats;
+    }
+  }
+
+  private class EndpointMetrics {
+    private final Counter requests;
+    private final Counter errors;
+    private final Counter retries;
+    private final Counter bytesIn;
+    private final Counter bytesOut;
+    private final Counter pointsRead;
+    private final Counter pointsWritten;
+    private final Histogram latency;
+
+    private EndpointMetrics(String endpoint) {
+      Map<String,String> labels = Collections.singletonMap(SENSISION_LABEL_ENDPOINT, endpoint);
+      requests = new Counter("requests", labels);
+      errors = new Counter("errors", labels);
+      retries = new Counter("retries", labels);
+      bytesIn = new Counter("bytes.in", labels);
+      bytesOut = new Counter("bytes.out", labels);
+      pointsRead = new Counter("points.read", labels);
+      pointsWritten = new Counter("points.written", labels);
+      latency = new Histogram("latency", labels);
+    }
+
+    private Map<Object,Object> stats() {
+      Map<Object,Object> stats = new LinkedHashMap<Object,Object>();
+      stats.put("requests", requests.get());
+      stats.put("errors", errors.get());
+      stats.put("retries", retries.get());
+      stats.put("bytes.in", bytesIn.get());
+      stats.put("bytes.out", bytesOut.get());
+      stats.put("points.read", pointsRead.get());
+      stats.put("points.written", pointsWritten.get());
+      stats.put("latency", latency.stats());
+      return stats;
+    }
+  }
+
+  private class FunctionMetrics {
+    private final Counter calls;
+    private final Counter errors;
+    private final Histogram duration;
+    private final Histogram network;
+    private final Histogram conversion;
+
+    private FunctionMetrics(String function) {
+      Map<String,String> labels = Collections.singletonMap(SENSISION_LABEL_FUNCTION, function);
+      calls = new Counter("calls", labels);
+      errors = new Counter("call.errors", labels);
+      duration = new Histogram("call.duration", labels);
+      network = new Histogram("call.network", labels);
+      conversion = new Histogram("call.conversion", labels);
+    }
+
+    private Map<Object,Object> stats() {
+      Map<Object,Object> stats = new LinkedHashMap<Object,Object>();
+      stats.put("calls", calls.get());
+      stats.put("errors", errors.get());
+      stats.put("duration", duration.stats());
+      stats.put("network", network.stats());
+      stats.put("conversion", conversion.stats());
+      return stats;
+    }
+  }
+
+  private final boolean sensision;
+
+  private final Map<String,EndpointMetrics> endpoints = new ConcurrentHashMap<String,EndpointMetrics>();
+  private final Map<String,FunctionMetrics> functions = new ConcurrentHashMap<String,FunctionMetrics>();
+
+  /**
+   * @param sensision publish the counters to Sensision
+   */
+  InfluxDBMetrics(boolean sensision) {
+    this.sensision = sensision;
+  }
+
+  /**
+   * Application interceptor recording the requests, their latency until the response headers are received,
+   * the bytes sent and the response bytes read
+   */
+  Interceptor interceptor() {
+    return chain -> {
+      Request request = chain.request();
+      EndpointMetrics endpoint = endpoint(request.url());
+
+      endpoint.requests.add(1L);
+      RequestBody requestBody = request.body();
+      if (null != requestBody && requestBody.contentLength() > 0L) {
+        endpoint.bytesOut.add(requestBody.contentLength());
+      }
+
+      long start = System.nanoTime();
+      Response response;
+      try {
+        response = chain.proceed(request);
+      } catch (IOException ioe) {
+        endpoint.errors.add(1L);
+        throw ioe;
+      }
+      endpoint.latency.record(System.nanoTime() - start);
+
+      if (!response.isSuccessful()) {
+        endpoint.errors.add(1L);
+      }
+
+      ResponseBody body = response.body();
+      if (null == body) {
+        return response;
+      }
+
+      ResponseBody counted = ResponseBody.create(Okio.buffer(new ForwardingSource(body.source()) {
+        @Override
+        public long read(Buffer sink, long byteCount) throws IOException {
+          long n = super.read(sink, byteCount);
+          if (n > 0L) {
+            endpoint.bytesIn.add(n);
+          }
+          return n;
+        }
+      }), body.contentType(), body.contentLength());
+
+      return response.newBuilder().body(counted).build();
+    };
+  }
+
+  /**
+   * Record the datapoints decoded from the responses of an endpoint
+   */
+  void read(String url, long points) {
+    if (points > 0L) {
+      endpoint(url).pointsRead.add(points);
+    }
+  }
+
+  /**
+   * Record the datapoints of a batch accepted by an endpoint
+   */
+  void written(HttpUrl url, long points) {
+    endpoint(url).pointsWritten.add(points);
+  }
+
+  /**
+   * Record a new attempt at a request which previously failed
+   */
+  void retry(HttpUrl url) {
+    endpoint(url).retries.add(1L);
+  }
+
+  /**
+   * Record a function call
+   *
+   * @param duration duration (in ns) of the call
+   * @param network cumulated duration (in ns) of its HTTP calls, concurrent calls may exceed the duration
+   * @param failed whether the call ended with an error
+   */
+  void call(String function, long duration, long network, boolean failed) {
+    FunctionMetrics metrics = functions.computeIfAbsent(function, FunctionMetrics::new);
+    metrics.calls.add(1L);
+    if (failed) {
+      metrics.errors.add(1L);
+    }
+    metrics.duration.record(duration);
+    metrics.network.record(network);
+    metrics.conversion.record(Math.max(0L, duration - network));
+  }
+
+  Map<Object,Object> stats() {
+    Map<Object,Object> stats = new LinkedHashMap<Object,Object>();
+
+    Map<Object,Object> endpointStats = new TreeMap<Object,Object>();
+    for (Map.Entry<String,EndpointMetrics> entry: endpoints.entrySet()) {
+      endpointStats.put(entry.getKey(), entry.getValue().stats());
+    }
+    stats.put("endpoints", endpointStats);
+
+    Map<Object,Object> functionStats = new TreeMap<Object,Object>();
+    for (Map.Entry<String,FunctionMetrics> entry: functions.entrySet()) {
+      functionStats.put(entry.getKey(), entry.getValue().stats());
+    }
+    stats.put("functions", functionStats);
+
+    return stats;
+  }
+
+  private EndpointMetrics endpoint(String url) {
+    HttpUrl parsed = HttpUrl.parse(url);
+    return null == parsed ? endpoints.computeIfAbsent(url, EndpointMetrics::new) : endpoint(parsed);
+  }
+
+  /**
+   * Metrics of the server of a URL, paths and credentials are not part of the endpoint
+   */
+  private EndpointMetrics endpoint(HttpUrl url) {
+    return endpoints.computeIfAbsent(url.scheme() + "://" + url.host() + ":" + url.port(), EndpointMetrics::new);
+  }
+}
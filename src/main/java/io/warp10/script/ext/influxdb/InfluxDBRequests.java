@@ -0,0 +1,173 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.ext.influxdb;
+
+import java.io.IOException;
+import java.util.Date;
+
+import okhttp3.FormBody;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Builders for the HTTP requests the extension issues without going through the InfluxDB client libraries.
+ */
+class InfluxDBRequests {
+
+  private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+  /**
+   * Maximum number of bytes of an error response included in exception messages
+   */
+  private static final long MAX_ERROR_SIZE = 1024L;
+
+  private InfluxDBRequests() {}
+
+  /**
+   * Build a Flux query request returning annotated CSV
+   */
+  static Request flux(InfluxDBClientRegistry.Key key, String query) {
+    HttpUrl url = HttpUrl.parse(key.getUrl()).newBuilder()
+        .addPathSegments("api/v2/query")
+        .addQueryParameter("org", key.getOrg())
+        .build();
+
+    StringBuilder body = new StringBuilder();
+    body.append("{\"type\":\"flux\",\"query\":");
+    appendJsonString(body, query);
+    body.append(",\"dialect\":{\"header\":true,\"delimiter\":\",\",\"annotations\":[\"datatype\",\"group\",\"default\"],\"dateTimeFormat\":\"RFC3339\"}}");
+
+    return new Request.Builder()
+        .url(url)
+        .header("Accept", "application/csv")
+        .post(RequestBody.create(JSON, body.toString()))
+        .build();
+  }
+
+  private static final String MSGPACK = "application/x-msgpack";
+
+  /**
+   * Build an InfluxQL query request, timestamps are requested as nanoseconds.
+   * If chunkSize is strictly positive, the response is requested in chunks of at most chunkSize points.
+   */
+  static Request influxql(InfluxDBClientRegistry.Key key, String db, String query, int chunkSize) {
+    return influxql(key, db, query, chunkSize, false);
+  }
+
+  /**
+   * Build an InfluxQL query request, optionally asking for a MessagePack response (InfluxDB 1.8+)
+   */
+  static Request influxql(InfluxDBClientRegistry.Key key, String db, String query, int chunkSize, boolean msgpack) {
+    HttpUrl.Builder url = HttpUrl.parse(key.getUrl()).newBuilder()
+        .addPathSegment("query")
+        .addQueryParameter("db", db)
+        .addQueryParameter("epoch", "ns");
+
+    if (chunkSize > 0) {
+      url.addQueryParameter("chunked", "true");
+      url.addQueryParameter("chunk_size", Integer.toString(chunkSize));
+    }
+
+    Request.Builder builder = new Request.Builder()
+        .url(url.build())
+        .post(new FormBody.Builder().add("q", query).build());
+
+    if (msgpack) {
+      builder.header("Accept", MSGPACK);
+    }
+
+    return builder.build();
+  }
+
+  /**
+   * Check whether a response is encoded in MessagePack
+   */
+  static boolean isMsgPack(Response response) {
+    String type = response.header("Content-Type");
+    return null != type && type.startsWith(MSGPACK);
+  }
+
+  /**
+   * Throw an InfluxDBHttpException describing the response if it is not successful
+   */
+  static void check(Response response) throws IOException {
+    if (response.isSuccessful()) {
+      return;
+    }
+
+    String message = "";
+    ResponseBody body = response.body();
+    if (null != body) {
+      message = response.peekBody(MAX_ERROR_SIZE).string();
+    }
+
+    throw new InfluxDBHttpException(response.code(), "InfluxDB returned HTTP " + response.code() + (message.isEmpty() ? "." : (": " + message)), retryAfter(response));
+  }
+
+  /**
+   * Parse the Retry-After header of a response, given either in seconds or as an HTTP date
+   *
+   * @return the delay in ms, -1 if the header is missing or invalid
+   */
+  private static long retryAfter(Response response) {
+    String value = response.header("Retry-After");
+    if (null == value) {
+      return -1L;
+    }
+    try {
+      return Math.max(0L, Long.parseLong(value.trim()) * 1000L);
+    } catch (NumberFormatException nfe) {
+      Date date = response.headers().getDate("Retry-After");
+      return null == date ? -1L : Math.max(0L, date.getTime() - System.currentTimeMillis());
+    }
+  }
+
+  static void appendJsonString(StringBuilder sb, String s) {
+    sb.append('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+        case '"':
+          sb.append("\\\"");
+          break;
+        case '\\':
+          sb.append("\\\\");
+          break;
+        case '\n':
+          sb.append("\\n");
+          break;
+        case '\r':
+          sb.append("\\r");
+          break;
+        case '\t':
+          sb.append("\\t");
+          break;
+        default:
+          if (c < 0x20) {
+            sb.append(String.format("\\u%04x", (int) c));
+          } else {
+            sb.append(c);
+          }
+      }
+    }
+    sb.append('"');
+  }
+}
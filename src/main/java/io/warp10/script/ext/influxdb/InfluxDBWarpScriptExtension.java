@@ -1,5 +1,5 @@
 //
-//   Copyright 2018-2020  SenX S.A.S.
+//   Copyright 2018-2021  SenX S.A.S.
 //
 //   Licensed under the Apache License, Version 2.0 (the "License");
 //   you may not use this file except in compliance with the License.
@@ -16,25 +16,296 @@
 
 package io.warp10.script.ext.influxdb;
 
+import java.io.File;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import io.warp10.WarpConfig;
 import io.warp10.warp.sdk.WarpScriptExtension;
 
 public class InfluxDBWarpScriptExtension extends WarpScriptExtension {
-  
+
+  /**
+   * Maximum number of clients kept in the client registry, 0 disables pooling
+   */
+  public static final String CONF_POOL_MAXCLIENTS = "influxdb.pool.maxclients";
+
+  /**
+   * Delay (in ms) after which an unused pooled client is closed
+   */
+  public static final String CONF_POOL_IDLE = "influxdb.pool.idle";
+
+  /**
+   * Number of threads used to run concurrent requests and conversions, defaults to the number of processors
+   */
+  public static final String CONF_EXECUTOR_THREADS = "influxdb.executor.threads";
+
+  /**
+   * Maximum size (in bytes) of the payloads held by the asynchronous write queue
+   */
+  public static final String CONF_QUEUE_MAXBYTES = "influxdb.queue.maxbytes";
+
+  /**
+   * Maximum delay (in ms) an asynchronous INFLUXDB.UPDATE waits for room in the write queue
+   */
+  public static final String CONF_QUEUE_TIMEOUT = "influxdb.queue.timeout";
+
+  /**
+   * Number of background threads writing the queued batches
+   */
+  public static final String CONF_QUEUE_WRITERS = "influxdb.queue.writers";
+
+  /**
+   * Directory where batches which could not be written are spilled, spilling is disabled if not set
+   */
+  public static final String CONF_SPILL_DIR = "influxdb.spill.dir";
+
+  /**
+   * Maximum total size (in bytes) of the spilled batches
+   */
+  public static final String CONF_SPILL_MAXBYTES = "influxdb.spill.maxbytes";
+
+  /**
+   * Size (in bytes) after which a new spill segment is started
+   */
+  public static final String CONF_SPILL_SEGMENT_SIZE = "influxdb.spill.segment.size";
+
+  /**
+   * Set to true to sync spill segments to disk after each batch
+   */
+  public static final String CONF_SPILL_FSYNC = "influxdb.spill.fsync";
+
+  /**
+   * Delay (in ms) between two attempts at replaying the spilled batches
+   */
+  public static final String CONF_SPILL_RETRY = "influxdb.spill.retry";
+
+  /**
+   * Maximum estimated size (in bytes) of the cached query results, 0 disables the cache
+   */
+  public static final String CONF_CACHE_MAXBYTES = "influxdb.cache.maxbytes";
+
+  /**
+   * Default maximum duration (in ms) of the HTTP calls of a function, 0 for no deadline
+   */
+  public static final String CONF_DEADLINE = "influxdb.deadline";
+
+  /**
+   * Maximum number of response bytes the calls of a single stack may read, 0 for no limit
+   */
+  public static final String CONF_STACK_MAXBYTES = "influxdb.stack.maxbytes";
+
+  /**
+   * Write latency (in ms) adaptive batches are sized for
+   */
+  public static final String CONF_WRITE_LATENCY = "influxdb.write.latency";
+
+  /**
+   * Maximum size (in bytes) of write batches
+   */
+  public static final String CONF_WRITE_MAXBYTES = "influxdb.write.maxbytes";
+
+  /**
+   * Maximum number of retries of a write throttled by InfluxDB
+   */
+  public static final String CONF_WRITE_RETRIES = "influxdb.write.retries";
+
+  /**
+   * Maximum delay (in ms) before retrying a throttled write
+   */
+  public static final String CONF_WRITE_BACKOFF_MAX = "influxdb.write.backoff.max";
+
+  /**
+   * Prefix of the keys declaring transport profiles, as influxdb.transport.NAME.SETTING
+   */
+  public static final String CONF_TRANSPORT_PREFIX = TransportOptions.CONF_PREFIX;
+
+  /**
+   * Set to true to publish the metrics of the extension to Sensision
+   */
+  public static final String CONF_SENSISION = "influxdb.sensision";
+
+  private static final int DEFAULT_POOL_MAXCLIENTS = 32;
+  private static final long DEFAULT_POOL_IDLE = 60000L;
+  private static final long DEFAULT_QUEUE_MAXBYTES = 64L * 1024L * 1024L;
+  private static final long DEFAULT_QUEUE_TIMEOUT = 30000L;
+  private static final int DEFAULT_QUEUE_WRITERS = 2;
+  private static final long DEFAULT_SPILL_MAXBYTES = 1024L * 1024L * 1024L;
+  private static final long DEFAULT_SPILL_SEGMENT_SIZE = 16L * 1024L * 1024L;
+  private static final long DEFAULT_SPILL_RETRY = 10000L;
+  private static final long DEFAULT_CACHE_MAXBYTES = 64L * 1024L * 1024L;
+  private static final long DEFAULT_DEADLINE = 0L;
+  private static final long DEFAULT_STACK_MAXBYTES = 0L;
+  private static final long DEFAULT_WRITE_LATENCY = 1000L;
+  private static final long DEFAULT_WRITE_MAXBYTES = 8L * 1024L * 1024L;
+  private static final int DEFAULT_WRITE_RETRIES = 5;
+  private static final long DEFAULT_WRITE_BACKOFF_MAX = 30000L;
+
   private static final Map<String,Object> functions;
-  
+
+  private static final InfluxDBMetrics metrics;
+
+  private static final Map<String,TransportOptions> transportProfiles;
+
+  private static final InfluxDBClientRegistry registry;
+
+  private static final ExecutorService executor;
+
+  private static final WriteQueue queue;
+
+  private static final SpillBuffer spill;
+
+  private static final ResultCache cache;
+
+  private static final long deadline;
+
+  private static final long stackMaxBytes;
+
+  private static final long writeLatency;
+
+  private static final long writeMaxBytes;
+
+  private static final int writeRetries;
+
+  private static final long writeMaxBackoff;
+
   static {
+    metrics = new InfluxDBMetrics("true".equals(WarpConfig.getProperty(CONF_SENSISION)));
+
+    transportProfiles = TransportOptions.profiles(WarpConfig.getProperties());
+
+    registry = new InfluxDBClientRegistry(
+        Integer.parseInt(WarpConfig.getProperty(CONF_POOL_MAXCLIENTS, Integer.toString(DEFAULT_POOL_MAXCLIENTS))),
+        Long.parseLong(WarpConfig.getProperty(CONF_POOL_IDLE, Long.toString(DEFAULT_POOL_IDLE))));
+
+    int threads = Integer.parseInt(WarpConfig.getProperty(CONF_EXECUTOR_THREADS, Integer.toString(Runtime.getRuntime().availableProcessors())));
+    AtomicInteger threadId = new AtomicInteger();
+    executor = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+      Thread t = new Thread(r);
+      t.setName("[InfluxDB worker #" + threadId.incrementAndGet() + "]");
+      t.setDaemon(true);
+      return t;
+    });
+
+    if (null != WarpConfig.getProperty(CONF_SPILL_DIR)) {
+      spill = new SpillBuffer(new File(WarpConfig.getProperty(CONF_SPILL_DIR)),
+          Long.parseLong(WarpConfig.getProperty(CONF_SPILL_MAXBYTES, Long.toString(DEFAULT_SPILL_MAXBYTES))),
+          Long.parseLong(WarpConfig.getProperty(CONF_SPILL_SEGMENT_SIZE, Long.toString(DEFAULT_SPILL_SEGMENT_SIZE))),
+          "true".equals(WarpConfig.getProperty(CONF_SPILL_FSYNC)),
+          Long.parseLong(WarpConfig.getProperty(CONF_SPILL_RETRY, Long.toString(DEFAULT_SPILL_RETRY))));
+    } else {
+      spill = null;
+    }
+
+    queue = new WriteQueue(
+        Long.parseLong(WarpConfig.getProperty(CONF_QUEUE_MAXBYTES, Long.toString(DEFAULT_QUEUE_MAXBYTES))),
+        Long.parseLong(WarpConfig.getProperty(CONF_QUEUE_TIMEOUT, Long.toString(DEFAULT_QUEUE_TIMEOUT))),
+        Integer.parseInt(WarpConfig.getProperty(CONF_QUEUE_WRITERS, Integer.toString(DEFAULT_QUEUE_WRITERS))),
+        spill);
+
+    cache = new ResultCache(Long.parseLong(WarpConfig.getProperty(CONF_CACHE_MAXBYTES, Long.toString(DEFAULT_CACHE_MAXBYTES))));
+
+    deadline = Long.parseLong(WarpConfig.getProperty(CONF_DEADLINE, Long.toString(DEFAULT_DEADLINE)));
+
+    long maxbytes = Long.parseLong(WarpConfig.getProperty(CONF_STACK_MAXBYTES, Long.toString(DEFAULT_STACK_MAXBYTES)));
+    stackMaxBytes = maxbytes > 0L ? maxbytes : Long.MAX_VALUE;
+
+    writeLatency = Long.parseLong(WarpConfig.getProperty(CONF_WRITE_LATENCY, Long.toString(DEFAULT_WRITE_LATENCY)));
+    writeMaxBytes = Long.parseLong(WarpConfig.getProperty(CONF_WRITE_MAXBYTES, Long.toString(DEFAULT_WRITE_MAXBYTES)));
+    writeRetries = Integer.parseInt(WarpConfig.getProperty(CONF_WRITE_RETRIES, Integer.toString(DEFAULT_WRITE_RETRIES)));
+    writeMaxBackoff = Long.parseLong(WarpConfig.getProperty(CONF_WRITE_BACKOFF_MAX, Long.toString(DEFAULT_WRITE_BACKOFF_MAX)));
+
     functions = new HashMap<String, Object>();
-    
+
     functions.put("INFLUXDB.FETCH", new INFLUXDBFETCH("INFLUXDB.FETCH"));
     functions.put("INFLUXDB.UPDATE", new INFLUXDBUPDATE("INFLUXDB.UPDATE"));
     functions.put("INFLUXDB.FLUX", new INFLUXDBFLUX("INFLUXDB.FLUX"));
+    functions.put("INFLUXDB.FLUSH", new INFLUXDBFLUSH("INFLUXDB.FLUSH"));
+    functions.put("INFLUXDB.QUEUESTATS", new INFLUXDBQUEUESTATS("INFLUXDB.QUEUESTATS"));
+    functions.put("INFLUXDB.STATS", new INFLUXDBSTATS("INFLUXDB.STATS"));
   }
-  
+
   @Override
   public Map<String, Object> getFunctions() {
     return functions;
   }
+
+  public static InfluxDBClientRegistry getClientRegistry() {
+    return registry;
+  }
+
+  public static ExecutorService getExecutor() {
+    return executor;
+  }
+
+  static WriteQueue getWriteQueue() {
+    return queue;
+  }
+
+  /**
+   * @return the spill buffer or null if spilling is not configured
+   */
+  static SpillBuffer getSpillBuffer() {
+    return spill;
+  }
+
+  static ResultCache getResultCache() {
+    return cache;
+  }
+
+  static InfluxDBMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * @return the transport profiles declared in the configuration, keyed by name
+   */
+  static Map<String,TransportOptions> getTransportProfiles() {
+    return transportProfiles;
+  }
+
+  /**
+   * @return the deadline (in ms) of the function calls which do not set one, 0 if there is none
+   */
+  static long getDefaultDeadline() {
+    return deadline;
+  }
+
+  /**
+   * @return the maximum number of response bytes the calls of a stack may read
+   */
+  static long getStackMaxBytes() {
+    return stackMaxBytes;
+  }
+
+  /**
+   * @return the write latency (in ms) adaptive batches are sized for
+   */
+  static long getWriteLatency() {
+    return writeLatency;
+  }
+
+  /**
+   * @return the maximum size (in bytes) of write batches
+   */
+  static long getWriteMaxBytes() {
+    return writeMaxBytes;
+  }
+
+  /**
+   * @return the maximum number of retries of a throttled write
+   */
+  static int getWriteRetries() {
+    return writeRetries;
+  }
+
+  /**
+   * @return the maximum delay (in ms) before retrying a throttled write
+   */
+  static long getWriteMaxBackoff() {
+    return writeMaxBackoff;
+  }
 }
@@ -0,0 +1,444 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.ext.influxdb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.geoxp.GeoXPLib;
+import com.squareup.moshi.JsonReader;
+
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.store.Constants;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.BufferedSource;
+
+/**
+ * Decodes an InfluxQL JSON response, chunked or not. Rows are converted in a single pass as
+ * they are read, each value being appended to the Geo Time Series of its column, so no
+ * intermediate representation of the response is built.
+ */
+class InfluxQLChunkDecoder {
+
+  /**
+   * Series of each statement, keyed by measurement, tags and column
+   */
+  private final List<Map<List<Object>,GeoTimeSerie>> statements = new ArrayList<Map<List<Object>,GeoTimeSerie>>();
+
+  /**
+   * Receives the series as they are completed, null if they should be retained
+   */
+  private final SeriesCallback callback;
+
+  /**
+   * Should the lat/lon/elev columns set the location and elevation of the other columns of their rows
+   */
+  private final boolean geo;
+
+  private final FetchBudget budget;
+  final FetchBudget.Meter meter;
+
+  private InfluxQLChunkDecoder(SeriesCallback callback, boolean geo, FetchBudget budget) {
+    this.callback = callback;
+    this.geo = geo;
+    this.budget = budget;
+    this.meter = budget.meter();
+  }
+
+  /**
+   * Execute an InfluxQL query and decode its chunked result
+   */
+  static List<List<GeoTimeSerie>> query(OkHttpClient client, Request request, boolean geo, FetchBudget budget) throws IOException {
+    return toLists(decode(client, request, geo, budget));
+  }
+
+  /**
+   * Execute an InfluxQL query and return the series of each statement, keyed by measurement, tags and column
+   */
+  static List<Map<List<Object>,GeoTimeSerie>> decode(OkHttpClient client, Request request, boolean geo, FetchBudget budget) throws IOException {
+    return decode(client, request, null, geo, budget);
+  }
+
+  /**
+   * Execute an InfluxQL query, handing each series over to a callback once all its chunks have been read
+   */
+  static void query(OkHttpClient client, Request request, SeriesCallback callback, boolean geo, FetchBudget budget) throws IOException {
+    decode(client, request, callback, geo, budget);
+  }
+
+  private static List<Map<List<Object>,GeoTimeSerie>> decode(OkHttpClient client, Request request, SeriesCallback callback, boolean geo, FetchBudget budget) throws IOException {
+    InfluxQLChunkDecoder decoder = new InfluxQLChunkDecoder(callback, geo, budget);
+
+    try (Response response = client.newCall(request).execute()) {
+      InfluxDBRequests.check(response);
+
+      // Response bytes are accounted as they are read
+      BufferedSource source = budget.source(response.body().source());
+
+      // Servers which do not support MessagePack answer with JSON
+      if (InfluxDBRequests.isMsgPack(response)) {
+        InfluxQLMsgPackDecoder.read(source.inputStream(), decoder);
+        return decoder.statements;
+      }
+
+      JsonReader reader = JsonReader.of(source);
+      // Chunks are concatenated JSON documents
+      reader.setLenient(true);
+      while (JsonReader.Token.END_DOCUMENT != reader.peek()) {
+        decoder.readChunk(reader);
+      }
+    } finally {
+      decoder.meter.close();
+    }
+
+    return decoder.statements;
+  }
+
+  static List<List<GeoTimeSerie>> toLists(List<Map<List<Object>,GeoTimeSerie>> statements) {
+    List<List<GeoTimeSerie>> allgts = new ArrayList<List<GeoTimeSerie>>(statements.size());
+    for (Map<List<Object>,GeoTimeSerie> statement: statements) {
+      allgts.add(new ArrayList<GeoTimeSerie>(statement.values()));
+    }
+    return allgts;
+  }
+
+  private void readChunk(JsonReader reader) throws IOException {
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+      if ("results".equals(name)) {
+        reader.beginArray();
+        while (reader.hasNext()) {
+          readResult(reader);
+        }
+        reader.endArray();
+      } else if ("error".equals(name)) {
+        throw new IOException(reader.nextString());
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+  }
+
+  private void readResult(JsonReader reader) throws IOException {
+    int statementId = 0;
+
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+      if ("statement_id".equals(name)) {
+        statementId = reader.nextInt();
+      } else if ("series".equals(name)) {
+        Map<List<Object>,GeoTimeSerie> statement = statement(statementId);
+        reader.beginArray();
+        while (reader.hasNext()) {
+          readSeries(reader, statement);
+        }
+        reader.endArray();
+      } else if ("error".equals(name)) {
+        throw new IOException(reader.nextString());
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+
+    // Make sure statements without series still produce a list
+    statement(statementId);
+  }
+
+  Map<List<Object>,GeoTimeSerie> statement(int statementId) {
+    while (statements.size() <= statementId) {
+      statements.add(new LinkedHashMap<List<Object>,GeoTimeSerie>());
+    }
+    return statements.get(statementId);
+  }
+
+  private void readSeries(JsonReader reader, Map<List<Object>,GeoTimeSerie> statement) throws IOException {
+    String measurement = null;
+    Map<String,String> tags = new HashMap<String,String>();
+    List<String> columns = null;
+    // Rows read before the columns were known, InfluxDB emits the columns first
+    List<Object[]> rows = null;
+    // Chunked responses flag the series continued in the next chunk
+    boolean partial = false;
+
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+      if ("partial".equals(name)) {
+        partial = reader.nextBoolean();
+      } else if ("name".equals(name)) {
+        measurement = reader.nextString();
+      } else if ("tags".equals(name)) {
+        reader.beginObject();
+        while (reader.hasNext()) {
+          String tag = reader.nextName();
+          if (JsonReader.Token.NULL == reader.peek()) {
+            reader.nextNull();
+            tags.put(tag, "");
+          } else {
+            tags.put(tag, reader.nextString());
+          }
+        }
+        reader.endObject();
+      } else if ("columns".equals(name)) {
+        columns = new ArrayList<String>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+          columns.add(reader.nextString());
+        }
+        reader.endArray();
+      } else if ("values".equals(name)) {
+        if (null != columns) {
+          readRows(reader, series(statement, measurement, tags, columns), geoColumns(columns));
+        } else {
+          rows = new ArrayList<Object[]>();
+          reader.beginArray();
+          while (reader.hasNext()) {
+            List<Object> row = new ArrayList<Object>();
+            reader.beginArray();
+            row.add(reader.nextLong());
+            while (reader.hasNext()) {
+              row.add(readValue(reader));
+            }
+            reader.endArray();
+            rows.add(row.toArray());
+          }
+          reader.endArray();
+        }
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+
+    if (null != rows && null != columns) {
+      GeoTimeSerie[] series = series(statement, measurement, tags, columns);
+      int[] geoIdx = geoColumns(columns);
+      for (Object[] values: rows) {
+        setRow(series, ((Long) values[0]) / (1000000000L / Constants.TIME_UNITS_PER_S), values, geoIdx);
+      }
+    } else if (null != columns) {
+      // Make sure series without values still produce their Geo Time Series
+      series(statement, measurement, tags, columns);
+    }
+
+    if (!partial && null != columns) {
+      complete(statement, measurement, tags, columns);
+    }
+  }
+
+  /**
+   * Hand the series of the columns of a complete InfluxQL series over to the callback, if any
+   */
+  void complete(Map<List<Object>,GeoTimeSerie> statement, String measurement, Map<String,String> tags, List<String> columns) throws IOException {
+    if (null == callback) {
+      return;
+    }
+    for (int i = 1; i < columns.size(); i++) {
+      GeoTimeSerie gts = statement.remove(Arrays.asList(measurement, tags, columns.get(i)));
+      if (null != gts) {
+        callback.series(gts);
+      }
+    }
+  }
+
+  /**
+   * Retrieve or create the Geo Time Series of each column, index 0 (the timestamp) and in geo mode
+   * the lat/lon/elev columns are left null
+   */
+  GeoTimeSerie[] series(Map<List<Object>,GeoTimeSerie> statement, String measurement, Map<String,String> tags, List<String> columns) throws IOException {
+    GeoTimeSerie[] series = new GeoTimeSerie[columns.size()];
+
+    for (int i = 1; i < columns.size(); i++) {
+      if (geo && isGeoColumn(columns.get(i))) {
+        continue;
+      }
+
+      List<Object> key = Arrays.asList(measurement, tags, columns.get(i));
+      GeoTimeSerie gts = statement.get(key);
+
+      if (null == gts) {
+        budget.series();
+        gts = new GeoTimeSerie();
+        gts.setName(measurement + " " + columns.get(i));
+        gts.setLabels(new HashMap<String,String>(tags));
+        statement.put(key, gts);
+      }
+
+      series[i] = gts;
+    }
+
+    return series;
+  }
+
+  private static boolean isGeoColumn(String column) {
+    return INFLUXDBUPDATE.FIELD_LATITUDE.equals(column) || INFLUXDBUPDATE.FIELD_LONGITUDE.equals(column) || INFLUXDBUPDATE.FIELD_ELEVATION.equals(column);
+  }
+
+  /**
+   * Indices of the lat, lon and elev columns (-1 if absent), null if not in geo mode or if there are none
+   */
+  int[] geoColumns(List<String> columns) {
+    if (!geo) {
+      return null;
+    }
+
+    int[] idx = new int[] {
+      columns.indexOf(INFLUXDBUPDATE.FIELD_LATITUDE),
+      columns.indexOf(INFLUXDBUPDATE.FIELD_LONGITUDE),
+      columns.indexOf(INFLUXDBUPDATE.FIELD_ELEVATION)
+    };
+
+    return idx[0] < 0 && idx[1] < 0 && idx[2] < 0 ? null : idx;
+  }
+
+  /**
+   * Append the values of a row to the Geo Time Series of their columns, located by the lat/lon/elev
+   * columns of the row if geoIdx is not null
+   */
+  void setRow(GeoTimeSerie[] series, long timestamp, Object[] values, int[] geoIdx) throws IOException {
+    long location = GeoTimeSerie.NO_LOCATION;
+    long elevation = GeoTimeSerie.NO_ELEVATION;
+
+    if (null != geoIdx) {
+      Object lat = geoIdx[0] >= 0 && geoIdx[0] < values.length ? values[geoIdx[0]] : null;
+      Object lon = geoIdx[1] >= 0 && geoIdx[1] < values.length ? values[geoIdx[1]] : null;
+      Object elev = geoIdx[2] >= 0 && geoIdx[2] < values.length ? values[geoIdx[2]] : null;
+
+      if (lat instanceof Number && lon instanceof Number) {
+        location = GeoXPLib.toGeoXPPoint(((Number) lat).doubleValue(), ((Number) lon).doubleValue());
+      }
+      if (elev instanceof Number) {
+        elevation = Math.round(((Number) elev).doubleValue());
+      }
+    }
+
+    for (int i = 1; i < values.length && i < series.length; i++) {
+      if (null != values[i] && null != series[i]) {
+        meter.point();
+        GTSHelper.setValue(series[i], timestamp, location, elevation, values[i], false);
+      }
+    }
+  }
+
+  /**
+   * Convert the rows of a series in a single pass, each value is appended to the Geo Time Series
+   * of its column as it is read. The JSON type of each column is detected on its first value.
+   *
+   * In geo mode the location of a row is only known once it has been read entirely, rows are
+   * then buffered one at a time.
+   */
+  private void readRows(JsonReader reader, GeoTimeSerie[] series, int[] geoIdx) throws IOException {
+    if (null != geoIdx) {
+      Object[] values = new Object[series.length];
+      reader.beginArray();
+      while (reader.hasNext()) {
+        reader.beginArray();
+        long timestamp = reader.nextLong() / (1000000000L / Constants.TIME_UNITS_PER_S);
+        int i = 1;
+        while (reader.hasNext()) {
+          if (i < values.length) {
+            values[i++] = readValue(reader);
+          } else {
+            reader.skipValue();
+          }
+        }
+        reader.endArray();
+        // Missing trailing values
+        Arrays.fill(values, i, values.length, null);
+        setRow(series, timestamp, values, geoIdx);
+      }
+      reader.endArray();
+      return;
+    }
+
+    JsonReader.Token[] types = new JsonReader.Token[series.length];
+
+    reader.beginArray();
+    while (reader.hasNext()) {
+      reader.beginArray();
+      // Timestamps were requested as nanoseconds, read them as exact longs
+      long timestamp = reader.nextLong() / (1000000000L / Constants.TIME_UNITS_PER_S);
+      int i = 1;
+      while (reader.hasNext()) {
+        if (i >= series.length) {
+          reader.skipValue();
+          continue;
+        }
+
+        JsonReader.Token token = reader.peek();
+
+        if (JsonReader.Token.NULL == token) {
+          reader.nextNull();
+        } else if (token == types[i] || null == types[i]) {
+          types[i] = token;
+          meter.point();
+          switch (token) {
+            case NUMBER:
+              GTSHelper.setValue(series[i], timestamp, reader.nextDouble());
+              break;
+            case STRING:
+              GTSHelper.setValue(series[i], timestamp, reader.nextString());
+              break;
+            case BOOLEAN:
+              GTSHelper.setValue(series[i], timestamp, reader.nextBoolean());
+              break;
+            default:
+              reader.skipValue();
+          }
+        } else {
+          // Type conflict within the column
+          Object value = readValue(reader);
+          if (null != value) {
+            meter.point();
+            GTSHelper.setValue(series[i], timestamp, value);
+          }
+        }
+        i++;
+      }
+      reader.endArray();
+    }
+    reader.endArray();
+  }
+
+  private static Object readValue(JsonReader reader) throws IOException {
+    switch (reader.peek()) {
+      case NUMBER:
+        return reader.nextDouble();
+      case STRING:
+        return reader.nextString();
+      case BOOLEAN:
+        return reader.nextBoolean();
+      case NULL:
+        return reader.nextNull();
+      default:
+        reader.skipValue();
+        return null;
+    }
+  }
+}
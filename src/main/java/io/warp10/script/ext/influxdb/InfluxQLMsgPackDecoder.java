@@ -0,0 +1,266 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.ext.influxdb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.msgpack.core.ExtensionTypeHeader;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessageUnpacker;
+import org.msgpack.value.ValueType;
+
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.store.Constants;
+
+/**
+ * Decodes an InfluxQL MessagePack response, chunked or not, into the statements of an
+ * {@link InfluxQLChunkDecoder}. The structure is the same as the JSON one, but integers are
+ * kept as longs and timestamps are either integers or the InfluxDB time extension.
+ */
+class InfluxQLMsgPackDecoder {
+
+  /**
+   * Extension type used by InfluxDB for timestamps, 8 bytes of seconds followed by 4 bytes of nanoseconds
+   */
+  private static final byte TIME_EXT_TYPE = 5;
+
+  private InfluxQLMsgPackDecoder() {}
+
+  static void read(InputStream in, InfluxQLChunkDecoder decoder) throws IOException {
+    try (MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(in)) {
+      // Chunks are concatenated maps
+      while (unpacker.hasNext()) {
+        readChunk(unpacker, decoder);
+      }
+    }
+  }
+
+  private static void readChunk(MessageUnpacker unpacker, InfluxQLChunkDecoder decoder) throws IOException {
+    int n = unpacker.unpackMapHeader();
+    for (int i = 0; i < n; i++) {
+      String name = unpacker.unpackString();
+      if ("results".equals(name)) {
+        int results = unpacker.unpackArrayHeader();
+        for (int j = 0; j < results; j++) {
+          readResult(unpacker, decoder);
+        }
+      } else if ("error".equals(name)) {
+        throw new IOException(unpacker.unpackString());
+      } else {
+        unpacker.skipValue();
+      }
+    }
+  }
+
+  private static void readResult(MessageUnpacker unpacker, InfluxQLChunkDecoder decoder) throws IOException {
+    int statementId = 0;
+
+    int n = unpacker.unpackMapHeader();
+    for (int i = 0; i < n; i++) {
+      String name = unpacker.unpackString();
+      if ("statement_id".equals(name)) {
+        statementId = unpacker.unpackInt();
+      } else if ("series".equals(name)) {
+        Map<List<Object>,GeoTimeSerie> statement = decoder.statement(statementId);
+        int series = unpacker.unpackArrayHeader();
+        for (int j = 0; j < series; j++) {
+          readSeries(unpacker, decoder, statement);
+        }
+      } else if ("error".equals(name)) {
+        throw new IOException(unpacker.unpackString());
+      } else {
+        unpacker.skipValue();
+      }
+    }
+
+    // Make sure statements without series still produce a list
+    decoder.statement(statementId);
+  }
+
+  private static void readSeries(MessageUnpacker unpacker, InfluxQLChunkDecoder decoder, Map<List<Object>,GeoTimeSerie> statement) throws IOException {
+    String measurement = null;
+    Map<String,String> tags = new HashMap<String,String>();
+    List<String> columns = null;
+    // Rows read before the columns were known, InfluxDB emits the columns first
+    List<Object[]> rows = null;
+    // Chunked responses flag the series continued in the next chunk
+    boolean partial = false;
+
+    int n = unpacker.unpackMapHeader();
+    for (int i = 0; i < n; i++) {
+      String name = unpacker.unpackString();
+      if ("partial".equals(name)) {
+        partial = unpacker.unpackBoolean();
+      } else if ("name".equals(name)) {
+        measurement = unpacker.unpackString();
+      } else if ("tags".equals(name)) {
+        int ntags = unpacker.unpackMapHeader();
+        for (int j = 0; j < ntags; j++) {
+          String tag = unpacker.unpackString();
+          if (ValueType.NIL == unpacker.getNextFormat().getValueType()) {
+            unpacker.unpackNil();
+            tags.put(tag, "");
+          } else {
+            tags.put(tag, unpacker.unpackString());
+          }
+        }
+      } else if ("columns".equals(name)) {
+        int ncols = unpacker.unpackArrayHeader();
+        columns = new ArrayList<String>(ncols);
+        for (int j = 0; j < ncols; j++) {
+          columns.add(unpacker.unpackString());
+        }
+      } else if ("values".equals(name)) {
+        if (null != columns) {
+          readRows(unpacker, decoder, decoder.series(statement, measurement, tags, columns), decoder.geoColumns(columns));
+        } else {
+          int nrows = unpacker.unpackArrayHeader();
+          rows = new ArrayList<Object[]>(nrows);
+          for (int j = 0; j < nrows; j++) {
+            Object[] row = new Object[unpacker.unpackArrayHeader()];
+            for (int k = 0; k < row.length; k++) {
+              row[k] = 0 == k ? readTimestamp(unpacker) : readValue(unpacker);
+            }
+            rows.add(row);
+          }
+        }
+      } else {
+        unpacker.skipValue();
+      }
+    }
+
+    if (null != rows && null != columns) {
+      GeoTimeSerie[] series = decoder.series(statement, measurement, tags, columns);
+      int[] geoIdx = decoder.geoColumns(columns);
+      for (Object[] values: rows) {
+        decoder.setRow(series, (Long) values[0], values, geoIdx);
+      }
+    } else if (null != columns) {
+      // Make sure series without values still produce their Geo Time Series
+      decoder.series(statement, measurement, tags, columns);
+    }
+
+    if (!partial && null != columns) {
+      decoder.complete(statement, measurement, tags, columns);
+    }
+  }
+
+  private static void readRows(MessageUnpacker unpacker, InfluxQLChunkDecoder decoder, GeoTimeSerie[] series, int[] geoIdx) throws IOException {
+    int nrows = unpacker.unpackArrayHeader();
+
+    if (null != geoIdx) {
+      // The location of a row is only known once it has been read entirely
+      Object[] values = new Object[series.length];
+      for (int j = 0; j < nrows; j++) {
+        int ncols = unpacker.unpackArrayHeader();
+        long timestamp = readTimestamp(unpacker);
+        for (int i = 1; i < ncols; i++) {
+          if (i < values.length) {
+            values[i] = readValue(unpacker);
+          } else {
+            unpacker.skipValue();
+          }
+        }
+        Arrays.fill(values, Math.max(1, ncols), values.length, null);
+        decoder.setRow(series, timestamp, values, geoIdx);
+      }
+      return;
+    }
+
+    for (int j = 0; j < nrows; j++) {
+      int ncols = unpacker.unpackArrayHeader();
+      long timestamp = readTimestamp(unpacker);
+      for (int i = 1; i < ncols; i++) {
+        if (i >= series.length) {
+          unpacker.skipValue();
+          continue;
+        }
+        ValueType type = unpacker.getNextFormat().getValueType();
+        if (ValueType.NIL == type) {
+          unpacker.unpackNil();
+          continue;
+        }
+        decoder.meter.point();
+        switch (type) {
+          case INTEGER:
+            GTSHelper.setValue(series[i], timestamp, unpacker.unpackLong());
+            break;
+          case FLOAT:
+            GTSHelper.setValue(series[i], timestamp, unpacker.unpackDouble());
+            break;
+          case STRING:
+            GTSHelper.setValue(series[i], timestamp, unpacker.unpackString());
+            break;
+          case BOOLEAN:
+            GTSHelper.setValue(series[i], timestamp, unpacker.unpackBoolean());
+            break;
+          default:
+            unpacker.skipValue();
+        }
+      }
+    }
+  }
+
+  /**
+   * Read a timestamp and convert it to platform time units
+   */
+  private static long readTimestamp(MessageUnpacker unpacker) throws IOException {
+    long nanos;
+
+    if (ValueType.EXTENSION == unpacker.getNextFormat().getValueType()) {
+      ExtensionTypeHeader header = unpacker.unpackExtensionTypeHeader();
+      byte[] payload = unpacker.readPayload(header.getLength());
+      if (TIME_EXT_TYPE != header.getType()) {
+        throw new IOException("Unexpected MessagePack extension type " + header.getType() + " for a timestamp.");
+      }
+      ByteBuffer bb = ByteBuffer.wrap(payload);
+      nanos = bb.getLong() * 1000000000L + bb.getInt();
+    } else {
+      // Timestamps were requested as nanoseconds
+      nanos = unpacker.unpackLong();
+    }
+
+    return nanos / (1000000000L / Constants.TIME_UNITS_PER_S);
+  }
+
+  private static Object readValue(MessageUnpacker unpacker) throws IOException {
+    switch (unpacker.getNextFormat().getValueType()) {
+      case INTEGER:
+        return unpacker.unpackLong();
+      case FLOAT:
+        return unpacker.unpackDouble();
+      case STRING:
+        return unpacker.unpackString();
+      case BOOLEAN:
+        return unpacker.unpackBoolean();
+      case NIL:
+        unpacker.unpackNil();
+        return null;
+      default:
+        unpacker.skipValue();
+        return null;
+    }
+  }
+}
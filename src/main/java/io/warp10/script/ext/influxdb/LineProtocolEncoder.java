@@ -0,0 +1,382 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.ext.influxdb;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.geoxp.GeoXPLib;
+
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.store.Constants;
+
+/**
+ * Renders datapoints as InfluxDB line protocol into a reusable byte buffer.
+ *
+ * The measurement, tag set and field key are escaped once per series by {@link #series},
+ * each call to {@link #append} then only renders the field value and timestamp. Lines with
+ * several fields are built with {@link #startLine}, {@link #field} and {@link #endLine}. Timestamps
+ * are written in platform time units, see {@link #PRECISION_V1} and {@link #PRECISION_V2}.
+ */
+class LineProtocolEncoder {
+
+  /**
+   * Value of the precision parameter of the InfluxDB 1.x /write endpoint matching the platform time units
+   */
+  static final String PRECISION_V1;
+
+  /**
+   * Value of the precision parameter of the InfluxDB 2.x /api/v2/write endpoint matching the platform time units
+   */
+  static final String PRECISION_V2;
+
+  static {
+    if (1000000000L == Constants.TIME_UNITS_PER_S) {
+      PRECISION_V1 = "ns";
+      PRECISION_V2 = "ns";
+    } else if (1000000L == Constants.TIME_UNITS_PER_S) {
+      PRECISION_V1 = "u";
+      PRECISION_V2 = "us";
+    } else if (1000L == Constants.TIME_UNITS_PER_S) {
+      PRECISION_V1 = "ms";
+      PRECISION_V2 = "ms";
+    } else {
+      throw new RuntimeException("Invalid time units found!");
+    }
+  }
+
+  private static final byte[] LATITUDE = (INFLUXDBUPDATE.FIELD_LATITUDE + "=").getBytes(StandardCharsets.UTF_8);
+  private static final byte[] LONGITUDE = ("," + INFLUXDBUPDATE.FIELD_LONGITUDE + "=").getBytes(StandardCharsets.UTF_8);
+  private static final byte[] ELEVATION = (INFLUXDBUPDATE.FIELD_ELEVATION + "=").getBytes(StandardCharsets.UTF_8);
+  private static final byte[] TRUE = "true".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] FALSE = "false".getBytes(StandardCharsets.UTF_8);
+
+  /**
+   * Should lat/lon/elev fields be emitted
+   */
+  private final boolean geo;
+
+  private byte[] buf;
+  private int len = 0;
+  private int points = 0;
+
+  /**
+   * Escaped measurement and tag set of the current series
+   */
+  private byte[] prefix = null;
+
+  /**
+   * Escaped field key of the current series followed by '='
+   */
+  private byte[] field = null;
+
+  /**
+   * Offsets of the current line and of its field set, number of value fields it contains
+   */
+  private int lineStart = 0;
+  private int fieldsStart = 0;
+  private int valueFields = 0;
+
+  private final byte[] digits = new byte[20];
+
+  LineProtocolEncoder(int capacity, boolean geo) {
+    this.buf = new byte[Math.max(capacity, 64)];
+    this.geo = geo;
+  }
+
+  /**
+   * Set the measurement, tags and field key used by subsequent calls to append
+   */
+  void series(String measurement, Map<String,String> tags, String fieldKey) {
+    measurement(measurement, tags);
+    field = fieldKey(fieldKey);
+  }
+
+  /**
+   * Set the measurement and tags used by subsequent lines
+   */
+  void measurement(String measurement, Map<String,String> tags) {
+    StringBuilder sb = new StringBuilder();
+    escape(sb, measurement, true);
+    // InfluxDB expects tags sorted by key for best performance
+    for (Map.Entry<String,String> tag: new TreeMap<String,String>(tags).entrySet()) {
+      // Empty tag values are rejected by InfluxDB
+      if (null == tag.getValue() || tag.getValue().isEmpty()) {
+        continue;
+      }
+      sb.append(',');
+      escape(sb, tag.getKey(), false);
+      sb.append('=');
+      escape(sb, tag.getValue(), false);
+    }
+    prefix = sb.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Escape a field key once so it can be passed to {@link #field}
+   */
+  static byte[] fieldKey(String key) {
+    StringBuilder sb = new StringBuilder();
+    escape(sb, key, false);
+    sb.append('=');
+    return sb.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Append a datapoint of the current series
+   *
+   * @return false if the value cannot be represented in line protocol and was skipped
+   */
+  boolean append(long timestamp, long location, long elevation, Object value) {
+    startLine();
+    location(location, elevation);
+    field(field, value);
+    return endLine(timestamp);
+  }
+
+  /**
+   * Start a line for the current measurement and tags
+   */
+  void startLine() {
+    lineStart = len;
+    write(prefix);
+    write((byte) ' ');
+    fieldsStart = len;
+  }
+
+  /**
+   * Add the lat/lon/elev fields to the current line
+   */
+  void location(long location, long elevation) {
+    if (!geo) {
+      return;
+    }
+
+    if (GeoTimeSerie.NO_LOCATION != location) {
+      double[] latlon = GeoXPLib.fromGeoXPPoint(location);
+      separator();
+      write(LATITUDE);
+      writeAscii(Double.toString(latlon[0]));
+      write(LONGITUDE);
+      writeAscii(Double.toString(latlon[1]));
+    }
+
+    if (GeoTimeSerie.NO_ELEVATION != elevation) {
+      separator();
+      write(ELEVATION);
+      writeLong(elevation);
+      write((byte) 'i');
+    }
+  }
+
+  /**
+   * Add a field to the current line
+   *
+   * @param key escaped field key as returned by {@link #fieldKey}
+   * @return false if the value cannot be represented in line protocol and was skipped
+   */
+  boolean field(byte[] key, Object value) {
+    if (null == value) {
+      return false;
+    }
+
+    if (value instanceof Double && (((Double) value).isNaN() || ((Double) value).isInfinite())) {
+      return false;
+    }
+
+    int mark = len;
+
+    separator();
+    write(key);
+
+    if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+      writeLong(((Number) value).longValue());
+      write((byte) 'i');
+    } else if (value instanceof Number) {
+      writeAscii(Double.toString(((Number) value).doubleValue()));
+    } else if (value instanceof Boolean) {
+      write(Boolean.TRUE.equals(value) ? TRUE : FALSE);
+    } else if (value instanceof String) {
+      writeString((String) value);
+    } else if (value instanceof byte[]) {
+      writeString(new String((byte[]) value, StandardCharsets.ISO_8859_1));
+    } else {
+      len = mark;
+      return false;
+    }
+
+    valueFields++;
+
+    return true;
+  }
+
+  /**
+   * Terminate the current line. Lines without any value field are discarded.
+   *
+   * @return true if the line was kept
+   */
+  boolean endLine(long timestamp) {
+    if (0 == valueFields) {
+      len = lineStart;
+      return false;
+    }
+
+    valueFields = 0;
+
+    write((byte) ' ');
+    writeLong(timestamp);
+    write((byte) '\n');
+
+    points++;
+
+    return true;
+  }
+
+  private void separator() {
+    if (len > fieldsStart) {
+      write((byte) ',');
+    }
+  }
+
+  /**
+   * Number of bytes currently held
+   */
+  int size() {
+    return len;
+  }
+
+  /**
+   * Number of points currently held
+   */
+  int points() {
+    return points;
+  }
+
+  /**
+   * Underlying buffer, only the first size() bytes are meaningful
+   */
+  byte[] buffer() {
+    return buf;
+  }
+
+  /**
+   * Discard the encoded points, the buffer is kept for reuse
+   */
+  void reset() {
+    len = 0;
+    points = 0;
+    valueFields = 0;
+  }
+
+  private void ensure(int extra) {
+    if (len + extra > buf.length) {
+      buf = Arrays.copyOf(buf, Math.max(buf.length << 1, len + extra));
+    }
+  }
+
+  private void write(byte b) {
+    ensure(1);
+    buf[len++] = b;
+  }
+
+  private void write(byte[] bytes) {
+    ensure(bytes.length);
+    System.arraycopy(bytes, 0, buf, len, bytes.length);
+    len += bytes.length;
+  }
+
+  private void writeAscii(String s) {
+    ensure(s.length());
+    for (int i = 0; i < s.length(); i++) {
+      buf[len++] = (byte) s.charAt(i);
+    }
+  }
+
+  private void writeLong(long v) {
+    if (Long.MIN_VALUE == v) {
+      writeAscii(Long.toString(v));
+      return;
+    }
+
+    if (v < 0) {
+      write((byte) '-');
+      v = -v;
+    }
+
+    int idx = digits.length;
+    do {
+      digits[--idx] = (byte) ('0' + (v % 10));
+      v /= 10;
+    } while (v > 0);
+
+    int n = digits.length - idx;
+    ensure(n);
+    System.arraycopy(digits, idx, buf, len, n);
+    len += n;
+  }
+
+  private void writeString(String s) {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    // Worst case every byte is escaped
+    ensure(bytes.length * 2 + 2);
+    buf[len++] = '"';
+    for (byte b: bytes) {
+      if ('"' == b || '\\' == b) {
+        buf[len++] = '\\';
+      }
+      buf[len++] = b;
+    }
+    buf[len++] = '"';
+  }
+
+  /**
+   * Can a measurement, tag key, tag value or field key be written, line protocol has no escape sequence for newlines
+   */
+  static boolean representable(String s) {
+    return null == s || s.indexOf('\n') < 0;
+  }
+
+  /**
+   * Escape a measurement, tag key, tag value or field key
+   *
+   * @throws IllegalArgumentException if it contains a newline, see {@link #representable}
+   */
+  private static void escape(StringBuilder sb, String s, boolean measurement) {
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+        case ',':
+        case ' ':
+          sb.append('\\');
+          sb.append(c);
+          break;
+        case '=':
+          if (!measurement) {
+            sb.append('\\');
+          }
+          sb.append(c);
+          break;
+        case '\n':
+          throw new IllegalArgumentException("Line protocol cannot represent the newline in '" + s + "'.");
+        default:
+          sb.append(c);
+      }
+    }
+  }
+}
@@ -0,0 +1,209 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.ext.influxdb;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * Posts line protocol payloads to an InfluxDB write endpoint, either directly or via the
+ * extension's background write queue. Payloads which cannot be written because of a transient
+ * error, or which do not fit in the write queue, can be spilled to disk for a later replay.
+ *
+ * Writes throttled by InfluxDB are retried, and adaptive batches are sized, by the
+ * {@link WriteController} of the endpoint.
+ */
+class LineProtocolWriter {
+
+  private static final MediaType LINE_PROTOCOL = MediaType.parse("text/plain; charset=utf-8");
+
+  private final OkHttpClient client;
+  private final HttpUrl url;
+
+  private final WriteQueue queue;
+  private final InfluxDBClientRegistry.Key key;
+  private final boolean block;
+  private final SpillBuffer spill;
+  private final CallGuard guard;
+  private final WriteController controller;
+
+  private int batchSize = Integer.MAX_VALUE;
+  private boolean adaptive = false;
+  private boolean limited = true;
+
+  LineProtocolWriter(OkHttpClient client, HttpUrl url) {
+    this(client, url, null, null, null);
+  }
+
+  /**
+   * Create a writer which posts its payloads directly
+   *
+   * @param spill buffer receiving the payloads which failed with a transient error, may be null
+   * @param guard guard cancelling the writes, may be null
+   */
+  LineProtocolWriter(OkHttpClient client, HttpUrl url, InfluxDBClientRegistry.Key key, SpillBuffer spill, CallGuard guard) {
+    this.client = client;
+    this.url = url;
+    this.queue = null;
+    this.key = key;
+    this.block = false;
+    this.spill = spill;
+    this.guard = guard;
+    this.controller = WriteController.of(url);
+  }
+
+  /**
+   * Create a writer which hands its payloads over to a write queue
+   *
+   * @param block wait for room in the queue when it is full instead of failing
+   * @param overflow spill the payloads to disk when the queue is full instead of failing
+   */
+  LineProtocolWriter(WriteQueue queue, InfluxDBClientRegistry.Key key, HttpUrl url, boolean block, boolean overflow) {
+    this.client = null;
+    this.url = url;
+    this.queue = queue;
+    this.key = key;
+    this.block = block;
+    this.spill = overflow ? InfluxDBWarpScriptExtension.getSpillBuffer() : null;
+    this.guard = null;
+    this.controller = WriteController.of(url);
+  }
+
+  /**
+   * Set when {@link #full} considers an encoder full
+   *
+   * @param batchSize maximum number of points of a batch
+   * @param adaptive consider it full once it reaches the batch size of the endpoint's controller rather than the maximum one
+   */
+  void setBatchSize(int batchSize, boolean adaptive) {
+    this.batchSize = batchSize;
+    this.adaptive = adaptive;
+  }
+
+  /**
+   * Set whether the writes wait for the adaptive concurrency limit of the endpoint's controller,
+   * calls which set their own concurrency are not bounded by it
+   */
+  void setLimited(boolean limited) {
+    this.limited = limited;
+  }
+
+  /**
+   * Should the content of an encoder be written before more points are appended. Batches never exceed
+   * influxdb.write.maxbytes, so the memory held by the encoder does not depend on the size of the input.
+   */
+  boolean full(LineProtocolEncoder encoder) {
+    if (encoder.points() >= batchSize) {
+      return true;
+    }
+    return encoder.size() >= (adaptive ? controller.batchBytes() : InfluxDBWarpScriptExtension.getWriteMaxBytes());
+  }
+
+  /**
+   * URL of the InfluxDB 1.x write endpoint for a database
+   */
+  static HttpUrl v1(InfluxDBClientRegistry.Key key, String db) {
+    return HttpUrl.parse(key.getUrl()).newBuilder()
+        .addPathSegment("write")
+        .addQueryParameter("db", db)
+        .addQueryParameter("precision", LineProtocolEncoder.PRECISION_V1)
+        .build();
+  }
+
+  /**
+   * URL of the InfluxDB 2.x write endpoint for a bucket
+   */
+  static HttpUrl v2(InfluxDBClientRegistry.Key key, String bucket) {
+    return HttpUrl.parse(key.getUrl()).newBuilder()
+        .addPathSegments("api/v2/write")
+        .addQueryParameter("org", key.getOrg())
+        .addQueryParameter("bucket", bucket)
+        .addQueryParameter("precision", LineProtocolEncoder.PRECISION_V2)
+        .build();
+  }
+
+  /**
+   * Write the content of an encoder and reset it. The buffer is only read during the call so it can be reused afterwards.
+   */
+  void write(LineProtocolEncoder encoder) throws IOException {
+    if (0 == encoder.size()) {
+      return;
+    }
+    if (null != queue) {
+      queue.enqueue(new WriteQueue.Batch(key, url, Arrays.copyOf(encoder.buffer(), encoder.size()), encoder.points()), block, null != spill);
+    } else {
+      try {
+        write(encoder.buffer(), 0, encoder.size(), encoder.points());
+      } catch (IOException ioe) {
+        // Batches of a cancelled call are not spilled, the call fails
+        if (null == spill || !InfluxDBHttpException.isTransient(ioe) || (null != guard && guard.cancelled())) {
+          throw ioe;
+        }
+        spill.append(new WriteQueue.Batch(key, url, Arrays.copyOf(encoder.buffer(), encoder.size()), encoder.points()));
+      }
+    }
+    encoder.reset();
+  }
+
+  /**
+   * Post a payload, retrying it while it is throttled. The points it holds are recorded in the metrics once it has been accepted.
+   */
+  void write(byte[] buf, int offset, int len, int points) throws IOException {
+    Request request = new Request.Builder()
+        .url(url)
+        .post(RequestBody.create(LINE_PROTOCOL, buf, offset, len))
+        .build();
+
+    if (null != guard) {
+      request = guard.tag(request);
+    }
+
+    for (int attempt = 0; ; attempt++) {
+      controller.acquire(guard, limited);
+
+      IOException error = null;
+      long start = System.nanoTime();
+      try (Response response = client.newCall(request).execute()) {
+        InfluxDBRequests.check(response);
+      } catch (IOException ioe) {
+        error = ioe;
+      } finally {
+        controller.release(len, System.nanoTime() - start, error);
+      }
+
+      if (null == error) {
+        break;
+      }
+
+      long delay = controller.backoff(attempt, error);
+      if (delay < 0L) {
+        throw error;
+      }
+      InfluxDBWarpScriptExtension.getMetrics().retry(url);
+      WriteController.pause(delay, guard);
+    }
+
+    InfluxDBWarpScriptExtension.getMetrics().written(url, points);
+  }
+}
@@ -0,0 +1,236 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.ext.influxdb;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.store.Constants;
+import io.warp10.script.WarpScriptException;
+
+/**
+ * Splits a [start, end) time range into slices fetched concurrently, and merges the
+ * per-slice Geo Time Series by series key.
+ *
+ * Flux queries refer to the slice bounds via v.timeRangeStart and v.timeRangeStop, InfluxQL
+ * queries via the $timeFilter placeholder.
+ */
+class ParallelFetch {
+
+  static final String KEY_START = "start";
+  static final String KEY_END = "end";
+  static final String KEY_SLICES = "slices";
+
+  static final String TIME_FILTER = "$timeFilter";
+
+  static final String FLUX_RANGE_START = "v.timeRangeStart";
+  static final String FLUX_RANGE_STOP = "v.timeRangeStop";
+
+  private final long start;
+  private final long end;
+  private final int slices;
+
+  private ParallelFetch(long start, long end, int slices) {
+    this.start = start;
+    this.end = end;
+    this.slices = slices;
+  }
+
+  /**
+   * Extract the slicing parameters, returns null if no parallel fetch was requested
+   */
+  static ParallelFetch fromParams(String functionName, Map<Object,Object> params) throws WarpScriptException {
+    if (!params.containsKey(KEY_SLICES)) {
+      return null;
+    }
+
+    if (!(params.get(KEY_SLICES) instanceof Long) || ((Long) params.get(KEY_SLICES)) < 1) {
+      throw new WarpScriptException(functionName + " expects a strictly positive LONG value for the '" + KEY_SLICES + "' parameter.");
+    }
+
+    if (!(params.get(KEY_START) instanceof Long) || !(params.get(KEY_END) instanceof Long)) {
+      throw new WarpScriptException(functionName + " expects LONG '" + KEY_START + "' and '" + KEY_END + "' parameters when '" + KEY_SLICES + "' is set.");
+    }
+
+    long start = (Long) params.get(KEY_START);
+    long end = (Long) params.get(KEY_END);
+
+    if (end <= start) {
+      throw new WarpScriptException(functionName + " expects '" + KEY_END + "' to be strictly greater than '" + KEY_START + "'.");
+    }
+
+    // Do not create slices shorter than one time unit
+    int slices = (int) Math.min(Math.min((Long) params.get(KEY_SLICES), end - start), 1024L);
+
+    return new ParallelFetch(start, end, slices);
+  }
+
+  int slices() {
+    return slices;
+  }
+
+  /**
+   * Description of the time range covered by the slices
+   */
+  String range() {
+    return start + "," + end;
+  }
+
+  /**
+   * Start of slice i, in platform time units, the end of slice i is the start of slice i + 1
+   */
+  long bound(int i) {
+    if (i >= slices) {
+      return end;
+    }
+    return start + (long) ((end - start) * ((double) i / slices));
+  }
+
+  /**
+   * Check that a query refers to the slice bounds, a query which does not would be executed in full for each slice
+   */
+  static void check(String functionName, String query, boolean flux) throws WarpScriptException {
+    if (flux) {
+      if (!query.contains(FLUX_RANGE_START) || !query.contains(FLUX_RANGE_STOP)) {
+        throw new WarpScriptException(functionName + " expects the Flux query to use " + FLUX_RANGE_START + " and " + FLUX_RANGE_STOP + " when '" + KEY_SLICES + "' is set.");
+      }
+    } else if (!query.contains(TIME_FILTER)) {
+      throw new WarpScriptException(functionName + " expects the InfluxQL query to contain " + TIME_FILTER + " when '" + KEY_SLICES + "' is set.");
+    }
+  }
+
+  /**
+   * Define v.timeRangeStart and v.timeRangeStop for slice i in a Flux query. The option is inserted
+   * after the import statements, which must precede any other statement.
+   */
+  String flux(String query, int i) {
+    int pos = 0;
+    while (pos < query.length()) {
+      int eol = query.indexOf('\n', pos);
+      int next = eol < 0 ? query.length() : eol + 1;
+      String line = query.substring(pos, next).trim();
+      if (!line.isEmpty() && !line.startsWith("//") && !line.startsWith("import ") && !line.startsWith("import\t")) {
+        break;
+      }
+      pos = next;
+    }
+
+    String option = "option v = {timeRangeStart: " + rfc3339(bound(i)) + ", timeRangeStop: " + rfc3339(bound(i + 1)) + "}\n";
+
+    if (pos >= query.length() && pos > 0 && '\n' != query.charAt(pos - 1)) {
+      // The query only holds imports, without a final newline
+      return query + "\n" + option;
+    }
+
+    return query.substring(0, pos) + option + query.substring(pos);
+  }
+
+  /**
+   * Replace the $timeFilter placeholder of an InfluxQL query with the time condition of slice i
+   */
+  String influxql(String query, int i) {
+    long units = 1000000000L / Constants.TIME_UNITS_PER_S;
+    return query.replace(TIME_FILTER, "time >= " + (bound(i) * units) + " AND time < " + (bound(i + 1) * units));
+  }
+
+  private static String rfc3339(long ts) {
+    long nanos = ts * (1000000000L / Constants.TIME_UNITS_PER_S);
+    return Instant.ofEpochSecond(Math.floorDiv(nanos, 1000000000L), Math.floorMod(nanos, 1000000000L)).toString();
+  }
+
+  /**
+   * Run the tasks on the extension executor and return their results in order.
+   * If a task fails, the remaining ones are cancelled.
+   */
+  static <T> List<T> run(List<Callable<T>> tasks) throws IOException {
+    ExecutorService executor = InfluxDBWarpScriptExtension.getExecutor();
+
+    List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+    for (Callable<T> task: tasks) {
+      futures.add(executor.submit(task));
+    }
+
+    List<T> results = new ArrayList<T>(tasks.size());
+
+    try {
+      for (Future<T> future: futures) {
+        results.add(future.get());
+      }
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for slices.", ie);
+    } catch (ExecutionException ee) {
+      if (ee.getCause() instanceof IOException) {
+        throw (IOException) ee.getCause();
+      }
+      throw new IOException(ee.getCause());
+    } finally {
+      for (Future<T> future: futures) {
+        future.cancel(true);
+      }
+    }
+
+    return results;
+  }
+
+  /**
+   * Merge per-slice series by key. The pieces are appended in slice order and the resulting series are sorted.
+   */
+  static <K> Map<K,GeoTimeSerie> merge(List<Map<K,GeoTimeSerie>> parts) {
+    Map<K,GeoTimeSerie> merged = new LinkedHashMap<K,GeoTimeSerie>();
+
+    for (Map<K,GeoTimeSerie> part: parts) {
+      for (Map.Entry<K,GeoTimeSerie> entry: part.entrySet()) {
+        GeoTimeSerie gts = merged.get(entry.getKey());
+        if (null == gts) {
+          merged.put(entry.getKey(), entry.getValue());
+          continue;
+        }
+        GeoTimeSerie piece = entry.getValue();
+        int n = GTSHelper.nvalues(piece);
+        for (int i = 0; i < n; i++) {
+          GTSHelper.setValue(gts, GTSHelper.tickAtIndex(piece, i), GTSHelper.locationAtIndex(piece, i), GTSHelper.elevationAtIndex(piece, i), GTSHelper.valueAtIndex(piece, i), false);
+        }
+      }
+    }
+
+    for (GeoTimeSerie gts: merged.values()) {
+      GTSHelper.sort(gts);
+    }
+
+    return merged;
+  }
+
+  /**
+   * Remove the duplicate timestamps of merged series, such as those read from several replicas
+   */
+  static <K> void dedup(Map<K,GeoTimeSerie> merged) {
+    for (Map.Entry<K,GeoTimeSerie> entry: merged.entrySet()) {
+      entry.setValue(GTSHelper.dedup(entry.getValue()));
+    }
+  }
+}
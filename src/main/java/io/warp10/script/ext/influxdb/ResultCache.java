@@ -0,0 +1,392 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.ext.influxdb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.script.WarpScriptException;
+
+/**
+ * Cache of query results shared by all scripts.
+ *
+ * Entries expire after the TTL given by the call which fetched them and the least recently
+ * used ones are evicted when the estimated size of the cached series exceeds the budget.
+ * Concurrent calls for the same key which miss the cache wait for a single fetch, each within
+ * its own deadline. Series served from the cache count towards the limits of the call as if
+ * they had been fetched.
+ *
+ * Cached series are never handed out, callers always receive copies.
+ */
+class ResultCache {
+
+  static final String KEY_TTL = "ttl";
+
+  /**
+   * Fetches a result, never null
+   */
+  interface Loader<T> {
+    T load() throws WarpScriptException;
+  }
+
+  /**
+   * Period (in ms) at which calls waiting for the fetch of another call check their own guard
+   */
+  private static final long WAIT_PERIOD = 50L;
+
+  private static class Entry {
+    private final Object value;
+    private final long size;
+    private final long expiry;
+
+    private Entry(Object value, long size, long expiry) {
+      this.value = value;
+      this.size = size;
+      this.expiry = expiry;
+    }
+  }
+
+  private final long maxBytes;
+
+  /**
+   * Entries in access order. Guarded by 'this'.
+   */
+  private final LinkedHashMap<String,Entry> entries = new LinkedHashMap<String,Entry>(16, 0.75F, true);
+  private long bytes = 0L;
+
+  /**
+   * Fetches in progress, by key
+   */
+  private final Map<String,FutureTask<Object>> inflight = new ConcurrentHashMap<String,FutureTask<Object>>();
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * @param maxBytes maximum estimated size of the cached results, 0 disables caching
+   */
+  ResultCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Extract the TTL (in ms) of a call, 0 if the call should not use the cache
+   */
+  static long getTTL(String functionName, Map<Object,Object> params) throws WarpScriptException {
+    if (!params.containsKey(KEY_TTL)) {
+      return 0L;
+    }
+
+    if (!(params.get(KEY_TTL) instanceof Long) || ((Long) params.get(KEY_TTL)) < 0) {
+      throw new WarpScriptException(functionName + " expects a positive LONG value for the '" + KEY_TTL + "' parameter.");
+    }
+
+    return (Long) params.get(KEY_TTL);
+  }
+
+  /**
+   * Build a cache key from its parts, queries are normalized so whitespace differences do not matter
+   */
+  static String key(String... parts) {
+    StringBuilder sb = new StringBuilder();
+    for (String part: parts) {
+      if (sb.length() > 0) {
+        // Normalized parts may hold line breaks
+        sb.append('\0');
+      }
+      if (null != part) {
+        normalize(sb, part);
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Return a copy of the cached value for key, fetching it with loader if it is absent or expired.
+   * Results which were not fetched by this call, served from the cache or by the fetch of another
+   * call, are charged to its budget. If the fetch of another call fails, the result is fetched again
+   * under this call's own guard and budget.
+   *
+   * @param guard guard of the call, bounding the wait for the fetch of another call
+   * @param budget budget of the call, also used by loader
+   */
+  <T> T get(String key, long ttl, CallGuard guard, FetchBudget budget, Loader<T> loader) throws IOException, WarpScriptException {
+    if (0L == maxBytes) {
+      return loader.load();
+    }
+
+    while (true) {
+      Object value = null;
+
+      synchronized(this) {
+        Entry entry = entries.get(key);
+        if (null != entry) {
+          if (entry.expiry > System.currentTimeMillis()) {
+            hits.incrementAndGet();
+            value = entry.value;
+          } else {
+            remove(key);
+          }
+        }
+      }
+
+      if (null != value) {
+        // Cached values are never modified, they are copied outside of the lock
+        value = copy(value);
+        charge(budget, value);
+        return (T) value;
+      }
+
+      FutureTask<Object> task = new FutureTask<Object>(() -> loader.load());
+      FutureTask<Object> existing = inflight.putIfAbsent(key, task);
+
+      if (null == existing) {
+        misses.incrementAndGet();
+        try {
+          task.run();
+          value = task.get();
+          put(key, value, ttl);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while fetching the query result.", ie);
+        } catch (ExecutionException ee) {
+          if (ee.getCause() instanceof WarpScriptException) {
+            throw (WarpScriptException) ee.getCause();
+          } else if (ee.getCause() instanceof RuntimeException) {
+            throw (RuntimeException) ee.getCause();
+          }
+          throw new IOException(ee.getCause());
+        } finally {
+          inflight.remove(key, task);
+        }
+        // The loader charged the budget while fetching
+        return (T) copy(value);
+      }
+
+      // Another call is fetching the same result
+      coalesced.incrementAndGet();
+      value = await(existing, guard);
+
+      if (null != value) {
+        value = copy(value);
+        charge(budget, value);
+        return (T) value;
+      }
+
+      // The other fetch failed, maybe because its own deadline expired
+      inflight.remove(key, existing);
+    }
+  }
+
+  /**
+   * Wait for the fetch of another call, for as long as the guard of this call allows
+   *
+   * @return the result of the fetch, null if it failed
+   */
+  private static Object await(FutureTask<Object> task, CallGuard guard) throws IOException {
+    while (true) {
+      try {
+        return task.get(WAIT_PERIOD, TimeUnit.MILLISECONDS);
+      } catch (TimeoutException te) {
+        guard.checkpoint();
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for the query result.", ie);
+      } catch (ExecutionException ee) {
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Charge the series and datapoints of a result to a budget, its estimated size standing for the response bytes
+   */
+  private static void charge(FetchBudget budget, Object value) throws IOException {
+    long[] counts = new long[2];
+    count(value, counts);
+    budget.charge(counts[0], counts[1], size(value));
+  }
+
+  /**
+   * Count the series and datapoints of lists of (lists of) Geo Time Series
+   */
+  private static void count(Object value, long[] counts) {
+    if (value instanceof GeoTimeSerie) {
+      counts[0]++;
+      counts[1] += GTSHelper.nvalues((GeoTimeSerie) value);
+    } else if (value instanceof List) {
+      for (Object elt: (List<Object>) value) {
+        count(elt, counts);
+      }
+    }
+  }
+
+  synchronized void clear() {
+    entries.clear();
+    bytes = 0L;
+  }
+
+  Map<Object,Object> stats() {
+    Map<Object,Object> stats = new LinkedHashMap<Object,Object>();
+
+    synchronized(this) {
+      stats.put("cache.entries", (long) entries.size());
+      stats.put("cache.bytes", bytes);
+    }
+
+    stats.put("cache.max.bytes", maxBytes);
+    stats.put("cache.hits", hits.get());
+    stats.put("cache.misses", misses.get());
+    stats.put("cache.coalesced", coalesced.get());
+    stats.put("cache.evictions", evictions.get());
+
+    return stats;
+  }
+
+  private void put(String key, Object value, long ttl) {
+    // Estimated outside of the lock, the value is not shared yet
+    long size = size(value);
+
+    // Results larger than the whole budget are not cached
+    if (size > maxBytes) {
+      return;
+    }
+
+    Entry entry = new Entry(value, size, System.currentTimeMillis() + ttl);
+
+    synchronized(this) {
+      remove(key);
+
+      Iterator<Entry> iter = entries.values().iterator();
+      while (bytes + size > maxBytes && iter.hasNext()) {
+        Entry eldest = iter.next();
+        iter.remove();
+        bytes -= eldest.size;
+        evictions.incrementAndGet();
+      }
+
+      entries.put(key, entry);
+      bytes += size;
+    }
+  }
+
+  private void remove(String key) {
+    Entry entry = entries.remove(key);
+    if (null != entry) {
+      bytes -= entry.size;
+    }
+  }
+
+  /**
+   * Copy lists of (lists of) Geo Time Series
+   */
+  private static Object copy(Object value) {
+    if (value instanceof GeoTimeSerie) {
+      return ((GeoTimeSerie) value).clone();
+    } else if (value instanceof List) {
+      List<Object> list = (List<Object>) value;
+      List<Object> copy = new ArrayList<Object>(list.size());
+      for (Object elt: list) {
+        copy.add(copy(elt));
+      }
+      return copy;
+    }
+    return value;
+  }
+
+  /**
+   * Estimate the memory used by lists of (lists of) Geo Time Series
+   */
+  private static long size(Object value) {
+    if (value instanceof GeoTimeSerie) {
+      GeoTimeSerie gts = (GeoTimeSerie) value;
+      long size = 64L + 2L * gts.getName().length();
+      for (Map.Entry<String,String> label: gts.getLabels().entrySet()) {
+        size += 32L + 2L * (label.getKey().length() + label.getValue().length());
+      }
+      // Ticks, values, locations and elevations
+      size += 32L * GTSHelper.nvalues(gts);
+      return size;
+    } else if (value instanceof List) {
+      long size = 16L;
+      for (Object elt: (List<Object>) value) {
+        size += 8L + size(elt);
+      }
+      return size;
+    }
+    return 16L;
+  }
+
+  /**
+   * Append s with leading and trailing whitespace removed and runs of whitespace outside of quotes and
+   * regular expressions collapsed. A run holding a line break is collapsed to a line break, as line
+   * breaks end comments.
+   */
+  private static void normalize(StringBuilder sb, String s) {
+    char quote = 0;
+    boolean space = false;
+    boolean newline = false;
+    int start = sb.length();
+
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+
+      if (0 != quote) {
+        sb.append(c);
+        if ('\\' == c && i + 1 < s.length()) {
+          sb.append(s.charAt(++i));
+        } else if (quote == c) {
+          quote = 0;
+        }
+        continue;
+      }
+
+      if (Character.isWhitespace(c)) {
+        space = true;
+        newline |= '\n' == c || '\r' == c;
+        continue;
+      }
+
+      if (space && sb.length() > start) {
+        sb.append(newline ? '\n' : ' ');
+      }
+      space = false;
+      newline = false;
+
+      // Slashes also start the regular expressions of InfluxQL and Flux. Divisions are copied as is
+      // up to the next slash, which only makes the key more specific.
+      if ('"' == c || '\'' == c || '/' == c) {
+        quote = c;
+      }
+      sb.append(c);
+    }
+  }
+}
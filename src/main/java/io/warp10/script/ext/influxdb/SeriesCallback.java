@@ -0,0 +1,67 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.ext.influxdb;
+
+import java.io.IOException;
+
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.script.WarpScriptATCException;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+import io.warp10.script.WarpScriptStack.Macro;
+
+/**
+ * Receives each Geo Time Series as soon as the decoder has read all its values. Series handed
+ * over to a callback are no longer retained by the decoder.
+ */
+interface SeriesCallback {
+
+  static final String KEY_MACRO = "macro";
+
+  void series(GeoTimeSerie gts) throws IOException;
+
+  /**
+   * Carries the exceptions controlling the execution of the script (RETURN, BREAK, STOP, ...) thrown by a macro
+   * through the decoders, the function rethrows them unchanged
+   */
+  static class ControlException extends RuntimeException {
+    ControlException(WarpScriptATCException cause) {
+      super(cause);
+    }
+
+    @Override
+    public synchronized WarpScriptATCException getCause() {
+      return (WarpScriptATCException) super.getCause();
+    }
+  }
+
+  /**
+   * Callback pushing each series onto the stack and executing a macro
+   */
+  static SeriesCallback macro(WarpScriptStack stack, Macro macro) {
+    return gts -> {
+      stack.push(gts);
+      try {
+        stack.exec(macro);
+      } catch (WarpScriptATCException atce) {
+        throw new ControlException(atce);
+      } catch (WarpScriptException wse) {
+        throw new IOException("Error executing the macro on series '" + gts.getName() + "'.", wse);
+      }
+    };
+  }
+}
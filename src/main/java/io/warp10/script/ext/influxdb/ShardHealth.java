@@ -0,0 +1,105 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.ext.influxdb;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import okhttp3.HttpUrl;
+
+/**
+ * Availability of the InfluxDB nodes of sharded calls.
+ *
+ * A node which fails a call is put aside for a probation delay, doubled at each consecutive failure,
+ * during which sharded writes route its series to the next nodes of the ring and sharded reads with
+ * replicas skip it. Once the delay has expired the node is used again, a success clears its failures.
+ * Rejected requests, exceeded limits and calls cancelled by their guard do not count as failures.
+ */
+class ShardHealth {
+
+  /**
+   * Bounds of the probation delay, in ms
+   */
+  private static final long MIN_PROBATION = 1000L;
+  private static final long MAX_PROBATION = 60000L;
+
+  private static final Map<String,ShardHealth> nodes = new ConcurrentHashMap<String,ShardHealth>();
+
+  private int failures = 0;
+  private long downUntil = 0L;
+  private long totalFailures = 0L;
+
+  private ShardHealth() {}
+
+  /**
+   * Health of the server of a URL
+   */
+  static ShardHealth of(String url) {
+    HttpUrl parsed = HttpUrl.parse(url);
+    return nodes.computeIfAbsent(null == parsed ? url : parsed.scheme() + "://" + parsed.host() + ":" + parsed.port(), k -> new ShardHealth());
+  }
+
+  /**
+   * Is the node outside of its probation delay
+   */
+  synchronized boolean available() {
+    return System.currentTimeMillis() >= downUntil;
+  }
+
+  synchronized void success() {
+    failures = 0;
+    downUntil = 0L;
+  }
+
+  /**
+   * Record the outcome of a failed call, only errors caused by the node put it on probation
+   */
+  void failure(IOException ioe, CallGuard guard) {
+    if (guard.cancelled() || ioe instanceof FetchBudget.ExceededException || !InfluxDBHttpException.isTransient(ioe)) {
+      return;
+    }
+
+    synchronized(this) {
+      failures++;
+      totalFailures++;
+      downUntil = System.currentTimeMillis() + Math.min(MAX_PROBATION, MIN_PROBATION << Math.min(failures - 1, 16));
+    }
+  }
+
+  /**
+   * State of each node used by a sharded call
+   */
+  static Map<Object,Object> stats() {
+    Map<Object,Object> stats = new TreeMap<Object,Object>();
+    long now = System.currentTimeMillis();
+    for (Map.Entry<String,ShardHealth> entry: nodes.entrySet()) {
+      ShardHealth health = entry.getValue();
+      Map<Object,Object> node = new LinkedHashMap<Object,Object>();
+      synchronized(health) {
+        node.put("available", now >= health.downUntil);
+        node.put("probation.ms", Math.max(0L, health.downUntil - now));
+        node.put("consecutive.failures", (long) health.failures);
+        node.put("failures", health.totalFailures);
+      }
+      stats.put(entry.getKey(), node);
+    }
+    return stats;
+  }
+}
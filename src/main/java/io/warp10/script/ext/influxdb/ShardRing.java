@@ -0,0 +1,317 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.ext.influxdb;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.crypto.SipHashInline;
+import io.warp10.script.WarpScriptException;
+
+/**
+ * Consistent hash ring spreading series over independent InfluxDB nodes, as InfluxDB OSS does not cluster.
+ *
+ * Each node owns VNODES points of the ring, placed by hashing its URL so placements do not depend on the
+ * order of the URLs. A series, identified by its measurement and tag set, is held by the first 'replicas'
+ * distinct nodes found walking the ring clockwise from its hash. Adding a node only moves the series
+ * whose hash falls just before its points. Nodes on probation (see {@link ShardHealth}) are passed over
+ * by writes, which is harmless for reads as sharded reads query every node and merge the series.
+ */
+class ShardRing {
+
+  static final String KEY_URLS = "urls";
+  static final String KEY_REPLICAS = "replicas";
+
+  /**
+   * Number of ring points per node, more points spread series more evenly
+   */
+  private static final int VNODES = 128;
+
+  /**
+   * SipHash keys, changing them moves every series
+   */
+  private static final long K0 = 0x496e666c75784442L;
+  private static final long K1 = 0x5368617264526e67L;
+
+  private final List<String> urls;
+  private final int replicas;
+  private final ShardHealth[] health;
+  private final long[] points;
+  private final int[] owners;
+
+  private ShardRing(List<String> urls, int replicas) {
+    this.urls = urls;
+    this.replicas = replicas;
+    this.health = new ShardHealth[urls.size()];
+
+    TreeMap<Long,Integer> ring = new TreeMap<Long,Integer>();
+    for (int node = 0; node < urls.size(); node++) {
+      health[node] = ShardHealth.of(urls.get(node));
+      for (int v = 0; v < VNODES; v++) {
+        // Collisions are resolved in favor of the smallest URL so the ring does not depend on the URL order
+        long point = hash((urls.get(node) + "#" + v).getBytes(StandardCharsets.UTF_8));
+        Integer owner = ring.get(point);
+        if (null == owner || urls.get(node).compareTo(urls.get(owner)) < 0) {
+          ring.put(point, node);
+        }
+      }
+    }
+
+    points = new long[ring.size()];
+    owners = new int[ring.size()];
+    int i = 0;
+    for (Map.Entry<Long,Integer> entry: ring.entrySet()) {
+      points[i] = entry.getKey();
+      owners[i] = entry.getValue();
+      i++;
+    }
+  }
+
+  /**
+   * Build the ring of the nodes listed in params, each series being held by 'replicas' nodes (1 by default).
+   * Returns null if no 'urls' parameter was given.
+   */
+  static ShardRing fromParams(String functionName, Map<Object,Object> params) throws WarpScriptException {
+    if (!params.containsKey(KEY_URLS)) {
+      return null;
+    }
+
+    if (params.containsKey(INFLUXDBFLUX.KEY_URL)) {
+      throw new WarpScriptException(functionName + " cannot use '" + INFLUXDBFLUX.KEY_URL + "' together with '" + KEY_URLS + "'.");
+    }
+
+    if (!(params.get(KEY_URLS) instanceof List) || ((List<Object>) params.get(KEY_URLS)).isEmpty()) {
+      throw new WarpScriptException(functionName + " expects a non empty list of STRING for the '" + KEY_URLS + "' parameter.");
+    }
+
+    List<String> urls = new ArrayList<String>();
+    for (Object url: (List<Object>) params.get(KEY_URLS)) {
+      if (!(url instanceof String)) {
+        throw new WarpScriptException(functionName + " expects a non empty list of STRING for the '" + KEY_URLS + "' parameter.");
+      }
+      urls.add((String) url);
+    }
+
+    if (new HashSet<String>(urls).size() != urls.size()) {
+      throw new WarpScriptException(functionName + " expects distinct URLs in the '" + KEY_URLS + "' parameter.");
+    }
+
+    int replicas = 1;
+
+    if (params.containsKey(KEY_REPLICAS)) {
+      if (!(params.get(KEY_REPLICAS) instanceof Long) || ((Long) params.get(KEY_REPLICAS)) < 1 || ((Long) params.get(KEY_REPLICAS)) > urls.size()) {
+        throw new WarpScriptException(functionName + " expects the '" + KEY_REPLICAS + "' parameter to be a LONG between 1 and the number of URLs.");
+      }
+      replicas = ((Long) params.get(KEY_REPLICAS)).intValue();
+    }
+
+    return new ShardRing(urls, replicas);
+  }
+
+  int size() {
+    return urls.size();
+  }
+
+  String url(int node) {
+    return urls.get(node);
+  }
+
+  /**
+   * Nodes a series is written to, available nodes first in ring order, then the nodes on probation
+   * if there are not enough available ones
+   */
+  int[] nodes(String measurement, Map<String,String> tags) {
+    StringBuilder sb = new StringBuilder(measurement);
+    // Sorted so the hash does not depend on the iteration order of the tags
+    for (Map.Entry<String,String> tag: new TreeMap<String,String>(tags).entrySet()) {
+      sb.append(',').append(tag.getKey()).append('=').append(tag.getValue());
+    }
+
+    long hash = hash(sb.toString().getBytes(StandardCharsets.UTF_8));
+
+    int start = Arrays.binarySearch(points, hash);
+    if (start < 0) {
+      start = -start - 1;
+    }
+
+    // Distinct nodes in ring order
+    int[] order = new int[urls.size()];
+    boolean[] seen = new boolean[urls.size()];
+    int n = 0;
+    for (int i = 0; i < points.length && n < order.length; i++) {
+      int node = owners[(start + i) % points.length];
+      if (!seen[node]) {
+        seen[node] = true;
+        order[n++] = node;
+      }
+    }
+
+    int[] selected = new int[replicas];
+    boolean[] taken = new boolean[urls.size()];
+    int k = 0;
+    for (int i = 0; i < n && k < replicas; i++) {
+      if (health[order[i]].available()) {
+        taken[order[i]] = true;
+        selected[k++] = order[i];
+      }
+    }
+    for (int i = 0; i < n && k < replicas; i++) {
+      if (!taken[order[i]]) {
+        selected[k++] = order[i];
+      }
+    }
+
+    return selected;
+  }
+
+  /**
+   * Nodes a read is sent to, all of them except up to replicas - 1 nodes on probation, every series
+   * then still has a replica among the nodes read
+   */
+  int[] readable() {
+    int skippable = replicas - 1;
+    int[] nodes = new int[urls.size()];
+    int n = 0;
+    for (int node = 0; node < urls.size(); node++) {
+      if (skippable > 0 && !health[node].available()) {
+        skippable--;
+        continue;
+      }
+      nodes[n++] = node;
+    }
+    return Arrays.copyOf(nodes, n);
+  }
+
+  /**
+   * Run tasks targeting nodes on the extension executor and wait for all of them, even if some fail.
+   * The results of the successful tasks are added to results, in order, and the health of the nodes is updated.
+   *
+   * @param nodes node targeted by each task
+   * @return the first error of each node, null for the nodes whose tasks all succeeded
+   */
+  <T> IOException[] run(int[] nodes, List<Callable<T>> tasks, List<T> results, CallGuard guard) throws IOException {
+    ExecutorService executor = InfluxDBWarpScriptExtension.getExecutor();
+
+    List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+    for (Callable<T> task: tasks) {
+      futures.add(executor.submit(task));
+    }
+
+    IOException[] errors = new IOException[urls.size()];
+    boolean[] used = new boolean[urls.size()];
+
+    try {
+      for (int i = 0; i < futures.size(); i++) {
+        used[nodes[i]] = true;
+        try {
+          results.add(futures.get(i).get());
+        } catch (ExecutionException ee) {
+          IOException ioe = ee.getCause() instanceof IOException ? (IOException) ee.getCause() : new IOException(ee.getCause());
+          if (null == errors[nodes[i]]) {
+            errors[nodes[i]] = ioe;
+            health[nodes[i]].failure(ioe, guard);
+          }
+        }
+      }
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for shards.", ie);
+    } finally {
+      for (Future<T> future: futures) {
+        future.cancel(true);
+      }
+    }
+
+    for (int node = 0; node < urls.size(); node++) {
+      if (used[node] && null == errors[node]) {
+        health[node].success();
+      }
+    }
+
+    return errors;
+  }
+
+  /**
+   * Run read tasks, failing unless every series still has a replica among the nodes which answered
+   *
+   * @param nodes node targeted by each task
+   * @return the results of the successful tasks, in order
+   */
+  <T> List<T> gather(int[] nodes, List<Callable<T>> tasks, CallGuard guard) throws IOException {
+    List<T> results = new ArrayList<T>(tasks.size());
+    IOException[] errors = run(nodes, tasks, results, guard);
+
+    // Nodes skipped because they were on probation count as failed ones
+    int failed = urls.size() - (int) Arrays.stream(nodes).distinct().count();
+    IOException first = null;
+    for (int node = 0; node < errors.length; node++) {
+      if (null != errors[node]) {
+        failed++;
+        if (null == first) {
+          first = new IOException("Error reading from '" + urls.get(node) + "'.", errors[node]);
+        }
+      }
+    }
+
+    if (null != first && failed >= replicas) {
+      throw first;
+    }
+
+    return results;
+  }
+
+  /**
+   * Identifier of the nodes of a sharded call, for the result cache
+   */
+  static String id(List<InfluxDBClientRegistry.Key> keys) {
+    StringBuilder sb = new StringBuilder();
+    for (InfluxDBClientRegistry.Key key: keys) {
+      if (sb.length() > 0) {
+        sb.append(',');
+      }
+      sb.append(key.id());
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Record the datapoints of series read from a node
+   */
+  static <K> void read(String url, Map<K,GeoTimeSerie> series) {
+    long points = 0L;
+    for (GeoTimeSerie gts: series.values()) {
+      points += GTSHelper.nvalues(gts);
+    }
+    InfluxDBWarpScriptExtension.getMetrics().read(url, points);
+  }
+
+  private static long hash(byte[] data) {
+    return SipHashInline.hash24(K0, K1, data, 0, data.length);
+  }
+}
@@ -0,0 +1,290 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.ext.influxdb;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.HttpUrl;
+
+/**
+ * On-disk buffer of line protocol batches which could not be written to InfluxDB.
+ *
+ * Batches are appended to segment files, one directory per endpoint, and replayed in order
+ * by a background task once the endpoint accepts writes again. A segment is deleted once all
+ * its batches have been written, if a replay is interrupted by an error the segment is
+ * replayed from its start on the next attempt, which is harmless as InfluxDB writes are
+ * idempotent. Batches rejected by InfluxDB as invalid are discarded during replay.
+ *
+ * Credentials are never written to disk, directories are named after {@link InfluxDBClientRegistry.Key#id()}
+ * and a directory is only replayed once a call using the same endpoint and credentials has been
+ * issued since the Warp 10 instance started.
+ */
+class SpillBuffer {
+
+  private static final int MAGIC = 0x49464c50;
+
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SEGMENT_SUFFIX = ".lp";
+
+  private final File dir;
+  private final long maxBytes;
+  private final long segmentSize;
+  private final boolean fsync;
+
+  /**
+   * Keys of the endpoints seen since startup, by id
+   */
+  private final Map<String,InfluxDBClientRegistry.Key> keys = new ConcurrentHashMap<String,InfluxDBClientRegistry.Key>();
+
+  /**
+   * Segment currently appended to, per endpoint id. Guarded by 'this'.
+   */
+  private final Map<String,Segment> current = new HashMap<String,Segment>();
+
+  private final AtomicLong bytes = new AtomicLong();
+  private final AtomicLong seq = new AtomicLong(System.currentTimeMillis() * 1000L);
+
+  private final AtomicLong spilledBatches = new AtomicLong();
+  private final AtomicLong replayedBatches = new AtomicLong();
+  private final AtomicLong discardedBatches = new AtomicLong();
+  private final AtomicLong rejectedBatches = new AtomicLong();
+
+  private static class Segment {
+    private final FileOutputStream fos;
+    private final DataOutputStream out;
+    private long size = 0L;
+
+    private Segment(File file) throws IOException {
+      this.fos = new FileOutputStream(file, true);
+      this.out = new DataOutputStream(fos);
+    }
+  }
+
+  SpillBuffer(File dir, long maxBytes, long segmentSize, boolean fsync, long retryInterval) {
+    this.dir = dir;
+    this.maxBytes = maxBytes;
+    this.segmentSize = segmentSize;
+    this.fsync = fsync;
+
+    dir.mkdirs();
+
+    // Account for the segments left by a previous run
+    File[] endpoints = dir.listFiles(File::isDirectory);
+    if (null != endpoints) {
+      for (File endpoint: endpoints) {
+        for (File segment: segments(endpoint)) {
+          bytes.addAndGet(segment.length());
+        }
+      }
+    }
+
+    ScheduledExecutorService replayer = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r);
+      t.setName("[InfluxDB spill replayer]");
+      t.setDaemon(true);
+      return t;
+    });
+    replayer.scheduleWithFixedDelay(this::replay, retryInterval, retryInterval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Make the credentials of an endpoint known so its spilled batches can be replayed
+   */
+  void register(InfluxDBClientRegistry.Key key) {
+    keys.putIfAbsent(key.id(), key);
+  }
+
+  /**
+   * Append a batch to the buffer
+   *
+   * @throws IOException if the buffer is full or the batch could not be stored
+   */
+  synchronized void append(WriteQueue.Batch batch) throws IOException {
+    String id = batch.getKey().id();
+    keys.putIfAbsent(id, batch.getKey());
+
+    byte[] url = batch.getUrl().toString().getBytes("UTF-8");
+    long size = 4L + 4L + url.length + 4L + 4L + batch.getPayload().length;
+
+    if (bytes.get() + size > maxBytes) {
+      rejectedBatches.incrementAndGet();
+      throw new IOException("InfluxDB spill buffer is full (" + bytes.get() + " bytes, maximum is " + maxBytes + ").");
+    }
+
+    Segment segment = current.get(id);
+
+    if (null != segment && segment.size >= segmentSize) {
+      close(segment);
+      current.remove(id);
+      segment = null;
+    }
+
+    if (null == segment) {
+      File endpoint = new File(dir, id);
+      endpoint.mkdirs();
+      segment = new Segment(new File(endpoint, SEGMENT_PREFIX + String.format("%020d", seq.incrementAndGet()) + SEGMENT_SUFFIX));
+      current.put(id, segment);
+    }
+
+    segment.out.writeInt(MAGIC);
+    segment.out.writeInt(url.length);
+    segment.out.write(url);
+    segment.out.writeInt(batch.getPoints());
+    segment.out.writeInt(batch.getPayload().length);
+    segment.out.write(batch.getPayload());
+    segment.out.flush();
+
+    if (fsync) {
+      segment.fos.getFD().sync();
+    }
+
+    segment.size += size;
+    bytes.addAndGet(size);
+    spilledBatches.incrementAndGet();
+  }
+
+  void stats(Map<Object,Object> stats) {
+    stats.put("spill.bytes", bytes.get());
+    stats.put("spill.max.bytes", maxBytes);
+    stats.put("spilled.batches", spilledBatches.get());
+    stats.put("replayed.batches", replayedBatches.get());
+    stats.put("discarded.batches", discardedBatches.get());
+    stats.put("spill.rejected.batches", rejectedBatches.get());
+  }
+
+  private void replay() {
+    File[] endpoints = dir.listFiles(File::isDirectory);
+
+    if (null == endpoints) {
+      return;
+    }
+
+    for (File endpoint: endpoints) {
+      InfluxDBClientRegistry.Key key = keys.get(endpoint.getName());
+
+      if (null == key) {
+        continue;
+      }
+
+      File[] segments;
+
+      synchronized(this) {
+        // Close the segment being appended to so it can be replayed, segments opened by later
+        // appends are not part of the snapshot and are left for the next replay
+        Segment segment = current.remove(endpoint.getName());
+        if (null != segment) {
+          close(segment);
+        }
+        segments = segments(endpoint);
+      }
+
+      try (InfluxDBClientRegistry.Lease lease = InfluxDBWarpScriptExtension.getClientRegistry().acquire(key)) {
+        for (File segment: segments) {
+          replay(lease, segment);
+          long size = segment.length();
+          if (segment.delete()) {
+            bytes.addAndGet(-size);
+          }
+        }
+      } catch (Throwable t) {
+        // The endpoint is still unavailable, retry later
+      }
+    }
+  }
+
+  private void replay(InfluxDBClientRegistry.Lease lease, File segment) throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)))) {
+      while (true) {
+        int magic;
+        try {
+          magic = in.readInt();
+        } catch (EOFException eofe) {
+          return;
+        }
+
+        if (MAGIC != magic) {
+          // Corrupted segment, skip the rest of it
+          discardedBatches.incrementAndGet();
+          return;
+        }
+
+        byte[] payload;
+        HttpUrl url;
+        int points;
+
+        try {
+          byte[] rawurl = new byte[in.readInt()];
+          in.readFully(rawurl);
+          url = HttpUrl.parse(new String(rawurl, "UTF-8"));
+          points = in.readInt();
+          payload = new byte[in.readInt()];
+          in.readFully(payload);
+        } catch (EOFException eofe) {
+          // Truncated record, the process stopped while it was being written
+          discardedBatches.incrementAndGet();
+          return;
+        }
+
+        InfluxDBWarpScriptExtension.getMetrics().retry(url);
+
+        try {
+          new LineProtocolWriter(lease.http(), url).write(payload, 0, payload.length, points);
+          replayedBatches.incrementAndGet();
+        } catch (IOException ioe) {
+          if (InfluxDBHttpException.isTransient(ioe)) {
+            throw ioe;
+          }
+          // The batch will never be accepted
+          discardedBatches.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  private static File[] segments(File endpoint) {
+    File[] segments = endpoint.listFiles((d, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+    if (null == segments) {
+      return new File[0];
+    }
+    // Segment names embed a zero padded sequence number
+    Arrays.sort(segments);
+    return segments;
+  }
+
+  private static void close(Segment segment) {
+    try {
+      segment.out.close();
+    } catch (IOException ioe) {
+      // Ignore, the data was flushed after each append
+    }
+  }
+}
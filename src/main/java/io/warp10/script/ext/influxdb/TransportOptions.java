@@ -0,0 +1,400 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+
+package io.warp10.script.ext.influxdb;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import okhttp3.Call;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient.Builder;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ForwardingSource;
+import okio.GzipSink;
+import okio.Okio;
+
+/**
+ * Immutable set of HTTP transport settings. Instances are used as part of the
+ * client registry key so two calls with identical settings share the same client.
+ *
+ * Named profiles are declared in the Warp 10 configuration as influxdb.transport.NAME.SETTING
+ * keys and selected with the 'transport' parameter of the functions. Settings not set by a
+ * profile keep the OkHttp defaults.
+ */
+public class TransportOptions {
+
+  /**
+   * Prefix of the configuration keys declaring transport profiles
+   */
+  static final String CONF_PREFIX = "influxdb.transport.";
+
+  static final String SETTING_CONNECT_TIMEOUT = "connect.timeout";
+  static final String SETTING_READ_TIMEOUT = "read.timeout";
+  static final String SETTING_WRITE_TIMEOUT = "write.timeout";
+  static final String SETTING_GZIP_REQUESTS = "gzip.requests";
+  static final String SETTING_GZIP_RESPONSES = "gzip.responses";
+  static final String SETTING_PROTOCOL = "protocol";
+  static final String SETTING_POOL_MAXIDLE = "pool.maxidle";
+  static final String SETTING_POOL_KEEPALIVE = "pool.keepalive";
+  static final String SETTING_DISPATCHER_MAXREQUESTS = "dispatcher.maxrequests";
+  static final String SETTING_DISPATCHER_MAXREQUESTSPERHOST = "dispatcher.maxrequestsperhost";
+
+  /**
+   * HTTP/1.1 only
+   */
+  static final String PROTOCOL_HTTP1 = "http1";
+
+  /**
+   * HTTP/2 when negotiated over TLS, HTTP/1.1 otherwise
+   */
+  static final String PROTOCOL_HTTP2 = "http2";
+
+  /**
+   * HTTP/2 without TLS, the server must support it
+   */
+  static final String PROTOCOL_H2C = "h2c";
+
+  private static final List<String> SETTINGS = Arrays.asList(SETTING_CONNECT_TIMEOUT, SETTING_READ_TIMEOUT, SETTING_WRITE_TIMEOUT,
+      SETTING_GZIP_REQUESTS, SETTING_GZIP_RESPONSES, SETTING_PROTOCOL, SETTING_POOL_MAXIDLE, SETTING_POOL_KEEPALIVE,
+      SETTING_DISPATCHER_MAXREQUESTS, SETTING_DISPATCHER_MAXREQUESTSPERHOST);
+
+  private static final Builder DEFAULTS = new Builder();
+
+  private static final int DEFAULT_POOL_MAXIDLE = 5;
+  private static final long DEFAULT_POOL_KEEPALIVE = 300000L;
+  /**
+   * Concurrent requests are not limited unless a profile sets a limit
+   */
+  private static final int DEFAULT_DISPATCHER_MAXREQUESTS = 0;
+  private static final int DEFAULT_DISPATCHER_MAXREQUESTSPERHOST = 0;
+
+  /**
+   * Period (in ms) at which requests waiting for a slot check whether their call was cancelled
+   */
+  private static final long WAIT_PERIOD = 50L;
+
+  /**
+   * Limiters shared by the clients built from equal options
+   */
+  private static final Map<TransportOptions,RequestLimiter> limiters = new ConcurrentHashMap<TransportOptions,RequestLimiter>();
+
+  /**
+   * Compress the bodies of line protocol writes, InfluxDB only accepts compressed bodies on its write endpoints
+   */
+  private static final Interceptor GZIP_WRITES = chain -> {
+    Request request = chain.request();
+    RequestBody body = request.body();
+
+    if (null == body || null != request.header("Content-Encoding") || !"write".equals(request.url().pathSegments().get(request.url().pathSize() - 1))) {
+      return chain.proceed(request);
+    }
+
+    // Compressed upfront so the body has a known length and can be sent again on retries
+    Buffer compressed = new Buffer();
+    try (BufferedSink sink = Okio.buffer(new GzipSink(compressed))) {
+      body.writeTo(sink);
+    }
+
+    MediaType type = body.contentType();
+    RequestBody gzipped = RequestBody.create(compressed.readByteString(), type);
+
+    return chain.proceed(request.newBuilder()
+        .header("Content-Encoding", "gzip")
+        .method(request.method(), gzipped)
+        .build());
+  };
+
+  private final long connectTimeout;
+  private final long readTimeout;
+  private final long writeTimeout;
+  private final boolean gzipRequests;
+  private final boolean gzipResponses;
+  private final String protocol;
+  private final int poolMaxIdle;
+  private final long poolKeepAlive;
+  private final int maxRequests;
+  private final int maxRequestsPerHost;
+
+  public TransportOptions(long readTimeout, long writeTimeout) {
+    this(DEFAULTS.getConnectTimeout$okhttp(), readTimeout, writeTimeout, false, true, PROTOCOL_HTTP2,
+        DEFAULT_POOL_MAXIDLE, DEFAULT_POOL_KEEPALIVE, DEFAULT_DISPATCHER_MAXREQUESTS, DEFAULT_DISPATCHER_MAXREQUESTSPERHOST);
+  }
+
+  private TransportOptions(long connectTimeout, long readTimeout, long writeTimeout, boolean gzipRequests, boolean gzipResponses, String protocol,
+      int poolMaxIdle, long poolKeepAlive, int maxRequests, int maxRequestsPerHost) {
+    this.connectTimeout = connectTimeout;
+    this.readTimeout = readTimeout;
+    this.writeTimeout = writeTimeout;
+    this.gzipRequests = gzipRequests;
+    this.gzipResponses = gzipResponses;
+    this.protocol = protocol;
+    this.poolMaxIdle = poolMaxIdle;
+    this.poolKeepAlive = poolKeepAlive;
+    this.maxRequests = maxRequests;
+    this.maxRequestsPerHost = maxRequestsPerHost;
+  }
+
+  /**
+   * Parse the transport profiles declared in a configuration
+   *
+   * @throws IllegalArgumentException if a profile has an unknown setting or an invalid value
+   */
+  static Map<String,TransportOptions> profiles(Properties properties) {
+    Map<String,Map<String,String>> settings = new HashMap<String,Map<String,String>>();
+
+    for (String name: properties.stringPropertyNames()) {
+      if (!name.startsWith(CONF_PREFIX)) {
+        continue;
+      }
+      String suffix = name.substring(CONF_PREFIX.length());
+      int dot = suffix.indexOf('.');
+      if (dot <= 0 || !SETTINGS.contains(suffix.substring(dot + 1))) {
+        throw new IllegalArgumentException("Invalid transport profile setting '" + name + "'.");
+      }
+      settings.computeIfAbsent(suffix.substring(0, dot), k -> new HashMap<String,String>()).put(suffix.substring(dot + 1), properties.getProperty(name).trim());
+    }
+
+    Map<String,TransportOptions> profiles = new HashMap<String,TransportOptions>();
+    for (Map.Entry<String,Map<String,String>> profile: settings.entrySet()) {
+      profiles.put(profile.getKey(), fromSettings(profile.getKey(), profile.getValue()));
+    }
+    return Collections.unmodifiableMap(profiles);
+  }
+
+  private static TransportOptions fromSettings(String name, Map<String,String> settings) {
+    String protocol = settings.getOrDefault(SETTING_PROTOCOL, PROTOCOL_HTTP2);
+    if (!PROTOCOL_HTTP1.equals(protocol) && !PROTOCOL_HTTP2.equals(protocol) && !PROTOCOL_H2C.equals(protocol)) {
+      throw new IllegalArgumentException("Invalid protocol '" + protocol + "' for transport profile '" + name + "', expected '" + PROTOCOL_HTTP1 + "', '" + PROTOCOL_HTTP2 + "' or '" + PROTOCOL_H2C + "'.");
+    }
+
+    return new TransportOptions(
+        Long.parseLong(settings.getOrDefault(SETTING_CONNECT_TIMEOUT, Integer.toString(DEFAULTS.getConnectTimeout$okhttp()))),
+        Long.parseLong(settings.getOrDefault(SETTING_READ_TIMEOUT, Integer.toString(DEFAULTS.getReadTimeout$okhttp()))),
+        Long.parseLong(settings.getOrDefault(SETTING_WRITE_TIMEOUT, Integer.toString(DEFAULTS.getWriteTimeout$okhttp()))),
+        "true".equals(settings.get(SETTING_GZIP_REQUESTS)),
+        !"false".equals(settings.get(SETTING_GZIP_RESPONSES)),
+        protocol,
+        Integer.parseInt(settings.getOrDefault(SETTING_POOL_MAXIDLE, Integer.toString(DEFAULT_POOL_MAXIDLE))),
+        Long.parseLong(settings.getOrDefault(SETTING_POOL_KEEPALIVE, Long.toString(DEFAULT_POOL_KEEPALIVE))),
+        Integer.parseInt(settings.getOrDefault(SETTING_DISPATCHER_MAXREQUESTS, Integer.toString(DEFAULT_DISPATCHER_MAXREQUESTS))),
+        Integer.parseInt(settings.getOrDefault(SETTING_DISPATCHER_MAXREQUESTSPERHOST, Integer.toString(DEFAULT_DISPATCHER_MAXREQUESTSPERHOST))));
+  }
+
+  /**
+   * Copy of these options with other read and write timeouts
+   */
+  TransportOptions withTimeouts(long readTimeout, long writeTimeout) {
+    return new TransportOptions(connectTimeout, readTimeout, writeTimeout, gzipRequests, gzipResponses, protocol, poolMaxIdle, poolKeepAlive, maxRequests, maxRequestsPerHost);
+  }
+
+  public long getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  public long getReadTimeout() {
+    return readTimeout;
+  }
+
+  public long getWriteTimeout() {
+    return writeTimeout;
+  }
+
+  public boolean isGzipRequests() {
+    return gzipRequests;
+  }
+
+  public boolean isGzipResponses() {
+    return gzipResponses;
+  }
+
+  public String getProtocol() {
+    return protocol;
+  }
+
+  public Builder newBuilder() {
+    Builder builder = new Builder();
+    builder.connectTimeout(connectTimeout, TimeUnit.MILLISECONDS);
+    builder.readTimeout(readTimeout, TimeUnit.MILLISECONDS);
+    builder.writeTimeout(writeTimeout, TimeUnit.MILLISECONDS);
+
+    if (PROTOCOL_HTTP1.equals(protocol)) {
+      builder.protocols(Collections.singletonList(Protocol.HTTP_1_1));
+    } else if (PROTOCOL_H2C.equals(protocol)) {
+      builder.protocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE));
+    }
+
+    builder.connectionPool(new ConnectionPool(poolMaxIdle, poolKeepAlive, TimeUnit.MILLISECONDS));
+
+    Dispatcher dispatcher = new Dispatcher();
+    if (maxRequests > 0) {
+      dispatcher.setMaxRequests(maxRequests);
+    }
+    if (maxRequestsPerHost > 0) {
+      dispatcher.setMaxRequestsPerHost(maxRequestsPerHost);
+    }
+    builder.dispatcher(dispatcher);
+
+    if (maxRequests > 0 || maxRequestsPerHost > 0) {
+      // The Dispatcher only bounds asynchronous calls, the extension executes its calls synchronously
+      builder.addNetworkInterceptor(limiters.computeIfAbsent(this, k -> new RequestLimiter(maxRequests, maxRequestsPerHost)));
+    }
+
+    if (gzipRequests) {
+      builder.addInterceptor(GZIP_WRITES);
+    }
+
+    if (!gzipResponses) {
+      // OkHttp asks for compressed responses unless an encoding is already set
+      builder.addInterceptor(chain -> null != chain.request().header("Accept-Encoding") ? chain.proceed(chain.request())
+          : chain.proceed(chain.request().newBuilder().header("Accept-Encoding", "identity").build()));
+    }
+
+    return builder;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof TransportOptions)) {
+      return false;
+    }
+    TransportOptions other = (TransportOptions) obj;
+    return connectTimeout == other.connectTimeout && readTimeout == other.readTimeout && writeTimeout == other.writeTimeout
+        && gzipRequests == other.gzipRequests && gzipResponses == other.gzipResponses && protocol.equals(other.protocol)
+        && poolMaxIdle == other.poolMaxIdle && poolKeepAlive == other.poolKeepAlive
+        && maxRequests == other.maxRequests && maxRequestsPerHost == other.maxRequestsPerHost;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(connectTimeout, readTimeout, writeTimeout, gzipRequests, gzipResponses, protocol, poolMaxIdle, poolKeepAlive, maxRequests, maxRequestsPerHost);
+  }
+
+  /**
+   * Bounds the requests in progress, overall and per host, of the clients sharing a set of options.
+   * Slots are held until the response body is closed.
+   */
+  private static class RequestLimiter implements Interceptor {
+    private final Semaphore requests;
+    private final int maxRequestsPerHost;
+    private final Map<String,Semaphore> hosts = new ConcurrentHashMap<String,Semaphore>();
+
+    /**
+     * @param maxRequests maximum number of requests in progress, 0 for no limit
+     * @param maxRequestsPerHost maximum number of requests in progress per host, 0 for no limit
+     */
+    private RequestLimiter(int maxRequests, int maxRequestsPerHost) {
+      this.requests = maxRequests > 0 ? new Semaphore(maxRequests) : null;
+      this.maxRequestsPerHost = maxRequestsPerHost;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+      Semaphore host = maxRequestsPerHost > 0 ? hosts.computeIfAbsent(chain.request().url().host(), h -> new Semaphore(maxRequestsPerHost)) : null;
+
+      acquire(requests, chain.call());
+      try {
+        acquire(host, chain.call());
+      } catch (IOException ioe) {
+        release(requests);
+        throw ioe;
+      }
+
+      AtomicBoolean released = new AtomicBoolean(false);
+      Runnable release = () -> {
+        if (released.compareAndSet(false, true)) {
+          release(host);
+          release(requests);
+        }
+      };
+
+      Response response;
+      try {
+        response = chain.proceed(chain.request());
+      } catch (IOException | RuntimeException e) {
+        release.run();
+        throw e;
+      }
+
+      ResponseBody body = response.body();
+      if (null == body) {
+        release.run();
+        return response;
+      }
+
+      ResponseBody limited = ResponseBody.create(Okio.buffer(new ForwardingSource(body.source()) {
+        @Override
+        public void close() throws IOException {
+          release.run();
+          super.close();
+        }
+      }), body.contentType(), body.contentLength());
+
+      return response.newBuilder().body(limited).build();
+    }
+
+    /**
+     * Wait for a slot, giving up if the call is cancelled or the thread interrupted
+     *
+     * @param semaphore slots to acquire, null for no limit
+     */
+    private static void acquire(Semaphore semaphore, Call call) throws IOException {
+      if (null == semaphore) {
+        return;
+      }
+      try {
+        while (!semaphore.tryAcquire(WAIT_PERIOD, TimeUnit.MILLISECONDS)) {
+          if (call.isCanceled()) {
+            throw new InterruptedIOException("Canceled while waiting for a request slot.");
+          }
+        }
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for a request slot.");
+      }
+    }
+
+    private static void release(Semaphore semaphore) {
+      if (null != semaphore) {
+        semaphore.release();
+      }
+    }
+  }
+}
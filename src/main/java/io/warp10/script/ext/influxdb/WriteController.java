@@ -0,0 +1,218 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+
+package io.warp10.script.ext.influxdb;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import okhttp3.HttpUrl;
+
+/**
+ * Adapts the writes to an InfluxDB endpoint to how fast it answers.
+ *
+ * The controller of an endpoint is shared by all the writers targeting it. It sizes the adaptive batches
+ * by encoded bytes, growing them while the writes complete within influxdb.write.latency and shrinking
+ * them when they do not, and bounds the number of concurrent writes with the same feedback. Writes
+ * throttled with a 429 or 503 halve both and are retried after the delay set by Retry-After or, when the
+ * server does not set one, after a jittered exponential backoff. The writes of calls which set their own
+ * concurrency are not bounded by the adaptive one.
+ */
+class WriteController {
+
+  /**
+   * Bounds and initial value of the adaptive batch size, in bytes
+   */
+  private static final long MIN_BATCH_BYTES = 16L * 1024L;
+  private static final long INITIAL_BATCH_BYTES = 256L * 1024L;
+
+  /**
+   * Bounds and initial value of the number of concurrent writes
+   */
+  private static final double MIN_CONCURRENCY = 1.0D;
+  private static final double INITIAL_CONCURRENCY = 16.0D;
+  private static final double MAX_CONCURRENCY = 64.0D;
+
+  /**
+   * Delay (in ms) of the first retry without Retry-After, doubled at each attempt
+   */
+  private static final long BACKOFF_BASE = 100L;
+
+  /**
+   * Period (in ms) at which waiting writers check their guard
+   */
+  private static final long WAIT_PERIOD = 50L;
+
+  private static final Map<String,WriteController> controllers = new ConcurrentHashMap<String,WriteController>();
+
+  private final long targetLatency;
+  private final long maxBatchBytes;
+  private final int maxRetries;
+  private final long maxBackoff;
+
+  private long batchBytes;
+  private double concurrency = INITIAL_CONCURRENCY;
+  private int inflight = 0;
+
+  private WriteController() {
+    this.targetLatency = InfluxDBWarpScriptExtension.getWriteLatency();
+    this.maxBatchBytes = Math.max(MIN_BATCH_BYTES, InfluxDBWarpScriptExtension.getWriteMaxBytes());
+    this.maxRetries = InfluxDBWarpScriptExtension.getWriteRetries();
+    this.maxBackoff = InfluxDBWarpScriptExtension.getWriteMaxBackoff();
+    this.batchBytes = Math.min(INITIAL_BATCH_BYTES, maxBatchBytes);
+  }
+
+  /**
+   * Controller of the server of a write URL
+   */
+  static WriteController of(HttpUrl url) {
+    return controllers.computeIfAbsent(url.scheme() + "://" + url.host() + ":" + url.port(), k -> new WriteController());
+  }
+
+  /**
+   * @return the size (in bytes) adaptive batches should reach before being written
+   */
+  synchronized long batchBytes() {
+    return batchBytes;
+  }
+
+  /**
+   * Wait until a write may be issued
+   *
+   * @param guard guard of the call, may be null
+   * @param limited wait for the number of concurrent writes to fall below the adaptive limit, writes which are not still count towards it
+   */
+  synchronized void acquire(CallGuard guard, boolean limited) throws IOException {
+    while (limited && inflight >= (int) concurrency) {
+      if (null != guard) {
+        guard.checkpoint();
+      }
+      try {
+        wait(WAIT_PERIOD);
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting to write data points.");
+      }
+    }
+    inflight++;
+  }
+
+  /**
+   * Release the slot of a write and adapt the batch size and concurrency to its outcome
+   *
+   * @param bytes size of the batch
+   * @param nanos duration of the write
+   * @param error error of the write, null if it succeeded
+   */
+  synchronized void release(long bytes, long nanos, IOException error) {
+    inflight--;
+
+    if (isThrottled(error)) {
+      // Multiplicative decrease, the server asked us to slow down
+      batchBytes = Math.max(MIN_BATCH_BYTES, batchBytes / 2L);
+      concurrency = Math.max(MIN_CONCURRENCY, concurrency / 2.0D);
+    } else if (null == error) {
+      if (nanos / 1000000L > targetLatency) {
+        batchBytes = Math.max(MIN_BATCH_BYTES, batchBytes - batchBytes / 4L);
+        concurrency = Math.max(MIN_CONCURRENCY, concurrency * 0.9D);
+      } else {
+        // Only batches close to the target size tell whether larger ones would still be fast enough
+        if (bytes >= batchBytes / 2L) {
+          batchBytes = Math.min(maxBatchBytes, batchBytes + batchBytes / 4L);
+        }
+        // Additive increase, one more concurrent write per round of on time writes
+        concurrency = Math.min(MAX_CONCURRENCY, concurrency + 1.0D / concurrency);
+      }
+    }
+
+    notifyAll();
+  }
+
+  /**
+   * Compute the delay before retrying a failed write
+   *
+   * @param attempt number of the attempt which failed, starting at 0
+   * @return the delay in ms, or -1 if the write must not be retried
+   */
+  long backoff(int attempt, IOException error) {
+    if (!isThrottled(error) || attempt >= maxRetries) {
+      return -1L;
+    }
+
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    long retryAfter = ((InfluxDBHttpException) error).getRetryAfter();
+
+    if (retryAfter >= 0L) {
+      if (retryAfter > maxBackoff) {
+        return -1L;
+      }
+      // Spread the retries of the writers throttled at the same time
+      return retryAfter + random.nextLong(retryAfter / 10L + BACKOFF_BASE);
+    }
+
+    long ceiling = Math.min(maxBackoff, BACKOFF_BASE << Math.min(attempt, 20));
+    return ceiling / 2L + random.nextLong(ceiling / 2L + 1L);
+  }
+
+  /**
+   * Sleep for a backoff delay, giving up as soon as the guard's deadline expires or the thread is interrupted
+   *
+   * @param guard guard of the call, may be null
+   */
+  static void pause(long delay, CallGuard guard) throws IOException {
+    long end = System.currentTimeMillis() + delay;
+    long remaining;
+    try {
+      while ((remaining = end - System.currentTimeMillis()) > 0L) {
+        if (null != guard) {
+          guard.checkpoint();
+        }
+        Thread.sleep(Math.min(remaining, WAIT_PERIOD));
+      }
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting to retry a write.");
+    }
+  }
+
+  /**
+   * Current batch size and concurrency of each endpoint written to
+   */
+  static Map<Object,Object> stats() {
+    Map<Object,Object> stats = new TreeMap<Object,Object>();
+    for (Map.Entry<String,WriteController> entry: controllers.entrySet()) {
+      WriteController controller = entry.getValue();
+      Map<Object,Object> endpoint = new LinkedHashMap<Object,Object>();
+      synchronized(controller) {
+        endpoint.put("batch.bytes", controller.batchBytes);
+        endpoint.put("concurrency", (long) controller.concurrency);
+        endpoint.put("inflight", (long) controller.inflight);
+      }
+      stats.put(entry.getKey(), endpoint);
+    }
+    return stats;
+  }
+
+  private static boolean isThrottled(IOException error) {
+    return error instanceof InfluxDBHttpException && ((InfluxDBHttpException) error).isThrottled();
+  }
+}
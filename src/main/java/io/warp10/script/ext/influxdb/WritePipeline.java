@@ -0,0 +1,97 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.ext.influxdb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Converts and writes series concurrently on the extension executor.
+ *
+ * At most 'concurrency' series are being converted or written at any time, the caller
+ * blocks until a slot is available so memory stays bounded. Each slot owns an encoder which
+ * is reused from one series to the next. Errors are reported for the first failing series in
+ * input order, no new series is started once a failure has been observed.
+ */
+class WritePipeline {
+
+  interface SeriesWriter {
+    void write(Object series, LineProtocolEncoder encoder) throws IOException;
+  }
+
+  private WritePipeline() {}
+
+  static void run(List<Object> data, int concurrency, int bufferSize, boolean geo, SeriesWriter writer) throws IOException {
+    final Semaphore slots = new Semaphore(concurrency);
+    final BlockingQueue<LineProtocolEncoder> encoders = new ArrayBlockingQueue<LineProtocolEncoder>(concurrency);
+    for (int i = 0; i < concurrency; i++) {
+      encoders.add(new LineProtocolEncoder(bufferSize, geo));
+    }
+
+    final AtomicBoolean failed = new AtomicBoolean(false);
+
+    List<Future<?>> futures = new ArrayList<Future<?>>(data.size());
+
+    try {
+      for (Object elt: data) {
+        slots.acquire();
+
+        if (failed.get()) {
+          slots.release();
+          break;
+        }
+
+        futures.add(InfluxDBWarpScriptExtension.getExecutor().submit(() -> {
+          LineProtocolEncoder encoder = encoders.poll();
+          try {
+            writer.write(elt, encoder);
+            return null;
+          } catch (Throwable t) {
+            failed.set(true);
+            throw t;
+          } finally {
+            encoder.reset();
+            encoders.offer(encoder);
+            slots.release();
+          }
+        }));
+      }
+
+      for (int i = 0; i < futures.size(); i++) {
+        try {
+          futures.get(i).get();
+        } catch (ExecutionException ee) {
+          throw new IOException("Error writing series #" + i + " of the input list.", ee.getCause());
+        }
+      }
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while writing data points.", ie);
+    } finally {
+      for (Future<?> future: futures) {
+        future.cancel(true);
+      }
+    }
+  }
+}
@@ -0,0 +1,278 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.ext.influxdb;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import okhttp3.HttpUrl;
+
+/**
+ * Bounded queue of line protocol batches written to InfluxDB by background threads.
+ *
+ * The queue is bounded by the total size of the queued payloads. When it is full, producers
+ * either wait for room to become available, up to a configurable delay, or are rejected.
+ * Batches which cannot be written are dropped and accounted for in the statistics, unless a
+ * spill buffer is configured and the failure is transient, in which case they are spilled to
+ * disk and replayed later.
+ */
+class WriteQueue {
+
+  static class Batch {
+    private final InfluxDBClientRegistry.Key key;
+    private final HttpUrl url;
+    private final byte[] payload;
+    private final int points;
+
+    Batch(InfluxDBClientRegistry.Key key, HttpUrl url, byte[] payload, int points) {
+      this.key = key;
+      this.url = url;
+      this.payload = payload;
+      this.points = points;
+    }
+
+    InfluxDBClientRegistry.Key getKey() {
+      return key;
+    }
+
+    HttpUrl getUrl() {
+      return url;
+    }
+
+    byte[] getPayload() {
+      return payload;
+    }
+
+    int getPoints() {
+      return points;
+    }
+  }
+
+  private final long maxBytes;
+  private final long timeout;
+  private final SpillBuffer spill;
+
+  private final ArrayDeque<Batch> queue = new ArrayDeque<Batch>();
+  private long bytes = 0L;
+  private int inflight = 0;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final Condition notFull = lock.newCondition();
+  private final Condition drained = lock.newCondition();
+
+  private final AtomicLong enqueuedBatches = new AtomicLong();
+  private final AtomicLong enqueuedPoints = new AtomicLong();
+  private final AtomicLong writtenBatches = new AtomicLong();
+  private final AtomicLong writtenPoints = new AtomicLong();
+  private final AtomicLong failedBatches = new AtomicLong();
+  private final AtomicLong failedPoints = new AtomicLong();
+  private final AtomicLong rejectedBatches = new AtomicLong();
+  private volatile String lastError = null;
+
+  /**
+   * @param maxBytes maximum total size of the queued payloads
+   * @param timeout maximum delay (in ms) a blocking producer waits for room in the queue
+   * @param writers number of background writer threads
+   * @param spill buffer receiving the batches which could not be written, may be null
+   */
+  WriteQueue(long maxBytes, long timeout, int writers, SpillBuffer spill) {
+    this.maxBytes = maxBytes;
+    this.timeout = timeout;
+    this.spill = spill;
+
+    for (int i = 0; i < writers; i++) {
+      Thread t = new Thread(this::drain);
+      t.setName("[InfluxDB queue writer #" + (i + 1) + "]");
+      t.setDaemon(true);
+      t.start();
+    }
+  }
+
+  /**
+   * Add a batch to the queue
+   *
+   * @param block if true, wait for room in the queue, otherwise fail immediately if the queue is full
+   * @param overflow if true, spill the batch to disk instead of failing when the queue is full
+   * @throws IOException if the batch could not be queued
+   */
+  void enqueue(Batch batch, boolean block, boolean overflow) throws IOException {
+    lock.lock();
+    try {
+      long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+
+      // A batch larger than the queue is accepted when the queue is empty
+      while (bytes > 0 && bytes + batch.payload.length > maxBytes) {
+        if (!block || nanos <= 0L) {
+          if (overflow && null != spill) {
+            spill.append(batch);
+            return;
+          }
+          rejectedBatches.incrementAndGet();
+          throw new IOException("InfluxDB write queue is full (" + bytes + " bytes queued, maximum is " + maxBytes + ").");
+        }
+        try {
+          nanos = notFull.awaitNanos(nanos);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while waiting for room in the InfluxDB write queue.", ie);
+        }
+      }
+
+      queue.addLast(batch);
+      bytes += batch.payload.length;
+      enqueuedBatches.incrementAndGet();
+      enqueuedPoints.addAndGet(batch.points);
+      notEmpty.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Wait until all the batches queued so far have been processed
+   *
+   * @return true if the queue was drained before the timeout expired
+   */
+  boolean flush(long timeoutMs) throws InterruptedException {
+    lock.lock();
+    try {
+      long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+      while (!queue.isEmpty() || inflight > 0) {
+        if (nanos <= 0L) {
+          return false;
+        }
+        nanos = drained.awaitNanos(nanos);
+      }
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  Map<Object,Object> stats() {
+    Map<Object,Object> stats = new LinkedHashMap<Object,Object>();
+
+    lock.lock();
+    try {
+      stats.put("queued.batches", (long) queue.size());
+      stats.put("queued.bytes", bytes);
+      stats.put("inflight.batches", (long) inflight);
+    } finally {
+      lock.unlock();
+    }
+
+    stats.put("max.bytes", maxBytes);
+    stats.put("enqueued.batches", enqueuedBatches.get());
+    stats.put("enqueued.points", enqueuedPoints.get());
+    stats.put("written.batches", writtenBatches.get());
+    stats.put("written.points", writtenPoints.get());
+    stats.put("failed.batches", failedBatches.get());
+    stats.put("failed.points", failedPoints.get());
+    stats.put("rejected.batches", rejectedBatches.get());
+    stats.put("last.error", lastError);
+
+    if (null != spill) {
+      spill.stats(stats);
+    }
+
+    return stats;
+  }
+
+  private Batch take() throws InterruptedException {
+    lock.lock();
+    try {
+      while (queue.isEmpty()) {
+        notEmpty.await();
+      }
+      Batch batch = queue.removeFirst();
+      bytes -= batch.payload.length;
+      inflight++;
+      notFull.signalAll();
+      return batch;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void done() {
+    lock.lock();
+    try {
+      inflight--;
+      if (queue.isEmpty() && 0 == inflight) {
+        drained.signalAll();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void drain() {
+    while (true) {
+      Batch batch;
+      try {
+        batch = take();
+      } catch (InterruptedException ie) {
+        return;
+      }
+
+      try {
+        write(batch);
+        writtenBatches.incrementAndGet();
+        writtenPoints.addAndGet(batch.points);
+      } catch (Throwable t) {
+        lastError = String.valueOf(t.getMessage());
+        if (!spill(batch, t)) {
+          failedBatches.incrementAndGet();
+          failedPoints.addAndGet(batch.points);
+        }
+      } finally {
+        done();
+      }
+    }
+  }
+
+  /**
+   * Spill a batch whose write failed with a transient error
+   *
+   * @return true if the batch was spilled
+   */
+  private boolean spill(Batch batch, Throwable t) {
+    if (null == spill || !(t instanceof IOException) || !InfluxDBHttpException.isTransient((IOException) t)) {
+      return false;
+    }
+    try {
+      spill.append(batch);
+      return true;
+    } catch (IOException ioe) {
+      lastError = String.valueOf(ioe.getMessage());
+      return false;
+    }
+  }
+
+  private void write(Batch batch) throws IOException {
+    try (InfluxDBClientRegistry.Lease lease = InfluxDBWarpScriptExtension.getClientRegistry().acquire(batch.key)) {
+      new LineProtocolWriter(lease.http(), batch.url).write(batch.payload, 0, batch.payload.length, batch.points);
+    }
+  }
+}
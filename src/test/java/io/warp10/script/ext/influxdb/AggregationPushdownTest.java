@@ -0,0 +1,177 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.ext.influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.script.WarpScriptException;
+
+/**
+ * Bucket alignment of the pushed down aggregations and bucketization of their results
+ */
+public class AggregationPushdownTest {
+
+  // The emulator sets the platform time units to microseconds
+  private static final long START = InfluxDBEmulator.START;
+  private static final long STEP = InfluxDBEmulator.STEP;
+
+  /**
+   * Nanoseconds per platform time unit
+   */
+  private static final long NANOS = 1000L;
+
+  private static Map<Object,Object> params(long start, long end, long bucketspan) {
+    Map<Object,Object> params = new HashMap<Object,Object>();
+    params.put(AggregationPushdown.KEY_AGGREGATOR, "mean");
+    params.put(AggregationPushdown.KEY_MEASUREMENT, "m");
+    params.put(AggregationPushdown.KEY_FIELD, "value");
+    params.put(AggregationPushdown.KEY_BUCKET, "bucket");
+    params.put(AggregationPushdown.KEY_BUCKETSPAN, bucketspan);
+    params.put(ParallelFetch.KEY_START, start);
+    params.put(ParallelFetch.KEY_END, end);
+    return params;
+  }
+
+  /**
+   * Series with a value at each of the given ticks
+   */
+  private static GeoTimeSerie series(long... ticks) {
+    GeoTimeSerie gts = new GeoTimeSerie(ticks.length);
+    gts.setName("value");
+    for (int i = 0; i < ticks.length; i++) {
+      GTSHelper.setValue(gts, ticks[i], GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, (double) i, false);
+    }
+    return gts;
+  }
+
+  @Test
+  public void testAlignment() throws Exception {
+    // [START + 1.5s, START + 10s + 1us) covers the buckets starting at START + 1s up to START + 10s
+    AggregationPushdown pushdown = AggregationPushdown.fromParams("TEST", params(START + STEP + STEP / 2L, START + 10L * STEP + 1L, STEP), false);
+
+    String influxql = pushdown.influxql();
+    assertTrue(influxql, influxql.contains("WHERE time >= " + (START + STEP) * NANOS + " AND time < " + (START + 11L * STEP) * NANOS));
+    assertTrue(influxql, influxql.contains("GROUP BY time(" + STEP * NANOS + "ns), * fill(none)"));
+
+    // An aligned range is left as is
+    pushdown = AggregationPushdown.fromParams("TEST", params(START, START + 10L * STEP, STEP), true);
+
+    String flux = pushdown.flux();
+    assertTrue(flux, flux.contains("|> range(start: 2021-01-01T00:00:00Z, stop: 2021-01-01T00:00:10Z)"));
+    assertTrue(flux, flux.contains("|> aggregateWindow(every: " + STEP * NANOS + "ns, fn: mean, createEmpty: false)"));
+  }
+
+  @Test
+  public void testBucketizeWindowStart() throws Exception {
+    AggregationPushdown pushdown = AggregationPushdown.fromParams("TEST", params(START + STEP / 2L, START + 10L * STEP, STEP), false);
+
+    // InfluxQL timestamps the buckets at the start of their window, from START to START + 9s
+    GeoTimeSerie gts = series(START, START + 4L * STEP, START + 9L * STEP);
+    GeoTimeSerie bucketized = pushdown.bucketize(gts, true);
+
+    // Shifted by one bucketspan to the end of their window, on a copy
+    assertNotSame(gts, bucketized);
+    assertEquals(START, GTSHelper.tickAtIndex(gts, 0));
+    assertEquals(START + STEP, GTSHelper.tickAtIndex(bucketized, 0));
+    assertEquals(START + 5L * STEP, GTSHelper.tickAtIndex(bucketized, 1));
+    assertEquals(START + 10L * STEP, GTSHelper.tickAtIndex(bucketized, 2));
+
+    // The last bucket ends the aligned range and holds the last window
+    assertEquals(START + 10L * STEP, GTSHelper.getLastBucket(bucketized));
+    assertEquals(STEP, GTSHelper.getBucketSpan(bucketized));
+    assertEquals(10, GTSHelper.getBucketCount(bucketized));
+    assertTrue(GTSHelper.isBucketized(bucketized));
+  }
+
+  @Test
+  public void testBucketizeWindowEnd() throws Exception {
+    AggregationPushdown pushdown = AggregationPushdown.fromParams("TEST", params(START, START + 10L * STEP, 2L * STEP), true);
+
+    // Flux timestamps the buckets at the end of their window
+    GeoTimeSerie gts = series(START + 2L * STEP, START + 10L * STEP);
+    List<GeoTimeSerie> series = new ArrayList<GeoTimeSerie>();
+    series.add(gts);
+    pushdown.bucketize(series, false);
+
+    assertSame(gts, series.get(0));
+    assertEquals(START + 2L * STEP, GTSHelper.tickAtIndex(gts, 0));
+    assertEquals(START + 10L * STEP, GTSHelper.getLastBucket(gts));
+    assertEquals(2L * STEP, GTSHelper.getBucketSpan(gts));
+    assertEquals(5, GTSHelper.getBucketCount(gts));
+  }
+
+  @Test
+  public void testNegativeAlignment() throws Exception {
+    // Ranges before the epoch are aligned on the epoch too
+    AggregationPushdown pushdown = AggregationPushdown.fromParams("TEST", params(-STEP - 1L, -1L, STEP), false);
+
+    GeoTimeSerie bucketized = pushdown.bucketize(series(-2L * STEP, -STEP), true);
+    assertEquals(0L, GTSHelper.getLastBucket(bucketized));
+    assertEquals(2, GTSHelper.getBucketCount(bucketized));
+    assertEquals(0L, GTSHelper.tickAtIndex(bucketized, 1));
+  }
+
+  @Test
+  public void testParams() throws Exception {
+    List<Map<Object,Object>> invalid = new ArrayList<Map<Object,Object>>();
+
+    Map<Object,Object> params = params(START, START + 10L * STEP, STEP);
+    params.put(AggregationPushdown.KEY_AGGREGATOR, "integral");
+    invalid.add(params);
+
+    params = params(START, START, STEP);
+    invalid.add(params);
+
+    params = params(START, START + 10L * STEP, 0L);
+    invalid.add(params);
+
+    params = params(START, START + 10L * STEP, STEP);
+    params.put(ParallelFetch.KEY_SLICES, 4L);
+    invalid.add(params);
+
+    // More than 10M buckets
+    params = params(0L, 10000001L, 1L);
+    invalid.add(params);
+
+    // InfluxQL needs explicit fields
+    params = params(START, START + 10L * STEP, STEP);
+    params.remove(AggregationPushdown.KEY_FIELD);
+    invalid.add(params);
+
+    for (Map<Object,Object> p: invalid) {
+      try {
+        AggregationPushdown.fromParams("TEST", p, false);
+        fail("Invalid parameters " + p + " were accepted");
+      } catch (WarpScriptException wse) {
+        // Expected
+      }
+    }
+  }
+}
@@ -0,0 +1,135 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.ext.influxdb;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import io.warp10.script.MemoryWarpScriptStack;
+import io.warp10.script.WarpScriptATCException;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+
+/**
+ * Cancellation of the calls of a guard on deadline, interruption and stack signals
+ */
+public class CallGuardTest {
+
+  @BeforeClass
+  public static void setUp() {
+    InfluxDBEmulator.configure();
+  }
+
+  private static Map<Object,Object> deadline(Object deadline) {
+    Map<Object,Object> params = new HashMap<Object,Object>();
+    params.put(CallGuard.KEY_DEADLINE, deadline);
+    return params;
+  }
+
+  @Test
+  public void testNoDeadline() throws Exception {
+    try (CallGuard guard = CallGuard.fromParams("TEST", null, null)) {
+      assertFalse(guard.cancelled());
+      guard.checkpoint();
+
+      WarpScriptException wse = guard.error("TEST error reading data.", new IOException());
+      assertFalse(wse.getMessage(), wse.getMessage().contains("cancelled"));
+    }
+  }
+
+  @Test
+  public void testDeadline() throws Exception {
+    try (CallGuard guard = CallGuard.fromParams("TEST", deadline(100L), null)) {
+      long start = System.currentTimeMillis();
+      while (!guard.cancelled()) {
+        assertTrue("The deadline was not enforced", System.currentTimeMillis() - start < 5000L);
+        Thread.sleep(10L);
+      }
+      assertTrue(System.currentTimeMillis() - start >= 100L);
+
+      try {
+        guard.checkpoint();
+        fail("The deadline was not enforced");
+      } catch (InterruptedIOException iioe) {
+        // Expected
+      }
+
+      WarpScriptException wse = guard.error("TEST error reading data.", new IOException());
+      assertTrue(wse.getMessage(), wse.getMessage().contains("deadline of 100 ms exceeded"));
+    }
+  }
+
+  @Test
+  public void testInterrupted() throws Exception {
+    try (CallGuard guard = CallGuard.fromParams("TEST", null, null)) {
+      Thread.currentThread().interrupt();
+      assertTrue(guard.cancelled());
+
+      try {
+        guard.checkpoint();
+        fail("The interruption was not detected");
+      } catch (InterruptedIOException iioe) {
+        // Expected
+      }
+    } finally {
+      Thread.interrupted();
+    }
+  }
+
+  @Test
+  public void testSignal() throws Exception {
+    WarpScriptStack stack = new MemoryWarpScriptStack(null, null, new Properties());
+
+    try (CallGuard guard = CallGuard.fromParams("TEST", null, stack)) {
+      assertFalse(guard.cancelled());
+
+      stack.signal(WarpScriptStack.Signal.STOP);
+      assertTrue(guard.cancelled());
+
+      // The signal is left pending by the guard and handled when the error is reported
+      try {
+        guard.error("TEST error reading data.", new IOException());
+        fail("The signal was not handled");
+      } catch (WarpScriptATCException atce) {
+        // Expected
+      }
+    }
+  }
+
+  @Test
+  public void testParams() throws Exception {
+    Object[] invalid = { 0L, -1L, "100", 100.0D };
+    for (Object deadline: invalid) {
+      try {
+        CallGuard.fromParams("TEST", deadline(deadline), null).close();
+        fail("Invalid deadline " + deadline + " was accepted");
+      } catch (WarpScriptException wse) {
+        // Expected
+      }
+    }
+  }
+}
@@ -0,0 +1,189 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.ext.influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import io.warp10.script.MemoryWarpScriptStack;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+import okio.Buffer;
+import okio.BufferedSource;
+
+/**
+ * Per call and per stack limits of the fetch budget
+ */
+public class FetchBudgetTest {
+
+  @BeforeClass
+  public static void setUp() {
+    InfluxDBEmulator.configure();
+  }
+
+  private static WarpScriptStack stack(long maxPoints, long maxSeries) {
+    WarpScriptStack stack = new MemoryWarpScriptStack(null, null, new Properties());
+    stack.setAttribute(WarpScriptStack.ATTRIBUTE_FETCH_LIMIT, maxPoints);
+    stack.setAttribute(WarpScriptStack.ATTRIBUTE_GTS_LIMIT, maxSeries);
+    return stack;
+  }
+
+  private static Map<Object,Object> params(String key, long limit) {
+    Map<Object,Object> params = new HashMap<Object,Object>();
+    params.put(key, limit);
+    return params;
+  }
+
+  /**
+   * Count datapoints on a new meter until the budget is exceeded
+   *
+   * @return the number of datapoints counted
+   */
+  private static long fill(FetchBudget budget, long max) {
+    FetchBudget.Meter meter = budget.meter();
+    long n = 0L;
+    try {
+      while (n < max) {
+        meter.point();
+        n++;
+      }
+    } catch (FetchBudget.ExceededException ee) {
+      // Expected
+    } finally {
+      meter.close();
+    }
+    return n;
+  }
+
+  @Test
+  public void testMaxPoints() throws Exception {
+    FetchBudget budget = FetchBudget.fromParams("TEST", stack(Long.MAX_VALUE, Long.MAX_VALUE), params(FetchBudget.KEY_MAXPOINTS, 10000L));
+
+    assertEquals(10000L, fill(budget, 20000L));
+    assertEquals(10000L, budget.points());
+  }
+
+  @Test
+  public void testMeterRelease() throws Exception {
+    FetchBudget budget = FetchBudget.fromParams("TEST", stack(Long.MAX_VALUE, Long.MAX_VALUE), params(FetchBudget.KEY_MAXPOINTS, 10000L));
+
+    // The datapoints reserved but not counted are given back when the meter is closed
+    assertEquals(10L, fill(budget, 10L));
+    assertEquals(10L, budget.points());
+    assertEquals(9990L, fill(budget, 20000L));
+  }
+
+  @Test
+  public void testStackMaxPoints() throws Exception {
+    WarpScriptStack stack = stack(10000L, Long.MAX_VALUE);
+
+    // Calls on the same stack share its limit
+    assertEquals(6000L, fill(FetchBudget.fromParams("TEST", stack, null), 6000L));
+    assertEquals(4000L, fill(FetchBudget.fromParams("TEST", stack, null), 20000L));
+  }
+
+  @Test
+  public void testMaxSeries() throws Exception {
+    FetchBudget budget = FetchBudget.fromParams("TEST", stack(Long.MAX_VALUE, Long.MAX_VALUE), params(FetchBudget.KEY_MAXSERIES, 2L));
+    budget.series();
+    budget.series();
+    try {
+      budget.series();
+      fail("Maximum number of series was not enforced");
+    } catch (FetchBudget.ExceededException ee) {
+      // Expected
+    }
+
+    WarpScriptStack stack = stack(Long.MAX_VALUE, 2L);
+    FetchBudget.fromParams("TEST", stack, null).series();
+    budget = FetchBudget.fromParams("TEST", stack, null);
+    budget.series();
+    try {
+      budget.series();
+      fail("Maximum number of series of the stack was not enforced");
+    } catch (FetchBudget.ExceededException ee) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testMaxBytes() throws Exception {
+    FetchBudget budget = FetchBudget.fromParams("TEST", stack(Long.MAX_VALUE, Long.MAX_VALUE), params(FetchBudget.KEY_MAXBYTES, 10L));
+
+    BufferedSource source = budget.source(new Buffer().writeUtf8("0123456789"));
+    assertEquals("0123456789", source.readUtf8());
+
+    source = budget.source(new Buffer().writeUtf8("0"));
+    try {
+      source.readUtf8();
+      fail("Maximum number of response bytes was not enforced");
+    } catch (FetchBudget.ExceededException ee) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testCharge() throws Exception {
+    FetchBudget budget = FetchBudget.fromParams("TEST", stack(Long.MAX_VALUE, Long.MAX_VALUE), params(FetchBudget.KEY_MAXPOINTS, 100L));
+
+    budget.charge(1L, 100L, 1000L);
+    assertEquals(100L, budget.points());
+    try {
+      budget.charge(1L, 1L, 10L);
+      fail("Charged datapoints were not accounted");
+    } catch (FetchBudget.ExceededException ee) {
+      // Expected
+    }
+
+    WarpScriptStack stack = stack(Long.MAX_VALUE, 1L);
+    FetchBudget.fromParams("TEST", stack, null).charge(1L, 10L, 100L);
+    try {
+      FetchBudget.fromParams("TEST", stack, null).charge(1L, 10L, 100L);
+      fail("Charged series were not accounted in the stack");
+    } catch (FetchBudget.ExceededException ee) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testParams() throws Exception {
+    WarpScriptStack stack = stack(Long.MAX_VALUE, Long.MAX_VALUE);
+
+    Object[][] invalid = {
+      { FetchBudget.KEY_MAXPOINTS, -1L },
+      { FetchBudget.KEY_MAXSERIES, "10" },
+      { FetchBudget.KEY_MAXBYTES, 1.0D },
+    };
+    for (Object[] p: invalid) {
+      Map<Object,Object> params = new HashMap<Object,Object>();
+      params.put(p[0], p[1]);
+      try {
+        FetchBudget.fromParams("TEST", stack, params);
+        fail("Invalid parameters " + params + " were accepted");
+      } catch (WarpScriptException wse) {
+        // Expected
+      }
+    }
+  }
+}
@@ -0,0 +1,152 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.ext.influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+
+/**
+ * Decoding of the annotated CSV of Flux queries served by the emulator, one table per series
+ */
+public class FluxStreamDecoderTest {
+
+  private static final long START = InfluxDBEmulator.START;
+  private static final long STEP = InfluxDBEmulator.STEP;
+
+  private static final int SERIES = 3;
+  private static final int POINTS = 25;
+
+  private static InfluxDBEmulator emulator;
+  private static Request request;
+  private static final OkHttpClient client = new OkHttpClient();
+
+  @BeforeClass
+  public static void setUp() throws Exception {
+    emulator = new InfluxDBEmulator();
+    emulator.setDataset(SERIES, POINTS);
+    InfluxDBClientRegistry.Key key = InfluxDBClientRegistry.Key.v2(emulator.url(), null, null, "token", "org", HttpClientUtils.getTransportOptions("TEST", new HashMap<Object,Object>()));
+    request = InfluxDBRequests.flux(key, "from(bucket: \"bucket\") |> range(start: 0)");
+  }
+
+  @AfterClass
+  public static void tearDown() {
+    emulator.close();
+  }
+
+  private static void check(Collection<GeoTimeSerie> result) {
+    List<GeoTimeSerie> series = new ArrayList<GeoTimeSerie>(result);
+    series.sort(Comparator.comparing(gts -> gts.getLabels().get("host")));
+    assertEquals(SERIES, series.size());
+
+    for (int s = 0; s < SERIES; s++) {
+      GeoTimeSerie gts = series.get(s);
+      // Series are named after their table, measurement and field
+      assertEquals(s + " measurement value", gts.getName());
+      assertEquals("host" + s, gts.getLabels().get("host"));
+      assertEquals("measurement", gts.getLabels().get("_measurement"));
+      assertEquals("value", gts.getLabels().get("_field"));
+      assertEquals(Integer.toString(s), gts.getLabels().get("_table"));
+      assertEquals(POINTS, GTSHelper.nvalues(gts));
+      for (int i = 0; i < POINTS; i++) {
+        assertEquals(START + i * STEP, GTSHelper.tickAtIndex(gts, i));
+        assertEquals(i * 0.5D + 0.25D, (Double) GTSHelper.valueAtIndex(gts, i), 0.0D);
+      }
+    }
+  }
+
+  @Test
+  public void testDecode() throws Exception {
+    check(FluxStreamDecoder.query(client, request, false, InfluxQLChunkDecoderTest.budget(null)).values());
+  }
+
+  @Test
+  public void testCallback() throws Exception {
+    List<GeoTimeSerie> series = new ArrayList<GeoTimeSerie>();
+    FluxStreamDecoder.query(client, request, series::add, false, InfluxQLChunkDecoderTest.budget(null));
+    check(series);
+  }
+
+  @Test
+  public void testUntabled() throws Exception {
+    Map<Map<String,String>,GeoTimeSerie> series = FluxStreamDecoder.untabled(client, request, false, InfluxQLChunkDecoderTest.budget(null));
+    assertEquals(SERIES, series.size());
+
+    // Series are keyed and labeled by their group key only
+    for (Map.Entry<Map<String,String>,GeoTimeSerie> entry: series.entrySet()) {
+      assertEquals(entry.getKey(), entry.getValue().getLabels());
+      assertFalse(entry.getKey().containsKey("_table"));
+    }
+  }
+
+  @Test
+  public void testTableLabel() {
+    Map<String,String> groupKey = new HashMap<String,String>();
+    groupKey.put("host", "host0");
+    assertEquals("_table", FluxStreamDecoder.tableLabel(groupKey));
+
+    groupKey.put("_table", "a");
+    assertEquals("__table", FluxStreamDecoder.tableLabel(groupKey));
+
+    // Only the group key columns are avoided
+    groupKey.remove("_table");
+    groupKey.put("__table", "b");
+    assertEquals("_table", FluxStreamDecoder.tableLabel(groupKey));
+  }
+
+  @Test
+  public void testMaxSeries() throws Exception {
+    Map<Object,Object> params = new HashMap<Object,Object>();
+    params.put(FetchBudget.KEY_MAXSERIES, (long) SERIES - 1);
+
+    try {
+      FluxStreamDecoder.query(client, request, false, InfluxQLChunkDecoderTest.budget(params));
+      fail("The budget should have been exceeded");
+    } catch (FetchBudget.ExceededException ee) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testGeoUnpivoted() throws Exception {
+    // The emulator does not pivot, geo mode needs the lat/lon/elev fields on the rows of the values
+    try {
+      FluxStreamDecoder.query(client, request, true, InfluxQLChunkDecoderTest.budget(null));
+      fail("Tables which are not pivoted should be rejected");
+    } catch (IOException ioe) {
+      assertTrue(ioe.getMessage().contains("pivot"));
+    }
+  }
+}
@@ -0,0 +1,251 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.ext.influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.script.MemoryWarpScriptStack;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+
+/**
+ * Writes of INFLUXDB.UPDATE to the emulator, checked on the captured requests
+ */
+public class INFLUXDBUPDATETest {
+
+  private static final long START = InfluxDBEmulator.START;
+  private static final long STEP = InfluxDBEmulator.STEP;
+
+  private final INFLUXDBUPDATE update = new INFLUXDBUPDATE("INFLUXDB.UPDATE");
+
+  private InfluxDBEmulator emulator;
+
+  @Before
+  public void setUp() throws Exception {
+    // Each test has its own endpoint so the state of the write controllers is not shared
+    emulator = new InfluxDBEmulator();
+    emulator.setCapture(true);
+  }
+
+  @After
+  public void tearDown() {
+    emulator.close();
+  }
+
+  /**
+   * Series named after names, labeled host=hostN where N is their index, holding points DOUBLE values
+   */
+  static List<Object> series(int points, String... names) {
+    List<Object> series = new ArrayList<Object>();
+    for (int s = 0; s < names.length; s++) {
+      GeoTimeSerie gts = new GeoTimeSerie(points);
+      gts.setName(names[s]);
+      Map<String,String> labels = new HashMap<String,String>();
+      labels.put("host", "host" + s);
+      gts.setLabels(labels);
+      for (int i = 0; i < points; i++) {
+        GTSHelper.setValue(gts, START + i * STEP, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, i * 0.5D + 0.25D, false);
+      }
+      series.add(gts);
+    }
+    return series;
+  }
+
+  private Map<Object,Object> params() {
+    Map<Object,Object> params = new HashMap<Object,Object>();
+    params.put(INFLUXDBFLUX.KEY_URL, emulator.url());
+    params.put(INFLUXDBFLUX.KEY_TOKEN, "token");
+    params.put(INFLUXDBFLUX.KEY_ORG, "org");
+    params.put("bucket", "bucket");
+    params.put("measurement", "m");
+    return params;
+  }
+
+  private void update(Object data, Map<Object,Object> params) throws WarpScriptException {
+    WarpScriptStack stack = new MemoryWarpScriptStack(null, null, new Properties());
+    stack.push(data);
+    stack.push(params);
+    update.apply(stack);
+    assertEquals(0, stack.depth());
+  }
+
+  /**
+   * Lines of all the captured requests, in order
+   */
+  private List<String> lines() {
+    List<String> lines = new ArrayList<String>();
+    for (InfluxDBEmulator.Capture capture: emulator.captured()) {
+      for (String line: new String(capture.body, StandardCharsets.UTF_8).split("\n")) {
+        if (!line.isEmpty()) {
+          lines.add(line);
+        }
+      }
+    }
+    return lines;
+  }
+
+  @Test
+  public void testWriteV2() throws Exception {
+    update(series(10, "value", "value"), params());
+
+    for (InfluxDBEmulator.Capture capture: emulator.captured()) {
+      assertEquals("POST", capture.method);
+      assertEquals("/api/v2/write", capture.path);
+      assertEquals("org=org&bucket=bucket&precision=" + LineProtocolEncoder.PRECISION_V2, capture.query);
+    }
+
+    List<String> lines = lines();
+    assertEquals(20, lines.size());
+    assertEquals("m,host=host0 value=0.25 " + START, lines.get(0));
+    assertEquals("m,host=host1 value=4.75 " + (START + 9 * STEP), lines.get(19));
+  }
+
+  @Test
+  public void testWriteV1() throws Exception {
+    Map<Object,Object> params = params();
+    params.remove(INFLUXDBFLUX.KEY_TOKEN);
+    params.remove(INFLUXDBFLUX.KEY_ORG);
+    params.remove("bucket");
+    params.put("v1", true);
+    params.put(INFLUXDBFETCH.KEY_DB, "db");
+    params.put(INFLUXDBFLUX.KEY_USER, "user");
+    params.put(INFLUXDBFLUX.KEY_PASSWORD, "password");
+
+    update(series(10, "value"), params);
+
+    for (InfluxDBEmulator.Capture capture: emulator.captured()) {
+      assertEquals("/write", capture.path);
+      assertEquals("db=db&precision=" + LineProtocolEncoder.PRECISION_V1, capture.query);
+    }
+    assertEquals(10, lines().size());
+  }
+
+  @Test
+  public void testBatchSize() throws Exception {
+    Map<Object,Object> params = params();
+    params.put("batchsize", 5L);
+
+    update(series(10, "value", "value"), params);
+
+    // Batches span series boundaries
+    assertEquals(4, emulator.captured().size());
+    assertEquals(20, lines().size());
+  }
+
+  @Test
+  public void testMerge() throws Exception {
+    List<Object> data = series(10, "a", "b");
+    // Same measurement and tags, the fields are written on the same lines
+    ((GeoTimeSerie) data.get(1)).setLabels(((GeoTimeSerie) data.get(0)).getLabels());
+
+    Map<Object,Object> params = params();
+    params.put("merge", true);
+
+    update(data, params);
+
+    List<String> lines = lines();
+    assertEquals(10, lines.size());
+    assertEquals("m,host=host0 a=0.25,b=0.25 " + START, lines.get(0));
+  }
+
+  @Test
+  public void testMergeUnsorted() throws Exception {
+    List<Object> data = series(10, "a", "b");
+    ((GeoTimeSerie) data.get(1)).setLabels(((GeoTimeSerie) data.get(0)).getLabels());
+    GTSHelper.sort((GeoTimeSerie) data.get(0), true);
+
+    Map<Object,Object> params = params();
+    params.put("merge", true);
+
+    update(data, params);
+
+    // The input series are not sorted in place
+    assertEquals(START + 9 * STEP, GTSHelper.tickAtIndex((GeoTimeSerie) data.get(0), 0));
+    assertEquals("m,host=host0 a=0.25,b=0.25 " + START, lines().get(0));
+  }
+
+  @Test
+  public void testMergeConcurrency() throws Exception {
+    Map<Object,Object> params = params();
+    params.put("merge", true);
+    params.put("concurrency", 4L);
+
+    try {
+      update(series(10, "a", "b"), params);
+      fail("'merge' and 'concurrency' should not be accepted together");
+    } catch (WarpScriptException wse) {
+      // Expected
+    }
+    assertEquals(0, emulator.captured().size());
+  }
+
+  @Test
+  public void testNewline() throws Exception {
+    List<Object> data = series(10, "a", "b");
+    Map<String,String> labels = new HashMap<String,String>();
+    labels.put("host", "host\n1");
+    ((GeoTimeSerie) data.get(1)).setLabels(labels);
+
+    // Nothing is written, line protocol cannot represent the newline
+    try {
+      update(data, params());
+      fail("A tag value with a newline should not be accepted");
+    } catch (WarpScriptException wse) {
+      assertTrue(wse.getMessage(), wse.getMessage().contains("series #1"));
+    }
+    assertEquals(0, emulator.captured().size());
+  }
+
+  @Test
+  public void testRetry() throws Exception {
+    // Throttled writes are retried
+    emulator.failNext(2, 503, 0L);
+
+    update(series(10, "value"), params());
+
+    assertEquals(2L, (long) emulator.stats().get("errors"));
+    assertEquals(10L, (long) emulator.stats().get("written.points"));
+  }
+
+  @Test
+  public void testRejected() throws Exception {
+    emulator.failNext(1, 400, 0L);
+
+    try {
+      update(series(10, "value"), params());
+      fail("The write should have failed");
+    } catch (WarpScriptException wse) {
+      assertTrue(wse.getCause() instanceof InfluxDBHttpException);
+      assertEquals(400, ((InfluxDBHttpException) wse.getCause()).getCode());
+    }
+  }
+}
@@ -0,0 +1,498 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.ext.influxdb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.msgpack.core.MessageBufferPacker;
+import org.msgpack.core.MessagePack;
+
+import io.warp10.WarpConfig;
+import io.warp10.continuum.store.Constants;
+
+/**
+ * In-process emulation of the InfluxDB endpoints used by the extension, for load and integration tests.
+ *
+ * /write and /api/v2/write accept any line protocol payload and count its lines, /query answers any InfluxQL
+ * query with the configured data set as JSON, or as MessagePack if the request accepts it, chunked if requested,
+ * and /api/v2/query answers any Flux query with the same data set as annotated CSV. Responses can be delayed, requests can be failed with 429 or 503
+ * and a Retry-After header, and request payloads can be captured. Credentials are not checked.
+ *
+ * Loading this class configures Warp 10 with microsecond time units if it was not configured yet,
+ * so the tests and benchmarks run outside of Warp 10.
+ */
+class InfluxDBEmulator implements AutoCloseable {
+
+  /**
+   * Timestamp of the first datapoint of the data set, in platform time units
+   */
+  static final long START;
+
+  /**
+   * Interval between two datapoints of the data set, in platform time units
+   */
+  static final long STEP;
+
+  static {
+    try {
+      WarpConfig.safeSetProperties(new StringReader("warp.timeunits = us\n"));
+    } catch (IOException ioe) {
+      throw new RuntimeException(ioe);
+    }
+    START = 1609459200000L * Constants.TIME_UNITS_PER_MS;
+    STEP = Constants.TIME_UNITS_PER_S;
+  }
+
+  /**
+   * Configure the platform for the tests which do not use an emulator, this is done when the class is loaded
+   */
+  static void configure() {
+  }
+
+  /**
+   * Request received by the emulator
+   */
+  static class Capture {
+    final String method;
+    final String path;
+    final String query;
+    final byte[] body;
+
+    private Capture(String method, String path, String query, byte[] body) {
+      this.method = method;
+      this.path = path;
+      this.query = query;
+      this.body = body;
+    }
+  }
+
+  private static final String MSGPACK = "application/x-msgpack";
+
+  /**
+   * MessagePack extension type used by InfluxDB for timestamps
+   */
+  private static final byte TIME_EXT_TYPE = 5;
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+
+  private volatile long latency = 0L;
+
+  private volatile double errorRate = 0.0D;
+  private final AtomicInteger failures = new AtomicInteger();
+  private volatile int errorStatus = 503;
+  private volatile long retryAfter = 0L;
+
+  private volatile boolean capture = false;
+  private final List<Capture> captured = Collections.synchronizedList(new ArrayList<Capture>());
+
+  private volatile int series = 1;
+  private volatile int points = 1000;
+  private final Map<Integer,byte[]> queryResponses = new ConcurrentHashMap<Integer,byte[]>();
+  private final Map<Integer,byte[]> msgpackResponses = new ConcurrentHashMap<Integer,byte[]>();
+  private volatile byte[] fluxResponse = null;
+
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  private final AtomicLong writtenPoints = new AtomicLong();
+
+  InfluxDBEmulator() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    executor = Executors.newCachedThreadPool(r -> {
+      Thread t = new Thread(r);
+      t.setName("[InfluxDB emulator]");
+      t.setDaemon(true);
+      return t;
+    });
+    server.setExecutor(executor);
+    server.createContext("/write", this::write);
+    server.createContext("/api/v2/write", this::write);
+    server.createContext("/query", this::query);
+    server.createContext("/api/v2/query", this::flux);
+    server.start();
+  }
+
+  /**
+   * @return the base URL of the emulator, to be used as the 'url' parameter of the functions
+   */
+  String url() {
+    return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+  }
+
+  /**
+   * Delay (in ms) before each response is sent
+   */
+  void setLatency(long latency) {
+    this.latency = latency;
+  }
+
+  /**
+   * Fail a fraction of the requests with the given status
+   *
+   * @param retryAfter value (in s) of the Retry-After header, 0 for none
+   */
+  void setErrorRate(double rate, int status, long retryAfter) {
+    this.errorRate = rate;
+    this.errorStatus = status;
+    this.retryAfter = retryAfter;
+  }
+
+  /**
+   * Fail the next count requests with the given status
+   *
+   * @param retryAfter value (in s) of the Retry-After header, 0 for none
+   */
+  void failNext(int count, int status, long retryAfter) {
+    this.errorStatus = status;
+    this.retryAfter = retryAfter;
+    failures.set(count);
+  }
+
+  /**
+   * Keep the requests received from now on
+   */
+  void setCapture(boolean capture) {
+    this.capture = capture;
+  }
+
+  List<Capture> captured() {
+    synchronized(captured) {
+      return new ArrayList<Capture>(captured);
+    }
+  }
+
+  /**
+   * Set the data set returned by the queries: series holding points DOUBLE values each
+   */
+  void setDataset(int series, int points) {
+    this.series = series;
+    this.points = points;
+    queryResponses.clear();
+    msgpackResponses.clear();
+    fluxResponse = null;
+  }
+
+  Map<String,Long> stats() {
+    Map<String,Long> stats = new HashMap<String,Long>();
+    stats.put("requests", requests.get());
+    stats.put("errors", errors.get());
+    stats.put("written.points", writtenPoints.get());
+    return stats;
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  private void write(HttpExchange exchange) throws IOException {
+    byte[] body = receive(exchange);
+    if (null == body) {
+      return;
+    }
+
+    long lines = 0L;
+    for (int i = 0; i < body.length; i++) {
+      if ('\n' == body[i]) {
+        lines++;
+      }
+    }
+    if (body.length > 0 && '\n' != body[body.length - 1]) {
+      lines++;
+    }
+    writtenPoints.addAndGet(lines);
+
+    exchange.sendResponseHeaders(204, -1);
+    exchange.close();
+  }
+
+  private void query(HttpExchange exchange) throws IOException {
+    if (null == receive(exchange)) {
+      return;
+    }
+
+    int chunkSize = 0;
+    String query = exchange.getRequestURI().getRawQuery();
+    if (null != query && query.contains("chunked=true")) {
+      chunkSize = 10000;
+      for (String param: query.split("&")) {
+        if (param.startsWith("chunk_size=")) {
+          chunkSize = Integer.parseInt(param.substring("chunk_size=".length()));
+        }
+      }
+    }
+
+    if (MSGPACK.equals(exchange.getRequestHeaders().getFirst("Accept"))) {
+      exchange.getResponseHeaders().set("Content-Type", MSGPACK);
+      send(exchange, msgpackResponses.computeIfAbsent(chunkSize, this::msgpack));
+      return;
+    }
+
+    byte[] response = queryResponses.computeIfAbsent(chunkSize, this::influxql);
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    send(exchange, response);
+  }
+
+  private void flux(HttpExchange exchange) throws IOException {
+    if (null == receive(exchange)) {
+      return;
+    }
+
+    byte[] response = fluxResponse;
+    if (null == response) {
+      response = csv();
+      fluxResponse = response;
+    }
+    exchange.getResponseHeaders().set("Content-Type", "text/csv; charset=utf-8");
+    send(exchange, response);
+  }
+
+  /**
+   * Read the request, apply the latency and the error injection
+   *
+   * @return the request body, null if an error was sent instead of the response
+   */
+  private byte[] receive(HttpExchange exchange) throws IOException {
+    requests.incrementAndGet();
+
+    byte[] body;
+    try (InputStream in = exchange.getRequestBody()) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buf = new byte[8192];
+      int n;
+      while ((n = in.read(buf)) >= 0) {
+        out.write(buf, 0, n);
+      }
+      body = out.toByteArray();
+    }
+
+    if (capture) {
+      captured.add(new Capture(exchange.getRequestMethod(), exchange.getRequestURI().getPath(), exchange.getRequestURI().getRawQuery(), body));
+    }
+
+    if (latency > 0L) {
+      try {
+        Thread.sleep(latency);
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    boolean fail = failures.getAndUpdate(n -> Math.max(0, n - 1)) > 0;
+    if (!fail && errorRate > 0.0D) {
+      fail = ThreadLocalRandom.current().nextDouble() < errorRate;
+    }
+
+    if (fail) {
+      errors.incrementAndGet();
+      if (retryAfter > 0L) {
+        exchange.getResponseHeaders().set("Retry-After", Long.toString(retryAfter));
+      }
+      exchange.getResponseHeaders().set("Content-Type", "application/json");
+      send(exchange, ("{\"error\":\"emulated error " + errorStatus + "\"}").getBytes(StandardCharsets.UTF_8), errorStatus);
+      return null;
+    }
+
+    return body;
+  }
+
+  private static void send(HttpExchange exchange, byte[] response) throws IOException {
+    send(exchange, response, 200);
+  }
+
+  private static void send(HttpExchange exchange, byte[] response, int status) throws IOException {
+    exchange.sendResponseHeaders(status, response.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(response);
+    }
+  }
+
+  private static long timestamp(int i) {
+    return START + i * STEP;
+  }
+
+  private static double value(int i) {
+    return i * 0.5D + 0.25D;
+  }
+
+  /**
+   * Build the JSON response of an InfluxQL query, one document per chunk of at most chunkSize points if chunkSize is positive
+   */
+  private byte[] influxql(int chunkSize) {
+    int n = series;
+    int m = points;
+    int chunk = chunkSize > 0 ? chunkSize : Integer.MAX_VALUE;
+    long unit = 1000000000L / Constants.TIME_UNITS_PER_S;
+
+    StringBuilder sb = new StringBuilder();
+    if (chunkSize <= 0) {
+      sb.append("{\"results\":[{\"statement_id\":0,\"series\":[");
+    }
+
+    for (int s = 0; s < n; s++) {
+      for (int from = 0; from < m; from += chunk) {
+        int to = (int) Math.min((long) from + chunk, m);
+        boolean partial = to < m;
+
+        if (chunkSize > 0) {
+          sb.append("{\"results\":[{\"statement_id\":0,\"series\":[");
+        } else if (s > 0) {
+          sb.append(',');
+        }
+
+        sb.append("{\"name\":\"measurement\",\"tags\":{\"host\":\"host").append(s).append("\"},\"columns\":[\"time\",\"value\"],\"values\":[");
+        for (int i = from; i < to; i++) {
+          if (i > from) {
+            sb.append(',');
+          }
+          sb.append('[').append(timestamp(i) * unit).append(',').append(value(i)).append(']');
+        }
+        sb.append(']');
+        if (partial) {
+          sb.append(",\"partial\":true");
+        }
+        sb.append('}');
+
+        if (chunkSize > 0) {
+          sb.append("]");
+          if (partial || s < n - 1) {
+            sb.append(",\"partial\":true");
+          }
+          sb.append("}]}\n");
+        }
+      }
+    }
+
+    if (chunkSize <= 0) {
+      sb.append("]}]}\n");
+    }
+
+    return sb.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Build the MessagePack response of an InfluxQL query, with the same structure as the JSON one.
+   * Timestamps use the InfluxDB time extension.
+   */
+  private byte[] msgpack(int chunkSize) {
+    int n = series;
+    int m = points;
+    int chunk = chunkSize > 0 ? chunkSize : Integer.MAX_VALUE;
+
+    MessageBufferPacker packer = MessagePack.newDefaultBufferPacker();
+
+    try {
+      if (chunkSize <= 0) {
+        packer.packMapHeader(1).packString("results").packArrayHeader(1);
+        packer.packMapHeader(2).packString("statement_id").packInt(0).packString("series").packArrayHeader(n);
+      }
+
+      for (int s = 0; s < n; s++) {
+        for (int from = 0; from < m; from += chunk) {
+          int to = (int) Math.min((long) from + chunk, m);
+          boolean partial = to < m;
+          boolean more = partial || s < n - 1;
+
+          if (chunkSize > 0) {
+            packer.packMapHeader(1).packString("results").packArrayHeader(1);
+            packer.packMapHeader(more ? 3 : 2).packString("statement_id").packInt(0).packString("series").packArrayHeader(1);
+          }
+
+          packer.packMapHeader(partial ? 5 : 4);
+          packer.packString("name").packString("measurement");
+          packer.packString("tags").packMapHeader(1).packString("host").packString("host" + s);
+          packer.packString("columns").packArrayHeader(2).packString("time").packString("value");
+          packer.packString("values").packArrayHeader(to - from);
+          for (int i = from; i < to; i++) {
+            long nanos = timestamp(i) * (1000000000L / Constants.TIME_UNITS_PER_S);
+            packer.packArrayHeader(2);
+            packer.packExtensionTypeHeader(TIME_EXT_TYPE, 12);
+            packer.writePayload(ByteBuffer.allocate(12).putLong(nanos / 1000000000L).putInt((int) (nanos % 1000000000L)).array());
+            packer.packDouble(value(i));
+          }
+          if (partial) {
+            packer.packString("partial").packBoolean(true);
+          }
+
+          if (chunkSize > 0 && more) {
+            packer.packString("partial").packBoolean(true);
+          }
+        }
+      }
+
+      packer.close();
+    } catch (IOException ioe) {
+      throw new UncheckedIOException(ioe);
+    }
+
+    return packer.toByteArray();
+  }
+
+  /**
+   * Build the annotated CSV response of a Flux query, one table per series
+   */
+  private byte[] csv() {
+    int n = series;
+    int m = points;
+
+    String start = Instant.ofEpochMilli(timestamp(0) / Constants.TIME_UNITS_PER_MS).toString();
+    String stop = Instant.ofEpochMilli(timestamp(m) / Constants.TIME_UNITS_PER_MS).toString();
+
+    StringBuilder sb = new StringBuilder();
+    sb.append("#datatype,string,long,dateTime:RFC3339,dateTime:RFC3339,dateTime:RFC3339,double,string,string,string\r\n");
+    sb.append("#group,false,false,true,true,false,false,true,true,true\r\n");
+    sb.append("#default,_result,,,,,,,,\r\n");
+    sb.append(",result,table,_start,_stop,_time,_value,_field,_measurement,host\r\n");
+
+    for (int s = 0; s < n; s++) {
+      for (int i = 0; i < m; i++) {
+        long ts = timestamp(i);
+        Instant time = Instant.ofEpochSecond(ts / Constants.TIME_UNITS_PER_S, (ts % Constants.TIME_UNITS_PER_S) * (1000000000L / Constants.TIME_UNITS_PER_S));
+        sb.append(",,").append(s).append(',').append(start).append(',').append(stop).append(',').append(time).append(',');
+        sb.append(value(i)).append(",value,measurement,host").append(s).append("\r\n");
+      }
+    }
+    sb.append("\r\n");
+
+    return sb.toString().getBytes(StandardCharsets.UTF_8);
+  }
+}
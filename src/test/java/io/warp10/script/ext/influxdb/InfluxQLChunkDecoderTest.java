@@ -0,0 +1,143 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.ext.influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.script.MemoryWarpScriptStack;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+import okhttp3.OkHttpClient;
+
+/**
+ * Decoding of InfluxQL responses, JSON and MessagePack, chunked or not, served by the emulator
+ */
+public class InfluxQLChunkDecoderTest {
+
+  private static final long START = InfluxDBEmulator.START;
+  private static final long STEP = InfluxDBEmulator.STEP;
+
+  private static final int SERIES = 3;
+  private static final int POINTS = 25;
+
+  private static InfluxDBEmulator emulator;
+  private static InfluxDBClientRegistry.Key key;
+  private static final OkHttpClient client = new OkHttpClient();
+
+  @BeforeClass
+  public static void setUp() throws Exception {
+    emulator = new InfluxDBEmulator();
+    emulator.setDataset(SERIES, POINTS);
+    key = InfluxDBClientRegistry.Key.v1(emulator.url(), "user", "password", HttpClientUtils.getTransportOptions("TEST", new HashMap<Object,Object>()));
+  }
+
+  @AfterClass
+  public static void tearDown() {
+    emulator.close();
+  }
+
+  static FetchBudget budget(Map<Object,Object> params) throws WarpScriptException {
+    WarpScriptStack stack = new MemoryWarpScriptStack(null, null, new Properties());
+    stack.setAttribute(WarpScriptStack.ATTRIBUTE_FETCH_LIMIT, Long.MAX_VALUE);
+    stack.setAttribute(WarpScriptStack.ATTRIBUTE_GTS_LIMIT, Long.MAX_VALUE);
+    return FetchBudget.fromParams("TEST", stack, params);
+  }
+
+  private static List<List<GeoTimeSerie>> query(int chunkSize, boolean msgpack, Map<Object,Object> params) throws Exception {
+    return InfluxQLChunkDecoder.query(client, InfluxDBRequests.influxql(key, "db", "SELECT value FROM measurement", chunkSize, msgpack), false, budget(params));
+  }
+
+  private static void check(List<List<GeoTimeSerie>> statements) {
+    assertEquals(1, statements.size());
+
+    List<GeoTimeSerie> series = new ArrayList<GeoTimeSerie>(statements.get(0));
+    series.sort(Comparator.comparing(gts -> gts.getLabels().get("host")));
+    assertEquals(SERIES, series.size());
+
+    for (int s = 0; s < SERIES; s++) {
+      GeoTimeSerie gts = series.get(s);
+      assertEquals("measurement value", gts.getName());
+      assertEquals("host" + s, gts.getLabels().get("host"));
+      assertEquals(POINTS, GTSHelper.nvalues(gts));
+      for (int i = 0; i < POINTS; i++) {
+        assertEquals(START + i * STEP, GTSHelper.tickAtIndex(gts, i));
+        assertEquals(i * 0.5D + 0.25D, (Double) GTSHelper.valueAtIndex(gts, i), 0.0D);
+      }
+    }
+  }
+
+  @Test
+  public void testJson() throws Exception {
+    check(query(0, false, null));
+  }
+
+  @Test
+  public void testChunkedJson() throws Exception {
+    // Series are split over several chunks
+    check(query(10, false, null));
+  }
+
+  @Test
+  public void testMsgPack() throws Exception {
+    check(query(0, true, null));
+  }
+
+  @Test
+  public void testChunkedMsgPack() throws Exception {
+    check(query(10, true, null));
+  }
+
+  @Test
+  public void testMaxPoints() throws Exception {
+    Map<Object,Object> params = new HashMap<Object,Object>();
+    params.put(FetchBudget.KEY_MAXPOINTS, (long) POINTS);
+
+    for (boolean msgpack: new boolean[] { false, true }) {
+      try {
+        query(10, msgpack, params);
+        fail("The budget should have been exceeded");
+      } catch (FetchBudget.ExceededException ee) {
+        // Expected
+      }
+    }
+  }
+
+  @Test
+  public void testError() throws Exception {
+    emulator.failNext(1, 400, 0L);
+    try {
+      query(0, false, null);
+      fail("The error should have been reported");
+    } catch (InfluxDBHttpException ihe) {
+      assertEquals(400, ihe.getCode());
+    }
+  }
+}
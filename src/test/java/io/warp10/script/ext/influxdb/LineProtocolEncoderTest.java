@@ -0,0 +1,154 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.ext.influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import io.warp10.continuum.gts.GeoTimeSerie;
+
+public class LineProtocolEncoderTest {
+
+  private static final long START = InfluxDBEmulator.START;
+
+  private static String lines(LineProtocolEncoder encoder) {
+    return new String(encoder.buffer(), 0, encoder.size(), StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testEscaping() {
+    LineProtocolEncoder encoder = new LineProtocolEncoder(0, false);
+
+    Map<String,String> tags = new HashMap<String,String>();
+    tags.put("host name", "a,b=c");
+
+    encoder.series("cpu load,1=2", tags, "field=key");
+    assertTrue(encoder.append(START, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, "say \"hi\" \\o/"));
+
+    // '=' is only escaped outside of measurements, string values only escape quotes and backslashes
+    assertEquals("cpu\\ load\\,1=2,host\\ name=a\\,b\\=c field\\=key=\"say \\\"hi\\\" \\\\o/\" " + START + "\n", lines(encoder));
+  }
+
+  @Test
+  public void testNewline() {
+    LineProtocolEncoder encoder = new LineProtocolEncoder(0, false);
+
+    Map<String,String> tags = new HashMap<String,String>();
+    tags.put("line", "x\ny");
+
+    assertFalse(LineProtocolEncoder.representable("x\ny"));
+
+    // Line protocol has no escape sequence for newlines
+    String[][] invalid = { { "m\n", "f" }, { "m", "f\n" } };
+    for (String[] series: invalid) {
+      try {
+        encoder.series(series[0], new HashMap<String,String>(), series[1]);
+        fail("A newline should not be accepted");
+      } catch (IllegalArgumentException iae) {
+        // Expected
+      }
+    }
+    try {
+      encoder.series("m", tags, "f");
+      fail("A newline should not be accepted");
+    } catch (IllegalArgumentException iae) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testTags() {
+    LineProtocolEncoder encoder = new LineProtocolEncoder(0, false);
+
+    Map<String,String> tags = new HashMap<String,String>();
+    tags.put("z", "1");
+    tags.put("a", "2");
+    tags.put("empty", "");
+
+    encoder.series("m", tags, "f");
+    encoder.append(START, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, 1L);
+
+    // Tags are sorted by key, empty values are dropped
+    assertEquals("m,a=2,z=1 f=1i " + START + "\n", lines(encoder));
+  }
+
+  @Test
+  public void testValues() {
+    LineProtocolEncoder encoder = new LineProtocolEncoder(0, false);
+    encoder.series("m", new HashMap<String,String>(), "f");
+
+    assertTrue(encoder.append(START, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, -42L));
+    assertTrue(encoder.append(START + 1, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, 0.5D));
+    assertTrue(encoder.append(START + 2, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, true));
+    assertTrue(encoder.append(START + 3, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, Long.MIN_VALUE));
+
+    assertEquals("m f=-42i " + START + "\n"
+        + "m f=0.5 " + (START + 1) + "\n"
+        + "m f=true " + (START + 2) + "\n"
+        + "m f=" + Long.MIN_VALUE + "i " + (START + 3) + "\n", lines(encoder));
+    assertEquals(4, encoder.points());
+  }
+
+  @Test
+  public void testSkippedValues() {
+    LineProtocolEncoder encoder = new LineProtocolEncoder(0, false);
+    encoder.series("m", new HashMap<String,String>(), "f");
+
+    // Line protocol has no representation of NaN nor infinity
+    assertFalse(encoder.append(START, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, Double.NaN));
+    assertFalse(encoder.append(START, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, Double.POSITIVE_INFINITY));
+
+    assertEquals(0, encoder.size());
+    assertEquals(0, encoder.points());
+  }
+
+  @Test
+  public void testElevation() {
+    LineProtocolEncoder encoder = new LineProtocolEncoder(0, true);
+    encoder.series("m", new HashMap<String,String>(), "f");
+    encoder.append(START, GeoTimeSerie.NO_LOCATION, 12L, 1L);
+
+    assertEquals("m elev=12i,f=1i " + START + "\n", lines(encoder));
+
+    // Points without a value field are discarded even if they are located
+    encoder.reset();
+    assertFalse(encoder.append(START, GeoTimeSerie.NO_LOCATION, 12L, Double.NaN));
+    assertEquals(0, encoder.size());
+  }
+
+  @Test
+  public void testGrowth() {
+    LineProtocolEncoder encoder = new LineProtocolEncoder(0, false);
+    encoder.series("measurement", new HashMap<String,String>(), "value");
+
+    for (int i = 0; i < 1000; i++) {
+      encoder.append(START + i, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, (long) i);
+    }
+
+    String[] lines = lines(encoder).split("\n");
+    assertEquals(1000, lines.length);
+    assertEquals("measurement value=999i " + (START + 999), lines[999]);
+  }
+}
@@ -0,0 +1,164 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.ext.influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.script.WarpScriptException;
+
+/**
+ * Slice bounds, their insertion in Flux and InfluxQL queries, and the merge of the slices
+ */
+public class ParallelFetchTest {
+
+  // The emulator sets the platform time units to microseconds
+  private static final long START = InfluxDBEmulator.START;
+  private static final long STEP = InfluxDBEmulator.STEP;
+
+  private static final String RANGE = "from(bucket: \"b\")\n  |> range(start: v.timeRangeStart, stop: v.timeRangeStop)\n";
+
+  private static ParallelFetch slices(long start, long end, long slices) throws WarpScriptException {
+    Map<Object,Object> params = new HashMap<Object,Object>();
+    params.put(ParallelFetch.KEY_START, start);
+    params.put(ParallelFetch.KEY_END, end);
+    params.put(ParallelFetch.KEY_SLICES, slices);
+    return ParallelFetch.fromParams("TEST", params);
+  }
+
+  @Test
+  public void testBounds() throws Exception {
+    ParallelFetch parallel = slices(0L, 10L, 3L);
+
+    assertEquals(3, parallel.slices());
+    assertEquals(0L, parallel.bound(0));
+    assertEquals(3L, parallel.bound(1));
+    assertEquals(6L, parallel.bound(2));
+    // The last slice ends at the end of the range
+    assertEquals(10L, parallel.bound(3));
+
+    // Slices are at least one time unit long
+    assertEquals(10, slices(0L, 10L, 100L).slices());
+    assertEquals(1024, slices(0L, 1000000L, 100000L).slices());
+  }
+
+  @Test
+  public void testParams() throws Exception {
+    assertEquals(null, ParallelFetch.fromParams("TEST", new HashMap<Object,Object>()));
+
+    long[][] invalid = { { 0L, 10L, 0L }, { 10L, 10L, 2L }, { 10L, 0L, 2L } };
+    for (long[] p: invalid) {
+      try {
+        slices(p[0], p[1], p[2]);
+        fail("Invalid parameters were accepted");
+      } catch (WarpScriptException wse) {
+        // Expected
+      }
+    }
+  }
+
+  @Test
+  public void testCheck() throws Exception {
+    ParallelFetch.check("TEST", RANGE, true);
+    ParallelFetch.check("TEST", "SELECT * FROM m WHERE $timeFilter", false);
+
+    String[][] invalid = {
+      { "from(bucket: \"b\") |> range(start: v.timeRangeStart)", "true" },
+      { "from(bucket: \"b\") |> range(start: -1h)", "true" },
+      { "SELECT * FROM m WHERE time > now() - 1h", "false" },
+    };
+    for (String[] q: invalid) {
+      try {
+        ParallelFetch.check("TEST", q[0], Boolean.parseBoolean(q[1]));
+        fail("Query '" + q[0] + "' does not use the slice bounds");
+      } catch (WarpScriptException wse) {
+        // Expected
+      }
+    }
+  }
+
+  @Test
+  public void testFlux() throws Exception {
+    ParallelFetch parallel = slices(START, START + 10L * STEP, 2L);
+
+    String first = "option v = {timeRangeStart: 2021-01-01T00:00:00Z, timeRangeStop: 2021-01-01T00:00:05Z}\n";
+    String second = "option v = {timeRangeStart: 2021-01-01T00:00:05Z, timeRangeStop: 2021-01-01T00:00:10Z}\n";
+
+    // Without imports the option comes first
+    assertEquals(first + RANGE, parallel.flux(RANGE, 0));
+    assertEquals(second + RANGE, parallel.flux(RANGE, 1));
+
+    // Imports, comments and blank lines before the first statement are kept before the option
+    String imports = "// Slices\nimport \"strings\"\n\nimport\t\"math\"\n";
+    assertEquals(imports + first + RANGE, parallel.flux(imports + RANGE, 0));
+
+    // A query holding only imports
+    assertEquals("import \"strings\"\n" + first, parallel.flux("import \"strings\"", 0));
+  }
+
+  @Test
+  public void testInfluxQL() throws Exception {
+    ParallelFetch parallel = slices(START, START + 10L * STEP, 2L);
+
+    // Bounds in nanoseconds
+    long middle = (START + 5L * STEP) * 1000L;
+    assertEquals("SELECT * FROM m WHERE time >= " + START * 1000L + " AND time < " + middle + " GROUP BY *",
+        parallel.influxql("SELECT * FROM m WHERE $timeFilter GROUP BY *", 0));
+    assertEquals("SELECT * FROM m WHERE time >= " + middle + " AND time < " + (START + 10L * STEP) * 1000L + " GROUP BY *",
+        parallel.influxql("SELECT * FROM m WHERE $timeFilter GROUP BY *", 1));
+  }
+
+  @Test
+  public void testMerge() throws Exception {
+    List<Map<String,GeoTimeSerie>> parts = new ArrayList<Map<String,GeoTimeSerie>>();
+
+    for (int slice = 0; slice < 2; slice++) {
+      Map<String,GeoTimeSerie> part = new HashMap<String,GeoTimeSerie>();
+      GeoTimeSerie gts = new GeoTimeSerie();
+      gts.setName("value");
+      // Out of order within the slice
+      for (int i = 4; i >= 0; i--) {
+        GTSHelper.setValue(gts, START + (slice * 5L + i) * STEP, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, (long) (slice * 5 + i), false);
+      }
+      part.put("a", gts);
+      if (0 == slice) {
+        // Only in the first slice
+        part.put("b", new GeoTimeSerie());
+      }
+      parts.add(part);
+    }
+
+    Map<String,GeoTimeSerie> merged = ParallelFetch.merge(parts);
+
+    assertEquals(2, merged.size());
+    GeoTimeSerie a = merged.get("a");
+    assertEquals(10, GTSHelper.nvalues(a));
+    for (int i = 0; i < 10; i++) {
+      assertEquals(START + i * STEP, GTSHelper.tickAtIndex(a, i));
+      assertEquals((long) i, GTSHelper.valueAtIndex(a, i));
+    }
+  }
+}
@@ -0,0 +1,379 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.ext.influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.script.MemoryWarpScriptStack;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+
+/**
+ * Caching, copies, expiry, eviction and single flight of the result cache
+ */
+public class ResultCacheTest {
+
+  private static final long START = InfluxDBEmulator.START;
+  private static final long STEP = InfluxDBEmulator.STEP;
+
+  private static List<GeoTimeSerie> result(int points) {
+    GeoTimeSerie gts = new GeoTimeSerie(points);
+    gts.setName("value");
+    gts.setLabels(new HashMap<String,String>(Collections.singletonMap("host", "host0")));
+    for (int i = 0; i < points; i++) {
+      GTSHelper.setValue(gts, START + i * STEP, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, (long) i, false);
+    }
+    List<GeoTimeSerie> result = new ArrayList<GeoTimeSerie>();
+    result.add(gts);
+    return result;
+  }
+
+  private static long stat(ResultCache cache, String name) {
+    return (Long) cache.stats().get(name);
+  }
+
+  private static <T> T get(ResultCache cache, String key, long ttl, Map<Object,Object> params, WarpScriptStack stack, ResultCache.Loader<T> loader) throws Exception {
+    try (CallGuard guard = CallGuard.fromParams("TEST", params, stack)) {
+      return cache.get(key, ttl, guard, InfluxQLChunkDecoderTest.budget(params), loader);
+    }
+  }
+
+  private static <T> T get(ResultCache cache, String key, long ttl, Map<Object,Object> params, ResultCache.Loader<T> loader) throws Exception {
+    return get(cache, key, ttl, params, null, loader);
+  }
+
+  private static <T> T get(ResultCache cache, String key, long ttl, ResultCache.Loader<T> loader) throws Exception {
+    return get(cache, key, ttl, null, null, loader);
+  }
+
+  @Test
+  public void testHit() throws Exception {
+    ResultCache cache = new ResultCache(1024L * 1024L);
+    AtomicInteger loads = new AtomicInteger();
+
+    List<GeoTimeSerie> first = get(cache, "key", 60000L, () -> {
+      loads.incrementAndGet();
+      return result(10);
+    });
+
+    // Callers receive copies, changing them does not change the cached result
+    GTSHelper.setValue(first.get(0), START + 10 * STEP, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, 10L, false);
+
+    List<GeoTimeSerie> second = get(cache, "key", 60000L, () -> {
+      loads.incrementAndGet();
+      return result(10);
+    });
+
+    assertEquals(1, loads.get());
+    assertNotSame(first.get(0), second.get(0));
+    assertEquals(10, GTSHelper.nvalues(second.get(0)));
+    assertEquals(1L, stat(cache, "cache.hits"));
+    assertEquals(1L, stat(cache, "cache.misses"));
+  }
+
+  @Test
+  public void testExpiry() throws Exception {
+    ResultCache cache = new ResultCache(1024L * 1024L);
+    AtomicInteger loads = new AtomicInteger();
+
+    for (int i = 0; i < 2; i++) {
+      get(cache, "key", 1L, () -> {
+        loads.incrementAndGet();
+        return result(10);
+      });
+      Thread.sleep(10L);
+    }
+
+    assertEquals(2, loads.get());
+    assertEquals(0L, stat(cache, "cache.hits"));
+  }
+
+  @Test
+  public void testEviction() throws Exception {
+    // Room for a single result
+    ResultCache cache = new ResultCache(1024L);
+
+    get(cache, "a", 60000L, () -> result(20));
+    get(cache, "b", 60000L, () -> result(20));
+
+    assertEquals(1L, stat(cache, "cache.entries"));
+    assertEquals(1L, stat(cache, "cache.evictions"));
+
+    // Results larger than the whole cache are not kept
+    get(cache, "c", 60000L, () -> result(1000));
+    assertEquals(1L, stat(cache, "cache.entries"));
+  }
+
+  @Test
+  public void testFailure() throws Exception {
+    ResultCache cache = new ResultCache(1024L * 1024L);
+
+    try {
+      get(cache, "key", 60000L, () -> {
+        throw new WarpScriptException("failed");
+      });
+      fail("The error should have been reported");
+    } catch (WarpScriptException wse) {
+      assertEquals("failed", wse.getMessage());
+    }
+
+    // Failures are not cached
+    assertEquals(10, GTSHelper.nvalues(ResultCacheTest.<List<GeoTimeSerie>>get(cache, "key", 60000L, () -> result(10)).get(0)));
+  }
+
+  @Test
+  public void testSingleFlight() throws Exception {
+    ResultCache cache = new ResultCache(1024L * 1024L);
+    AtomicInteger loads = new AtomicInteger();
+    CountDownLatch release = new CountDownLatch(1);
+
+    ResultCache.Loader<List<GeoTimeSerie>> loader = () -> {
+      loads.incrementAndGet();
+      try {
+        release.await();
+      } catch (InterruptedException ie) {
+        throw new WarpScriptException(ie);
+      }
+      return result(10);
+    };
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    try {
+      List<Future<List<GeoTimeSerie>>> futures = new ArrayList<Future<List<GeoTimeSerie>>>();
+      for (int i = 0; i < 4; i++) {
+        futures.add(executor.submit(() -> get(cache, "key", 60000L, loader)));
+      }
+
+      // Wait for the other calls to wait for the first one
+      long end = System.currentTimeMillis() + 10000L;
+      while (3L != stat(cache, "cache.coalesced") && System.currentTimeMillis() < end) {
+        Thread.sleep(10L);
+      }
+      release.countDown();
+
+      List<GeoTimeSerie> first = futures.get(0).get();
+      for (Future<List<GeoTimeSerie>> future: futures) {
+        List<GeoTimeSerie> result = future.get();
+        assertEquals(10, GTSHelper.nvalues(result.get(0)));
+        if (result != first) {
+          assertNotSame(first.get(0), result.get(0));
+        }
+      }
+
+      assertEquals(1, loads.get());
+      assertEquals(1L, stat(cache, "cache.misses"));
+      assertEquals(3L, stat(cache, "cache.coalesced"));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testHitBudget() throws Exception {
+    ResultCache cache = new ResultCache(1024L * 1024L);
+    get(cache, "key", 60000L, () -> result(10));
+
+    // Cached series count towards the limits of the call
+    Map<Object,Object> params = new HashMap<Object,Object>();
+    params.put(FetchBudget.KEY_MAXPOINTS, 5L);
+
+    try {
+      get(cache, "key", 60000L, params, () -> result(10));
+      fail("The budget should have been exceeded");
+    } catch (FetchBudget.ExceededException ee) {
+      // Expected
+    }
+
+    assertEquals(1L, stat(cache, "cache.hits"));
+  }
+
+  @Test
+  public void testWaiterDeadline() throws Exception {
+    ResultCache cache = new ResultCache(1024L * 1024L);
+    CountDownLatch release = new CountDownLatch(1);
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    try {
+      Future<List<GeoTimeSerie>> first = executor.submit(() -> get(cache, "key", 60000L, () -> {
+        try {
+          release.await();
+        } catch (InterruptedException ie) {
+          throw new WarpScriptException(ie);
+        }
+        return result(10);
+      }));
+
+      while (0L == stat(cache, "cache.misses")) {
+        Thread.sleep(10L);
+      }
+
+      // The waiter gives up when its own deadline expires
+      Map<Object,Object> params = new HashMap<Object,Object>();
+      params.put(CallGuard.KEY_DEADLINE, 100L);
+
+      long start = System.currentTimeMillis();
+      try {
+        get(cache, "key", 60000L, params, () -> result(10));
+        fail("The deadline should have expired");
+      } catch (InterruptedIOException iioe) {
+        // Expected
+      }
+      assertTrue(System.currentTimeMillis() - start < 5000L);
+
+      release.countDown();
+      assertEquals(10, GTSHelper.nvalues(first.get().get(0)));
+    } finally {
+      release.countDown();
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testWaiterSignal() throws Exception {
+    ResultCache cache = new ResultCache(1024L * 1024L);
+    CountDownLatch release = new CountDownLatch(1);
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+
+    try {
+      executor.submit(() -> get(cache, "key", 60000L, () -> {
+        try {
+          release.await();
+        } catch (InterruptedException ie) {
+          throw new WarpScriptException(ie);
+        }
+        return result(10);
+      }));
+
+      while (0L == stat(cache, "cache.misses")) {
+        Thread.sleep(10L);
+      }
+
+      // Stopping the stack of the waiter ends its wait
+      WarpScriptStack stack = new MemoryWarpScriptStack(null, null, new Properties());
+      Future<Object> waiter = executor.submit(() -> get(cache, "key", 60000L, null, stack, () -> result(10)));
+
+      while (0L == stat(cache, "cache.coalesced")) {
+        Thread.sleep(10L);
+      }
+      stack.signal(WarpScriptStack.Signal.STOP);
+
+      try {
+        waiter.get(5000L, TimeUnit.MILLISECONDS);
+        fail("The wait should have been stopped");
+      } catch (ExecutionException ee) {
+        assertTrue(ee.getCause() instanceof InterruptedIOException);
+      }
+
+      // The signal is left to the thread executing the script
+      try {
+        stack.handleSignal();
+        fail("The stack should still be signaled");
+      } catch (WarpScriptException wse) {
+        // Expected
+      }
+    } finally {
+      release.countDown();
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testWaiterRetry() throws Exception {
+    ResultCache cache = new ResultCache(1024L * 1024L);
+    CountDownLatch release = new CountDownLatch(1);
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+
+    try {
+      Future<Object> first = executor.submit(() -> get(cache, "key", 60000L, () -> {
+        try {
+          release.await();
+        } catch (InterruptedException ie) {
+          throw new WarpScriptException(ie);
+        }
+        throw new WarpScriptException("deadline exceeded");
+      }));
+
+      while (0L == stat(cache, "cache.misses")) {
+        Thread.sleep(10L);
+      }
+
+      Future<List<GeoTimeSerie>> waiter = executor.submit(() -> get(cache, "key", 60000L, () -> result(10)));
+
+      while (0L == stat(cache, "cache.coalesced")) {
+        Thread.sleep(10L);
+      }
+      release.countDown();
+
+      // The failure of the first call is not shared, the waiter fetches the result itself
+      assertEquals(10, GTSHelper.nvalues(waiter.get().get(0)));
+      assertEquals(2L, stat(cache, "cache.misses"));
+
+      try {
+        first.get();
+        fail("The first call should have failed");
+      } catch (ExecutionException ee) {
+        assertEquals("deadline exceeded", ee.getCause().getMessage());
+      }
+    } finally {
+      release.countDown();
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testKey() {
+    // Whitespace outside of quotes does not matter
+    assertEquals(ResultCache.key("url", "SELECT  *\t  FROM m "), ResultCache.key("url", "SELECT * FROM m"));
+    assertNotEquals(ResultCache.key("url", "SELECT * FROM \"a  b\""), ResultCache.key("url", "SELECT * FROM \"a b\""));
+    assertNotEquals(ResultCache.key("url", "q"), ResultCache.key("other", "q"));
+
+    // Nor does it inside regular expressions
+    assertNotEquals(ResultCache.key("url", "SELECT * FROM m WHERE host =~ /a  b/"), ResultCache.key("url", "SELECT * FROM m WHERE host =~ /a b/"));
+    assertNotEquals(ResultCache.key("url", "SELECT * FROM /a  b/"), ResultCache.key("url", "SELECT * FROM /a b/"));
+
+    // Line breaks end comments
+    assertEquals(ResultCache.key("url", "// c\n\n  from(bucket: \"b\")"), ResultCache.key("url", "// c\nfrom(bucket: \"b\")"));
+    assertNotEquals(ResultCache.key("url", "// c\nfrom(bucket: \"b\")"), ResultCache.key("url", "// c from(bucket: \"b\")"));
+  }
+}
@@ -0,0 +1,290 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.ext.influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.ConnectException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.junit.Test;
+
+import io.warp10.script.MemoryWarpScriptStack;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+
+/**
+ * Placement of series on the ring, failover to the next nodes, and sharded writes to emulators
+ */
+public class ShardRingTest {
+
+  private static final int SERIES = 1000;
+
+  private static ShardRing ring(long replicas, String... urls) throws WarpScriptException {
+    Map<Object,Object> params = new HashMap<Object,Object>();
+    params.put(ShardRing.KEY_URLS, new ArrayList<Object>(Arrays.asList(urls)));
+    params.put(ShardRing.KEY_REPLICAS, replicas);
+    return ShardRing.fromParams("TEST", params);
+  }
+
+  private static Map<String,String> tags(int i) {
+    return Collections.singletonMap("host", "host" + i);
+  }
+
+  @Test
+  public void testPlacement() throws Exception {
+    ShardRing ring = ring(1L, "http://a.test:8086", "http://b.test:8086", "http://c.test:8086");
+    // Placements do not depend on the order of the URLs
+    ShardRing shuffled = ring(1L, "http://c.test:8086", "http://a.test:8086", "http://b.test:8086");
+
+    Map<String,Integer> counts = new HashMap<String,Integer>();
+    for (int i = 0; i < SERIES; i++) {
+      int[] nodes = ring.nodes("m", tags(i));
+      assertEquals(1, nodes.length);
+      assertEquals(ring.url(nodes[0]), shuffled.url(shuffled.nodes("m", tags(i))[0]));
+      counts.merge(ring.url(nodes[0]), 1, Integer::sum);
+    }
+
+    // Series are spread over all the nodes
+    assertEquals(3, counts.size());
+    for (int count: counts.values()) {
+      assertTrue(count > SERIES / 5);
+    }
+  }
+
+  @Test
+  public void testTagOrder() throws Exception {
+    ShardRing ring = ring(1L, "http://a.test:8086", "http://b.test:8086", "http://c.test:8086");
+
+    Map<String,String> tags = new LinkedHashMap<String,String>();
+    Map<String,String> reversed = new LinkedHashMap<String,String>();
+    for (int i = 0; i < 10; i++) {
+      tags.put("k" + i, "v" + i);
+      reversed.put("k" + (9 - i), "v" + (9 - i));
+    }
+
+    assertEquals(ring.nodes("m", tags)[0], ring.nodes("m", reversed)[0]);
+  }
+
+  @Test
+  public void testReplicas() throws Exception {
+    ShardRing single = ring(1L, "http://a.test:8086", "http://b.test:8086", "http://c.test:8086");
+    ShardRing ring = ring(2L, "http://a.test:8086", "http://b.test:8086", "http://c.test:8086");
+
+    for (int i = 0; i < SERIES; i++) {
+      int[] nodes = ring.nodes("m", tags(i));
+      assertEquals(2, nodes.length);
+      assertNotEquals(nodes[0], nodes[1]);
+      // The first replica is the node holding the series without replication
+      assertEquals(single.nodes("m", tags(i))[0], nodes[0]);
+    }
+  }
+
+  @Test
+  public void testFailover() throws Exception {
+    // Hosts of their own, node health is shared by all the rings
+    ShardRing ring = ring(2L, "http://d.test:8086", "http://e.test:8086", "http://f.test:8086");
+    ShardRing single = ring(1L, "http://d.test:8086", "http://e.test:8086", "http://f.test:8086");
+
+    int[] nodes = ring.nodes("m", tags(0));
+    String primary = ring.url(nodes[0]);
+
+    try (CallGuard guard = CallGuard.fromParams("TEST", null, null)) {
+      ShardHealth.of(primary).failure(new ConnectException("Connection refused"), guard);
+    }
+
+    try {
+      // The series is written to the next nodes of the ring
+      int[] failover = ring.nodes("m", tags(0));
+      assertEquals(nodes[1], failover[0]);
+      assertNotEquals(primary, ring.url(failover[1]));
+
+      // Reads with replicas skip the node, reads without replicas cannot
+      assertEquals(2, ring.readable().length);
+      assertEquals(3, single.readable().length);
+    } finally {
+      ShardHealth.of(primary).success();
+    }
+
+    assertEquals(primary, ring.url(ring.nodes("m", tags(0))[0]));
+  }
+
+  @Test
+  public void testParams() throws Exception {
+    List<Map<Object,Object>> invalid = new ArrayList<Map<Object,Object>>();
+
+    Map<Object,Object> params = new HashMap<Object,Object>();
+    params.put(ShardRing.KEY_URLS, Arrays.asList("http://a.test:8086", "http://a.test:8086"));
+    invalid.add(params);
+
+    params = new HashMap<Object,Object>();
+    params.put(ShardRing.KEY_URLS, Arrays.asList("http://a.test:8086", "http://b.test:8086"));
+    params.put(ShardRing.KEY_REPLICAS, 3L);
+    invalid.add(params);
+
+    params = new HashMap<Object,Object>();
+    params.put(ShardRing.KEY_URLS, Arrays.asList("http://a.test:8086"));
+    params.put(INFLUXDBFLUX.KEY_URL, "http://b.test:8086");
+    invalid.add(params);
+
+    params = new HashMap<Object,Object>();
+    params.put(ShardRing.KEY_URLS, new ArrayList<Object>());
+    invalid.add(params);
+
+    for (Map<Object,Object> p: invalid) {
+      try {
+        ShardRing.fromParams("TEST", p);
+        fail("Invalid parameters " + p + " were accepted");
+      } catch (WarpScriptException wse) {
+        // Expected
+      }
+    }
+  }
+
+  /**
+   * Write 10 series of 10 points with INFLUXDB.UPDATE to the emulators, return the series each emulator received
+   */
+  private static List<Set<String>> write(InfluxDBEmulator[] emulators, long replicas) throws Exception {
+    List<Object> urls = new ArrayList<Object>();
+    for (InfluxDBEmulator emulator: emulators) {
+      urls.add(emulator.url());
+      emulator.setCapture(true);
+    }
+
+    Map<Object,Object> params = new HashMap<Object,Object>();
+    params.put(ShardRing.KEY_URLS, urls);
+    params.put(ShardRing.KEY_REPLICAS, replicas);
+    params.put(INFLUXDBFLUX.KEY_TOKEN, "token");
+    params.put(INFLUXDBFLUX.KEY_ORG, "org");
+    params.put("bucket", "bucket");
+    params.put("measurement", "m");
+
+    String[] names = new String[10];
+    Arrays.fill(names, "value");
+
+    WarpScriptStack stack = new MemoryWarpScriptStack(null, null, new Properties());
+    stack.push(INFLUXDBUPDATETest.series(10, names));
+    stack.push(params);
+    new INFLUXDBUPDATE("INFLUXDB.UPDATE").apply(stack);
+
+    List<Set<String>> received = new ArrayList<Set<String>>();
+    for (InfluxDBEmulator emulator: emulators) {
+      Set<String> series = new HashSet<String>();
+      for (InfluxDBEmulator.Capture capture: emulator.captured()) {
+        for (String line: new String(capture.body, StandardCharsets.UTF_8).split("\n")) {
+          if (!line.isEmpty()) {
+            series.add(line.substring(0, line.indexOf(' ')));
+          }
+        }
+      }
+      received.add(series);
+    }
+    return received;
+  }
+
+  @Test
+  public void testWrite() throws Exception {
+    InfluxDBEmulator[] emulators = { new InfluxDBEmulator(), new InfluxDBEmulator(), new InfluxDBEmulator() };
+
+    try {
+      List<Set<String>> received = write(emulators, 2L);
+
+      // Each series was written to two distinct nodes
+      Map<String,Integer> copies = new HashMap<String,Integer>();
+      long points = 0L;
+      for (int i = 0; i < emulators.length; i++) {
+        for (String series: received.get(i)) {
+          copies.merge(series, 1, Integer::sum);
+        }
+        points += emulators[i].stats().get("written.points");
+      }
+      assertEquals(10, copies.size());
+      for (int count: copies.values()) {
+        assertEquals(2, count);
+      }
+      assertEquals(2L * 10L * 10L, points);
+    } finally {
+      for (InfluxDBEmulator emulator: emulators) {
+        emulator.close();
+      }
+    }
+  }
+
+  @Test
+  public void testWriteReplicaFailure() throws Exception {
+    InfluxDBEmulator[] emulators = { new InfluxDBEmulator(), new InfluxDBEmulator(), new InfluxDBEmulator() };
+
+    // A node rejects the writes, the series it holds only reach one of their two replicas
+    emulators[0].setErrorRate(1.0D, 400, 0L);
+
+    try {
+      write(emulators, 2L);
+      fail("Series written to a single replica should fail the call");
+    } catch (WarpScriptException wse) {
+      // Expected, reads skipping the other replica would miss their points
+    } finally {
+      for (InfluxDBEmulator emulator: emulators) {
+        emulator.close();
+      }
+    }
+  }
+
+  @Test
+  public void testWriteFailover() throws Exception {
+    InfluxDBEmulator[] emulators = { new InfluxDBEmulator(), new InfluxDBEmulator(), new InfluxDBEmulator() };
+
+    // A node is down
+    String down = emulators[0].url();
+    emulators[0].close();
+
+    try {
+      // The series it holds cannot reach all their replicas, the node is put on probation
+      try {
+        write(emulators, 2L);
+        fail("The write should have failed");
+      } catch (WarpScriptException wse) {
+        // Expected
+      }
+
+      // Retried, the series are written to the two other nodes
+      List<Set<String>> received = write(emulators, 2L);
+      assertEquals(10, received.get(1).size());
+      assertEquals(10, received.get(2).size());
+
+      // Reads skip the node on probation and still find every series
+      ShardRing ring = ring(2L, down, emulators[1].url(), emulators[2].url());
+      assertEquals(2, ring.readable().length);
+    } finally {
+      ShardHealth.of(down).success();
+      emulators[1].close();
+      emulators[2].close();
+    }
+  }
+}
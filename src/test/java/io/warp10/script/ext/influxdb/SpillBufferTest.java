@@ -0,0 +1,170 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.ext.influxdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.warp10.continuum.gts.GeoTimeSerie;
+
+/**
+ * Spilling of batches to disk and their replay once the emulator accepts writes again
+ */
+public class SpillBufferTest {
+
+  private static final long START = InfluxDBEmulator.START;
+  private static final long STEP = InfluxDBEmulator.STEP;
+
+  /**
+   * Interval (in ms) between two replays
+   */
+  private static final long RETRY = 100L;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private InfluxDBEmulator emulator;
+  private InfluxDBClientRegistry.Key key;
+
+  @Before
+  public void setUp() throws Exception {
+    emulator = new InfluxDBEmulator();
+    key = InfluxDBClientRegistry.Key.v2(emulator.url(), null, null, "token", "org", HttpClientUtils.getTransportOptions("TEST", new HashMap<Object,Object>()));
+  }
+
+  @After
+  public void tearDown() {
+    emulator.close();
+  }
+
+  private WriteQueue.Batch batch(int points) {
+    LineProtocolEncoder encoder = new LineProtocolEncoder(0, false);
+    encoder.series("m", Collections.singletonMap("host", "host0"), "value");
+    for (int i = 0; i < points; i++) {
+      encoder.append(START + i * STEP, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, (long) i);
+    }
+    return new WriteQueue.Batch(key, LineProtocolWriter.v2(key, "bucket"), Arrays.copyOf(encoder.buffer(), encoder.size()), encoder.points());
+  }
+
+  private static long stat(SpillBuffer spill, String name) {
+    Map<Object,Object> stats = new HashMap<Object,Object>();
+    spill.stats(stats);
+    return (Long) stats.get(name);
+  }
+
+  private static void await(String what, BooleanSupplier condition) throws InterruptedException {
+    long end = System.currentTimeMillis() + 30000L;
+    while (!condition.getAsBoolean()) {
+      if (System.currentTimeMillis() > end) {
+        fail("Timed out waiting for " + what);
+      }
+      Thread.sleep(50L);
+    }
+  }
+
+  @Test
+  public void testReplay() throws Exception {
+    // InfluxDB is unavailable
+    emulator.setErrorRate(1.0D, 503, 0L);
+
+    // Small segments so the batches span several of them
+    SpillBuffer spill = new SpillBuffer(folder.newFolder(), 1024L * 1024L, 512L, false, RETRY);
+    for (int i = 0; i < 5; i++) {
+      spill.append(batch(10));
+    }
+    assertEquals(5L, stat(spill, "spilled.batches"));
+    assertTrue(stat(spill, "spill.bytes") > 0L);
+
+    // Replays keep failing while the endpoint answers 503
+    await("a failed replay", () -> emulator.stats().get("errors") > 0L);
+    assertEquals(0L, stat(spill, "replayed.batches"));
+    assertEquals(0L, (long) emulator.stats().get("written.points"));
+
+    emulator.setErrorRate(0.0D, 503, 0L);
+
+    await("the replay of all batches", () -> 5L == stat(spill, "replayed.batches"));
+    assertEquals(50L, (long) emulator.stats().get("written.points"));
+    assertEquals(0L, stat(spill, "spill.bytes"));
+    assertEquals(0L, stat(spill, "discarded.batches"));
+  }
+
+  @Test
+  public void testFull() throws Exception {
+    WriteQueue.Batch batch = batch(10);
+    SpillBuffer spill = new SpillBuffer(folder.newFolder(), batch.getPayload().length, 512L, false, RETRY);
+
+    try {
+      spill.append(batch);
+      fail("The buffer should be full");
+    } catch (IOException ioe) {
+      // Expected
+    }
+
+    assertEquals(1L, stat(spill, "spill.rejected.batches"));
+    assertEquals(0L, stat(spill, "spill.bytes"));
+  }
+
+  @Test
+  public void testRestart() throws Exception {
+    File dir = folder.newFolder();
+
+    // Segments left by a previous run, one of them corrupted
+    File endpoint = new File(dir, key.id());
+    assertTrue(endpoint.mkdirs());
+    SpillBuffer previous = new SpillBuffer(new File(folder.getRoot(), "previous"), 1024L * 1024L, 1024L * 1024L, false, 3600000L);
+    previous.append(batch(10));
+    File[] segments = new File(folder.getRoot(), "previous/" + key.id()).listFiles();
+    assertEquals(1, segments.length);
+    assertTrue(segments[0].renameTo(new File(endpoint, segments[0].getName())));
+    File corrupted = new File(endpoint, "segment-99999999999999999999.lp");
+    try (FileOutputStream out = new FileOutputStream(corrupted)) {
+      out.write(new byte[] { 0, 1, 2, 3, 4, 5, 6, 7 });
+    }
+
+    SpillBuffer spill = new SpillBuffer(dir, 1024L * 1024L, 1024L * 1024L, false, RETRY);
+    assertTrue(stat(spill, "spill.bytes") > 0L);
+
+    // Nothing is replayed until the credentials of the endpoint are known
+    Thread.sleep(3L * RETRY);
+    assertEquals(0L, stat(spill, "replayed.batches"));
+
+    spill.register(key);
+
+    await("the replay of the segments", () -> 0L == stat(spill, "spill.bytes"));
+    assertEquals(1L, stat(spill, "replayed.batches"));
+    assertEquals(1L, stat(spill, "discarded.batches"));
+    assertEquals(10L, (long) emulator.stats().get("written.points"));
+    assertFalse(corrupted.exists());
+  }
+}